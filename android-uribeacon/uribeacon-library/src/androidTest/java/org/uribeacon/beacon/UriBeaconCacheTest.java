@@ -0,0 +1,92 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.beacon;
+
+import android.test.AndroidTestCase;
+
+import junit.framework.Assert;
+
+import java.net.URISyntaxException;
+
+/**
+ * Unit tests for the {@link UriBeaconCache} class.
+ */
+public class UriBeaconCacheTest extends AndroidTestCase {
+
+  public void testHit() {
+    UriBeaconCache cache = new UriBeaconCache();
+    UriBeacon beacon = cache.parseFromBytes(TestData.adv_2);
+    assertEquals("http://www.uribeacon.org", beacon.getUriString());
+    assertSame(beacon, cache.parseFromBytes(TestData.adv_2.clone()));
+    assertEquals(1, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+    assertEquals(1, cache.size());
+  }
+
+  public void testNoUriBeacon() {
+    UriBeaconCache cache = new UriBeaconCache();
+    assertNull(cache.parseFromBytes(null));
+    assertNull(cache.parseFromBytes(TestData.adv_1));
+    assertEquals(0, cache.size());
+  }
+
+  public void testEviction() throws URISyntaxException {
+    UriBeaconCache cache = new UriBeaconCache(1);
+    byte[] first = new UriBeacon.Builder().uriString("http://a.com").build().toByteArray();
+    byte[] second = new UriBeacon.Builder().uriString("http://b.com").build().toByteArray();
+    UriBeacon beacon = cache.parseFromBytes(first);
+    cache.parseFromBytes(second);
+    assertEquals(1, cache.getEvictionCount());
+    assertEquals(1, cache.size());
+    assertNotSame(beacon, cache.parseFromBytes(first));
+    assertEquals(0, cache.getHitCount());
+    assertEquals(3, cache.getMissCount());
+  }
+
+  public void testCreateConfigUriBeacon() throws URISyntaxException {
+    UriBeaconCache cache = new UriBeaconCache();
+    ConfigUriBeacon beacon = cache.createConfigUriBeacon(TestData.validUrlAdbPacketBytes);
+    assertEquals(TestData.urlTestString, beacon.getUriString());
+    assertSame(beacon, cache.createConfigUriBeacon(TestData.validUrlAdbPacketBytes));
+    // Parsed UriBeacons are cached apart from ConfigUriBeacons.
+    assertFalse(cache.parseFromBytes(TestData.validUrlAdbPacketBytes) instanceof ConfigUriBeacon);
+    assertEquals(TestData.noTxPowerLevel,
+        cache.createConfigUriBeacon(TestData.emptyTestByteArray).getTxPowerLevel());
+  }
+
+  public void testCreateConfigUriBeaconFailure() {
+    UriBeaconCache cache = new UriBeaconCache();
+    for (int i = 0; i < 2; i++) {
+      try {
+        cache.createConfigUriBeacon(TestData.longInvalidUrlAdbPacketBytes);
+        Assert.fail("Should fail");
+      } catch (URISyntaxException e) {
+        assertEquals("Uri size is larger than 18 bytes", e.getReason());
+      }
+    }
+    assertEquals(0, cache.size());
+  }
+
+  public void testInvalidMaxSize() {
+    try {
+      new UriBeaconCache(0);
+      Assert.fail("Should fail");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+}
@@ -26,12 +26,15 @@ import org.apache.http.util.ByteArrayBuffer;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.uribeacon.scan.util.AdStructureIndex;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * Unit tests for the {@link UriBeacon} class.
@@ -177,6 +180,49 @@ public class UriBeaconTest extends AndroidTestCase {
     assertEquals("http://www.uribeacon.org", beacon.getUriString());
   }
 
+  public void testEncodeUriLongestExpansion() {
+    // ".info/" is preferred over ".info" and the scheme matches regardless of case.
+    MoreAsserts.assertEquals(new byte[] {0x00, 'a', 0x04, 'b', 0x0b},
+        UriBeacon.encodeUri("HTTP://WWW.a.info/b.info"));
+  }
+
+  public void testEncodeAll() {
+    List<byte[]> encodedUris = UriBeacon.encodeAll(Arrays.asList(
+        TestData.urlTestString, TestData.malformedUrlString, TestData.uuidTestString,
+        TestData.emptyTestString));
+    assertEquals(4, encodedUris.size());
+    MoreAsserts.assertEquals(TestData.urlTestByteArray, encodedUris.get(0));
+    assertNull(encodedUris.get(1));
+    MoreAsserts.assertEquals(TestData.uuidTestByteArray, encodedUris.get(2));
+    MoreAsserts.assertEquals(TestData.emptyTestByteArray, encodedUris.get(3));
+  }
+
+  public void testDecodeUriIntoBuilder() {
+    StringBuilder builder = new StringBuilder("uri=");
+    byte[] uriBytes = UriBeacon.encodeUri("http://www.uribeacon.org");
+    assertTrue(UriBeacon.decodeUri(uriBytes, 0, uriBytes.length, builder));
+    assertEquals("uri=http://www.uribeacon.org", builder.toString());
+
+    builder.setLength(0);
+    uriBytes = UriBeacon.encodeUri("urn:uuid:B1E13D51-5FC9-4D5B-902F-AB668DB7B2B8");
+    assertTrue(UriBeacon.decodeUri(uriBytes, 0, uriBytes.length, builder));
+    assertEquals("urn:uuid:b1e13d51-5fc9-4d5b-902f-ab668db7b2b8", builder.toString());
+
+    // Unknown scheme and truncated UUID leave the builder untouched.
+    builder.setLength(0);
+    assertFalse(UriBeacon.decodeUri(new byte[] {0x7f, 'a'}, 0, 2, builder));
+    assertFalse(UriBeacon.decodeUri(new byte[] {0x04, 0x01, 0x02}, 0, 3, builder));
+    assertEquals(0, builder.length());
+  }
+
+  public void testParseFromIndex() {
+    assertNull(UriBeacon.parseFromIndex(null));
+    assertNull(UriBeacon.parseFromIndex(AdStructureIndex.build(TestData.adv_1)));
+    UriBeacon beacon = UriBeacon.parseFromIndex(AdStructureIndex.build(TestData.adv_2));
+    assertEquals(0x20, beacon.getTxPowerLevel());
+    assertEquals("http://www.uribeacon.org", beacon.getUriString());
+  }
+
   // Convert a json array containing bytes and quoted strings into a byte array
   private byte[] jsonToByteArray(JSONArray jsonArray) throws JSONException {
     ByteArrayBuffer bb = new ByteArrayBuffer(31);
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.uribeacon.scan.compat;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Unit tests for the {@link AdaptiveScanScheduler} class.
+ */
+public class AdaptiveScanSchedulerTest extends AndroidTestCase {
+
+  private static final RecentSightings.Activity QUIET = new RecentSightings.Activity(0, 0, 0);
+  private static final RecentSightings.Activity NEW_DEVICE =
+      new RecentSightings.Activity(1, 0, 0);
+  private static final RecentSightings.Activity CHANGED_DEVICE =
+      new RecentSightings.Activity(0, 1, 0);
+  private static final RecentSightings.Activity MOVING_DEVICES = new RecentSightings.Activity(
+      0, 0, AdaptiveScanScheduler.RSSI_VARIANCE_THRESHOLD + 1);
+
+  private AdaptiveScanScheduler scheduler;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    scheduler = new AdaptiveScanScheduler(1000, 1000, 8000, 4);
+  }
+
+  public void testInvalidBounds() {
+    try {
+      new AdaptiveScanScheduler(1000, 2000, 1000, 4);
+      fail("Should have failed");
+    } catch (IllegalArgumentException e) {
+      // Expected.
+    }
+    try {
+      new AdaptiveScanScheduler(0, 1000, 2000, 4);
+      fail("Should have failed");
+    } catch (IllegalArgumentException e) {
+      // Expected.
+    }
+  }
+
+  public void testQuietCyclesLengthenIdleUpToMax() {
+    assertEquals(1000, scheduler.getIdleMillis());
+    assertTrue(scheduler.onCycleComplete(QUIET));
+    assertEquals(1500, scheduler.getIdleMillis());
+    for (int i = 0; i < 10; i++) {
+      scheduler.onCycleComplete(QUIET);
+    }
+    assertEquals(8000, scheduler.getIdleMillis());
+    assertFalse(scheduler.onCycleComplete(QUIET));
+  }
+
+  public void testNewDeviceDropsIdleToMin() {
+    for (int i = 0; i < 10; i++) {
+      scheduler.onCycleComplete(QUIET);
+    }
+    assertTrue(scheduler.onCycleComplete(NEW_DEVICE));
+    assertEquals(1000, scheduler.getIdleMillis());
+  }
+
+  public void testChangesHalveIdle() {
+    for (int i = 0; i < 10; i++) {
+      scheduler.onCycleComplete(QUIET);
+    }
+    scheduler.onCycleComplete(CHANGED_DEVICE);
+    assertEquals(4000, scheduler.getIdleMillis());
+    scheduler.onCycleComplete(MOVING_DEVICES);
+    assertEquals(2000, scheduler.getIdleMillis());
+    scheduler.onCycleComplete(new RecentSightings.Activity(
+        0, 0, AdaptiveScanScheduler.RSSI_VARIANCE_THRESHOLD));
+    assertEquals(3000, scheduler.getIdleMillis());
+  }
+
+  public void testLostTimeoutFollowsRecentCycles() {
+    assertEquals(4 * 2000, scheduler.getLostTimeoutMillis());
+    scheduler.onCycleComplete(QUIET);
+    // The completed cycle idled 1000 ms; the next one idles 1500 ms.
+    assertEquals(4 * 2000, scheduler.getLostTimeoutMillis());
+    scheduler.onCycleComplete(QUIET);
+    assertEquals(3 * 2000 + 2500, scheduler.getLostTimeoutMillis());
+  }
+
+  public void testStats() {
+    scheduler.onCycleComplete(QUIET);
+    scheduler.onCycleComplete(QUIET);
+    scheduler.onCycleComplete(NEW_DEVICE);
+    scheduler.onCycleComplete(NEW_DEVICE);
+    ScanDutyCycleStats stats = scheduler.getStats();
+    assertEquals(4, stats.getCycleCount());
+    assertEquals(2, stats.getLengthenedCount());
+    assertEquals(1, stats.getShortenedCount());
+    assertEquals(0.5, stats.getDutyCycle());
+  }
+}
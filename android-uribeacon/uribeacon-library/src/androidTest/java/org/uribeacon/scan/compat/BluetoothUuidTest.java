@@ -0,0 +1,75 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.scan.compat;
+
+import android.os.ParcelUuid;
+import android.test.AndroidTestCase;
+
+/**
+ * Unit tests for the {@link org.uribeacon.scan.compat.BluetoothUuid} class.
+ */
+public class BluetoothUuidTest extends AndroidTestCase {
+
+  private static final ParcelUuid URI_SERVICE_UUID =
+      ParcelUuid.fromString("0000FED8-0000-1000-8000-00805F9B34FB");
+
+  public void testParse16BitUuid() {
+    ParcelUuid uuid = BluetoothUuid.parseUuidFrom(new byte[] {(byte) 0xd8, (byte) 0xfe});
+    assertEquals(URI_SERVICE_UUID, uuid);
+    assertSame(uuid, BluetoothUuid.parseUuidFrom(new byte[] {(byte) 0xd8, (byte) 0xfe}));
+    assertSame(uuid, BluetoothUuid.get16BitUuid(0xfed8));
+  }
+
+  public void testParseInPlace() {
+    byte[] bytes = {0x16, (byte) 0xd8, (byte) 0xfe, 0x00};
+    assertSame(BluetoothUuid.get16BitUuid(0xfed8), BluetoothUuid.parseUuidFrom(bytes, 1, 2));
+  }
+
+  public void testParse32BitUuid() {
+    assertEquals(ParcelUuid.fromString("F000FED8-0000-1000-8000-00805F9B34FB"),
+        BluetoothUuid.parseUuidFrom(new byte[] {(byte) 0xd8, (byte) 0xfe, 0x00, (byte) 0xf0}));
+  }
+
+  public void testParse128BitUuid() {
+    byte[] bytes = {
+        (byte) 0xfb, 0x34, (byte) 0x9b, 0x5f, (byte) 0x80, 0x00, 0x00, (byte) 0x80,
+        0x00, 0x10, 0x00, 0x00, (byte) 0xd8, (byte) 0xfe, 0x00, 0x00};
+    assertEquals(URI_SERVICE_UUID, BluetoothUuid.parseUuidFrom(bytes));
+  }
+
+  public void testGet16BitUuid() {
+    assertEquals(BluetoothUuid.BASE_UUID, BluetoothUuid.get16BitUuid(0));
+    assertEquals(BluetoothUuid.AudioSink, BluetoothUuid.get16BitUuid(0x110b));
+    assertEquals(0xffff,
+        BluetoothUuid.getServiceIdentifierFromParcelUuid(BluetoothUuid.get16BitUuid(0xffff)));
+    try {
+      BluetoothUuid.get16BitUuid(0x10000);
+      fail("Should have failed");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  public void testInvalidLength() {
+    try {
+      BluetoothUuid.parseUuidFrom(new byte[3]);
+      fail("Should have failed");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.uribeacon.scan.compat;
+
+import android.test.AndroidTestCase;
+
+import org.uribeacon.scan.util.Clock;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for the {@link BootTimeOffset} class.
+ */
+public class BootTimeOffsetTest extends AndroidTestCase {
+
+  private static final long REFRESH_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+  private CountingClock clock;
+  private BootTimeOffset offset;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    clock = new CountingClock();
+    offset = new BootTimeOffset(clock, REFRESH_NANOS);
+  }
+
+  public void testConvertsWithoutReadingClocks() {
+    clock.bootTimeMillis = 5000;
+    clock.elapsedNanos = TimeUnit.SECONDS.toNanos(10);
+    assertEquals(TimeUnit.MILLISECONDS.toNanos(5000) + 42, offset.toEpochNanos(42));
+    assertEquals(1, clock.reads);
+    for (int i = 0; i < 100; i++) {
+      offset.toEpochNanos(TimeUnit.SECONDS.toNanos(10) + i);
+    }
+    assertEquals(1, clock.reads);
+  }
+
+  public void testRefreshesAfterInterval() {
+    clock.bootTimeMillis = 5000;
+    offset.toEpochNanos(0);
+
+    // The wall clock is adjusted; the old offset is used until the refresh interval passes.
+    clock.bootTimeMillis = 7000;
+    clock.elapsedNanos = REFRESH_NANOS;
+    assertEquals(TimeUnit.MILLISECONDS.toNanos(5000) + REFRESH_NANOS - 1,
+        offset.toEpochNanos(REFRESH_NANOS - 1));
+    assertEquals(TimeUnit.MILLISECONDS.toNanos(7000) + REFRESH_NANOS,
+        offset.toEpochNanos(REFRESH_NANOS));
+    assertEquals(2, clock.reads);
+  }
+
+  // A clock whose wall time is bootTimeMillis plus the elapsed time.
+  private static class CountingClock implements Clock {
+    long bootTimeMillis;
+    long elapsedNanos;
+    int reads;
+
+    @Override
+    public long currentTimeMillis() {
+      reads++;
+      return bootTimeMillis + TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+    }
+
+    @Override
+    public long elapsedRealtimeNanos() {
+      return elapsedNanos;
+    }
+  }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.scan.compat;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.os.ParcelUuid;
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Unit tests for the {@link CompiledScanFilterSet} class.
+ */
+public class CompiledScanFilterSetTest extends AndroidTestCase {
+
+  private static final String ADDRESS = "00:11:22:33:AA:BB";
+  private static final String OTHER_ADDRESS = "00:11:22:33:AA:CC";
+  private static final byte[] SCAN_RECORD = {
+      0x02, 0x01, 0x1a, // advertising flags
+      0x04, 0x09, 0x50, 0x65, 0x64, // name
+      0x05, 0x16, 0x0b, 0x11, 0x50, 0x64, // 16-bit service data
+      0x05, (byte) 0xff, (byte) 0xe0, 0x00, 0x02, 0x15, // manufacturer specific data
+  };
+
+  private BluetoothDevice mDevice;
+  private ScanResult mScanResult;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    mDevice = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(ADDRESS);
+    mScanResult = new ScanResult(mDevice, ScanRecord.parseFromBytes(SCAN_RECORD), -10, 0);
+  }
+
+  public void testNoFiltersMatchesAll() {
+    assertTrue(CompiledScanFilterSet.compile(null).matches(mScanResult));
+    CompiledScanFilterSet filters =
+        CompiledScanFilterSet.compile(Collections.<ScanFilter>emptyList());
+    assertEquals(0, filters.size());
+    assertTrue(filters.matches(mScanResult));
+  }
+
+  public void testAddress() {
+    assertTrue(compile(new ScanFilter.Builder().setDeviceAddress(ADDRESS).build())
+        .matches(mScanResult));
+    assertFalse(compile(new ScanFilter.Builder().setDeviceAddress(OTHER_ADDRESS).build())
+        .matches(mScanResult));
+  }
+
+  public void testServiceData() {
+    ParcelUuid uuid = ParcelUuid.fromString("0000110B-0000-1000-8000-00805F9B34FB");
+    assertTrue(compile(new ScanFilter.Builder().setServiceData(uuid, new byte[] {0x50}).build())
+        .matches(mScanResult));
+    assertFalse(compile(new ScanFilter.Builder().setServiceData(uuid, new byte[] {0x51}).build())
+        .matches(mScanResult));
+    ParcelUuid otherUuid = ParcelUuid.fromString("0000110C-0000-1000-8000-00805F9B34FB");
+    assertFalse(compile(new ScanFilter.Builder().setServiceData(otherUuid, new byte[0]).build())
+        .matches(mScanResult));
+  }
+
+  public void testManufacturerData() {
+    assertTrue(compile(new ScanFilter.Builder().setManufacturerData(0xe0, new byte[] {0x02})
+        .build()).matches(mScanResult));
+    assertFalse(compile(new ScanFilter.Builder().setManufacturerData(0xe1, new byte[0])
+        .build()).matches(mScanResult));
+  }
+
+  public void testUnbucketed() {
+    assertTrue(compile(new ScanFilter.Builder().setDeviceName("Ped").build())
+        .matches(mScanResult));
+    assertFalse(compile(new ScanFilter.Builder().setDeviceName("Pem").build())
+        .matches(mScanResult));
+  }
+
+  public void testBucketedFilterMustStillMatchAllFields() {
+    // The address picks the bucket, but the name must match too.
+    assertFalse(compile(new ScanFilter.Builder().setDeviceAddress(ADDRESS).setDeviceName("Pem")
+        .build()).matches(mScanResult));
+  }
+
+  public void testManyFiltersMatchSameAsEachFilter() {
+    List<ScanFilter> filters = new ArrayList<ScanFilter>();
+    for (int i = 0; i < 100; i++) {
+      filters.add(new ScanFilter.Builder().setManufacturerData(0x100 + i, new byte[0]).build());
+      filters.add(new ScanFilter.Builder()
+          .setServiceData(BluetoothUuid.get16BitUuid(0x2000 + i), new byte[0]).build());
+    }
+    CompiledScanFilterSet compiled = CompiledScanFilterSet.compile(filters);
+    assertEquals(200, compiled.size());
+    assertFalse(compiled.matches(mScanResult));
+
+    filters.add(new ScanFilter.Builder().setManufacturerData(0xe0, new byte[0]).build());
+    assertTrue(CompiledScanFilterSet.compile(filters).matches(mScanResult));
+  }
+
+  public void testRawAdvertisement() {
+    List<ScanFilter> filters = Arrays.asList(
+        new ScanFilter.Builder().setDeviceAddress(OTHER_ADDRESS).build(),
+        new ScanFilter.Builder().setManufacturerData(0xe1, new byte[0]).build(),
+        new ScanFilter.Builder()
+            .setServiceData(BluetoothUuid.get16BitUuid(0x110c), new byte[0]).build());
+    CompiledScanFilterSet compiled = CompiledScanFilterSet.compile(filters);
+    assertFalse(compiled.matches(SCAN_RECORD, ADDRESS));
+    assertTrue(compiled.matches(SCAN_RECORD, OTHER_ADDRESS));
+
+    for (ScanFilter filter : Arrays.asList(
+        new ScanFilter.Builder().setManufacturerData(0xe0, new byte[] {0x02}).build(),
+        new ScanFilter.Builder()
+            .setServiceData(BluetoothUuid.get16BitUuid(0x110b), new byte[] {0x50}).build(),
+        new ScanFilter.Builder().setDeviceName("Ped").build())) {
+      List<ScanFilter> withMatch = new ArrayList<ScanFilter>(filters);
+      withMatch.add(filter);
+      assertTrue(filter.toString(),
+          CompiledScanFilterSet.compile(withMatch).matches(SCAN_RECORD, ADDRESS));
+    }
+    assertTrue(CompiledScanFilterSet.compile(null).matches(SCAN_RECORD, ADDRESS));
+  }
+
+  public void testEqualFiltersAreKeptOnce() {
+    ScanFilter name = new ScanFilter.Builder().setDeviceName("Ped").build();
+    ScanFilter manufacturer =
+        new ScanFilter.Builder().setManufacturerData(0xe0, new byte[] {0x02}).build();
+    ScanFilter otherManufacturer =
+        new ScanFilter.Builder().setManufacturerData(0xe1, new byte[0]).build();
+    CompiledScanFilterSet compiled = compile(name, manufacturer, otherManufacturer,
+        new ScanFilter.Builder().setDeviceName("Ped").build(),
+        new ScanFilter.Builder().setManufacturerData(0xe0, new byte[] {0x02}).build());
+    assertEquals(3, compiled.size());
+    assertEquals(0, compiled.indexOf(name));
+    assertEquals(1, compiled.indexOf(
+        new ScanFilter.Builder().setManufacturerData(0xe0, new byte[] {0x02}).build()));
+    assertEquals(-1, compiled.indexOf(new ScanFilter.Builder().setDeviceName("Pem").build()));
+
+    BitSet matched = new BitSet();
+    compiled.matchAll(mScanResult, matched);
+    assertTrue(matched.get(compiled.indexOf(name)));
+    assertTrue(matched.get(compiled.indexOf(manufacturer)));
+    assertFalse(matched.get(compiled.indexOf(otherManufacturer)));
+  }
+
+  private static CompiledScanFilterSet compile(ScanFilter... filters) {
+    return CompiledScanFilterSet.compile(Arrays.asList(filters));
+  }
+}
@@ -18,13 +18,13 @@ package org.uribeacon.scan.compat;
 
 import static android.content.Context.ALARM_SERVICE;
 import static android.content.Context.BLUETOOTH_SERVICE;
-import static android.test.MoreAsserts.assertEmpty;
 import static org.uribeacon.scan.compat.JbBluetoothLeScannerCompat.BALANCED_ACTIVE_MILLIS;
 import static org.uribeacon.scan.compat.JbBluetoothLeScannerCompat.BALANCED_IDLE_MILLIS;
 import static org.uribeacon.scan.compat.JbBluetoothLeScannerCompat.LOW_LATENCY_ACTIVE_MILLIS;
 import static org.uribeacon.scan.compat.JbBluetoothLeScannerCompat.LOW_LATENCY_IDLE_MILLIS;
 import static org.uribeacon.scan.compat.JbBluetoothLeScannerCompat.LOW_POWER_ACTIVE_MILLIS;
 import static org.uribeacon.scan.compat.JbBluetoothLeScannerCompat.LOW_POWER_IDLE_MILLIS;
+import static org.uribeacon.scan.compat.JbBluetoothLeScannerCompat.MAX_RECENT_SIGHTINGS;
 import static org.uribeacon.scan.compat.JbBluetoothLeScannerCompat.SCAN_LOST_CYCLES;
 import static org.uribeacon.scan.compat.ScanSettings.CALLBACK_TYPE_ALL_MATCHES;
 import static org.uribeacon.scan.compat.ScanSettings.CALLBACK_TYPE_FIRST_MATCH;
@@ -43,10 +43,13 @@ import org.uribeacon.scan.compat.ScanFilter;
 import org.uribeacon.scan.compat.ScanRecord;
 import org.uribeacon.scan.compat.ScanResult;
 import org.uribeacon.scan.compat.ScanSettings;
+import org.uribeacon.beacon.UriBeacon;
 import org.uribeacon.scan.testing.FakeClock;
+import org.uribeacon.scan.testing.SyntheticBeaconGenerator;
 
 import android.app.AlarmManager;
 import android.app.PendingIntent;
+import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothManager;
 import android.test.AndroidTestCase;
 
@@ -54,7 +57,10 @@ import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -316,7 +322,7 @@ public class JbBluetoothLeScannerCompatTest extends AndroidTestCase {
     clock.advance(10);
     scanner.onScanCycleComplete();
     assertEquals(1, callback.lost);
-    assertEmpty(scanner.recentScanResults);
+    assertEquals(0, scanner.recentSightings.size());
   }
   
   public void testSetScanLostOverride() {
@@ -343,7 +349,7 @@ public class JbBluetoothLeScannerCompatTest extends AndroidTestCase {
     clock.advance(10);
     scanner.onScanCycleComplete();
     assertEquals(1, callback.lost);
-    assertEmpty(scanner.recentScanResults);
+    assertEquals(0, scanner.recentSightings.size());
   }
 
   /**
@@ -489,6 +495,310 @@ public class JbBluetoothLeScannerCompatTest extends AndroidTestCase {
     assertEquals(1, callback.found);
   }
 
+  /**
+   * Test new registrations get recent sightings that no client matched when they were seen.
+   */
+  public void testNewListenersGetPastUnmatchedSightings() {
+    final AdvertisementSource.Listener[] listener = new AdvertisementSource.Listener[1];
+    scanner = new JbBluetoothLeScannerCompat(new AdvertisementSource() {
+      @Override
+      public boolean start(Listener advertisementListener) {
+        listener[0] = advertisementListener;
+        return true;
+      }
+
+      @Override
+      public void stop(Listener advertisementListener) {
+      }
+    }, alarmManager, clock, null /* pending intent */, ScanDeliveryQueue.DIRECT_EXECUTOR);
+    scanner.setCustomScanTiming(1, 1000, 0);
+    scanner.startScan(BERT_FILTER, FOUND, callback);
+    scanner.blockingScanCycle();
+
+    listener[0].onAdvertisement(null /* BluetoothDevice */, "Ernie", 0 /* rssi */,
+        localNameRecord("Ernie"));
+    assertEquals(0, callback.found);
+    assertEquals(1, scanner.recentSightings.size());
+
+    TestingCallback ernieCallback = new TestingCallback();
+    scanner.startScan(ERNIE_FILTER, FOUND, ernieCallback);
+    assertEquals(1, ernieCallback.found);
+    assertEquals(0, callback.found);
+  }
+
+  /**
+   * Test a client blocked in its callback does not hold up registrations.
+   */
+  public void testSlowClientDoesNotBlockRegistration() throws InterruptedException {
+    final CountDownLatch inCallback = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    scanner.startScan(NO_FILTER, FOUND, new TestingCallback() {
+      @Override
+      public void onScanResult(int callbackType, ScanResult result) {
+        inCallback.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+    Thread delivery = new Thread() {
+      @Override
+      public void run() {
+        onScan("address", nowMillis());
+      }
+    };
+    delivery.start();
+    assertTrue(inCallback.await(5, TimeUnit.SECONDS));
+
+    // The delivery is stuck in the callback, but clients can still come and go.
+    assertTrue(scanner.startScan(BERT_FILTER, FOUND, callback));
+    scanner.stopScan(callback);
+
+    release.countDown();
+    delivery.join(5000);
+    assertFalse(delivery.isAlive());
+  }
+
+  public void testDeliveryStats() {
+    assertNull(scanner.getDeliveryStats(callback));
+    ScanSettings settings = builder()
+        .setCallbackType(ScanSettings.CALLBACK_TYPE_ALL_MATCHES)
+        .setDeliveryQueue(1, ScanSettings.DELIVERY_OVERFLOW_DROP_NEWEST)
+        .build();
+    scanner.startScan(NO_FILTER, settings, callback);
+    onScan("address", nowMillis());
+    onScan("address", nowMillis());
+
+    ScanDeliveryStats stats = scanner.getDeliveryStats(callback);
+    assertEquals(2, stats.getDeliveredCount());
+    assertEquals(0, stats.getDroppedCount());
+    assertEquals(0, stats.getQueueDepth());
+    assertEquals(1, callback.found);
+    assertEquals(1, callback.updated);
+
+    scanner.stopScan(callback);
+    assertNull(scanner.getDeliveryStats(callback));
+  }
+
+  public void testBatchReportedAfterDelay() {
+    ScanSettings settings = builder().setReportDelayMillis(5000).build();
+    scanner.startScan(NO_FILTER, settings, callback);
+    onScan("address", nowMillis());
+    onScan("address", nowMillis());
+    scanner.onScanCycleComplete();
+    assertEquals(0, callback.batched);
+
+    clock.advance(5000);
+    scanner.onScanCycleComplete();
+    assertEquals(2, callback.batched);
+    assertEquals(0, callback.found);
+    assertEquals(0, callback.updated);
+
+    // Nothing new to report.
+    clock.advance(5000);
+    scanner.onScanCycleComplete();
+    assertEquals(2, callback.batched);
+  }
+
+  public void testBatchReportedWhenFull() {
+    ScanSettings settings = builder()
+        .setReportDelayMillis(5000)
+        .setReportBatching(3, false)
+        .build();
+    scanner.startScan(NO_FILTER, settings, callback);
+    onScan("address", nowMillis());
+    onScan("address", nowMillis());
+    assertEquals(0, callback.batched);
+    onScan("address", nowMillis());
+    assertEquals(3, callback.batched);
+  }
+
+  public void testBatchLatestPerAddress() {
+    final List<ScanResult> batch = new ArrayList<ScanResult>();
+    ScanSettings settings = builder()
+        .setReportDelayMillis(5000)
+        .setReportBatching(2, true)
+        .build();
+    scanner.startScan(NO_FILTER, settings, new TestingCallback() {
+      @Override
+      public void onBatchScanResults(List<ScanResult> scans) {
+        batch.addAll(scans);
+      }
+    });
+    onScan("address1", nowMillis());
+    clock.advance(1);
+    onScan("address1", nowMillis());
+    clock.advance(1);
+    // A single device never fills the batch.
+    assertTrue(batch.isEmpty());
+    onScan("address2", nowMillis());
+    assertEquals(2, batch.size());
+    assertEquals(TimeUnit.MILLISECONDS.toNanos(nowMillis() - 1), batch.get(0).getTimestampNanos());
+  }
+
+  public void testCoalescingWindow() {
+    final List<ScanResult> updates = new ArrayList<ScanResult>();
+    ScanSettings settings = builder()
+        .setCallbackType(ScanSettings.CALLBACK_TYPE_ALL_MATCHES)
+        .setCoalescingWindowMillis(1000)
+        .build();
+    TestingCallback coalesced = new TestingCallback() {
+      @Override
+      public void onScanResult(int callbackType, ScanResult result) {
+        super.onScanResult(callbackType, result);
+        if (callbackType == ScanSettings.CALLBACK_TYPE_ALL_MATCHES) {
+          updates.add(result);
+        }
+      }
+    };
+    scanner.startScan(NO_FILTER, settings, coalesced);
+    // A beacon advertising at 10 Hz.
+    for (int i = 0; i < 15; i++) {
+      onScan("address", nowMillis());
+      clock.advance(100);
+    }
+    assertEquals(1, coalesced.found);
+    assertEquals(1, updates.size());
+    assertEquals(10, updates.get(0).getSightingCount());
+
+    // The end of the scan cycle releases the rest.
+    scanner.onScanCycleComplete();
+    assertEquals(2, updates.size());
+    assertEquals(4, updates.get(1).getSightingCount());
+  }
+
+  public void testPerClientLostTimeout() {
+    TestingCallback quick = new TestingCallback();
+    scanner.setScanLostOverride(10000);
+    scanner.startScan(NO_FILTER, LOST, callback);
+    scanner.startScan(NO_FILTER,
+        builder().setCallbackType(CALLBACK_TYPE_MATCH_LOST).setLostTimeoutMillis(2000).build(),
+        quick);
+    onScan("address", nowMillis());
+
+    clock.advance(2001);
+    scanner.onScanCycleComplete();
+    assertEquals(1, quick.lost);
+    assertEquals(0, callback.lost);
+    // Still known to the scanner, for new clients.
+    assertEquals(1, scanner.recentSightings.size());
+
+    clock.advance(8000);
+    scanner.onScanCycleComplete();
+    assertEquals(1, quick.lost);
+    assertEquals(1, callback.lost);
+    assertEquals(0, scanner.recentSightings.size());
+  }
+
+  /**
+   * Test the least recently seen device is evicted, and lost, once too many are seen.
+   */
+  public void testRecentSightingsAreCapped() {
+    scanner.startScan(NO_FILTER, LOST, callback);
+    for (int i = 0; i <= MAX_RECENT_SIGHTINGS; i++) {
+      onScan("address" + i, nowMillis());
+    }
+    ScanSightingStats stats = scanner.getSightingStats();
+    assertEquals(MAX_RECENT_SIGHTINGS, stats.getSize());
+    assertEquals(MAX_RECENT_SIGHTINGS, stats.getCapacity());
+    assertEquals(MAX_RECENT_SIGHTINGS, stats.getPeakSize());
+    assertEquals(1, stats.getEvictionCount());
+    assertEquals(1, callback.lost);
+
+    // The evicted device is not lost a second time when its timeout passes.
+    clock.advance(nowMillis() - scanner.getLostTimestampMillis() + 1);
+    scanner.onScanCycleComplete();
+    assertEquals(MAX_RECENT_SIGHTINGS + 1, callback.lost);
+    assertEquals(0, scanner.getSightingStats().getSize());
+    assertEquals(MAX_RECENT_SIGHTINGS, scanner.getSightingStats().getPeakSize());
+  }
+
+  public void testAdaptiveScanTiming() {
+    System.setProperty("dexmaker.dexcache", getContext().getCacheDir().getPath());
+    MockitoAnnotations.initMocks(this);
+    scanner = new JbBluetoothLeScannerCompat(
+        bluetoothManager, alarmManagerMock, clock, null /* pending intent */);
+
+    scanner.startScan(NO_FILTER, FOUND, callback);
+    scanner.setAdaptiveScanTiming(1000, 2000, 20000);
+    assertEquals(1000, scanner.getScanActiveMillis());
+    assertEquals(2000, scanner.getScanIdleMillis());
+    // The running alarm is re-armed to start the next cycle after the idle time.
+    verify(alarmManagerMock).setRepeating(eq(AlarmManager.RTC_WAKEUP),
+        eq(clock.currentTimeMillis() + 2000), eq(3000L), any(PendingIntent.class));
+
+    // Nothing around: the scanner idles longer and longer.
+    clock.advance(1000);
+    scanner.onScanCycleComplete();
+    assertEquals(3000, scanner.getScanIdleMillis());
+    verify(alarmManagerMock).setRepeating(eq(AlarmManager.RTC_WAKEUP),
+        eq(clock.currentTimeMillis() + 3000), eq(4000L), any(PendingIntent.class));
+    clock.advance(4000);
+    scanner.onScanCycleComplete();
+    assertEquals(4500, scanner.getScanIdleMillis());
+    verify(alarmManagerMock).setRepeating(eq(AlarmManager.RTC_WAKEUP),
+        eq(clock.currentTimeMillis() + 4500), eq(5500L), any(PendingIntent.class));
+
+    // A new beacon brings fast discovery back.
+    clock.advance(5500);
+    onScan("address", nowMillis());
+    scanner.onScanCycleComplete();
+    assertEquals(2000, scanner.getScanIdleMillis());
+    verify(alarmManagerMock).setRepeating(eq(AlarmManager.RTC_WAKEUP),
+        eq(clock.currentTimeMillis() + 2000), eq(3000L), any(PendingIntent.class));
+
+    ScanDutyCycleStats stats = scanner.getDutyCycleStats();
+    assertEquals(3, stats.getCycleCount());
+    assertEquals(2, stats.getLengthenedCount());
+    assertEquals(1, stats.getShortenedCount());
+    assertEquals(1.0 / 3, stats.getDutyCycle(), 1e-9);
+
+    // The global override supersedes adaptive timing.
+    scanner.setCustomScanTiming(500, 500, 0);
+    assertEquals(0.5, scanner.getDutyCycleStats().getDutyCycle());
+    scanner.setCustomScanTiming(-1, 0, 0);
+    assertEquals(2000, scanner.getScanIdleMillis());
+
+    // Back to the timing of the client's scan mode.
+    scanner.setAdaptiveScanTiming(-1, 0, 0);
+    assertEquals(LOW_POWER_IDLE_MILLIS, scanner.getScanIdleMillis());
+  }
+
+  public void testSyntheticLoad() {
+    final Set<String> uriBeaconAddresses = new HashSet<String>();
+    SyntheticBeaconGenerator generator = new SyntheticBeaconGenerator.Builder()
+        .setBeaconCount(1000)
+        .setUriBeaconFraction(0.5)
+        .setAdvertisingIntervalMillis(100, 1000)
+        .setAddressRandomization(0.2, 5000)
+        .setMeanLifetimeMillis(20000)
+        .setClock(clock)
+        .build();
+    List<ScanFilter> uriBeaconFilter = new ArrayList<ScanFilter>();
+    uriBeaconFilter.add(
+        new ScanFilter.Builder().setServiceData(UriBeacon.URI_SERVICE_UUID, new byte[0]).build());
+    scanner.startScan(uriBeaconFilter, FOUND, callback);
+
+    int count = generator.generate(10000, new AdvertisementSource.Listener() {
+      @Override
+      public void onAdvertisement(
+          BluetoothDevice device, String address, int rssi, byte[] scanRecord) {
+        ScanRecord record = ScanRecord.parseFromBytes(scanRecord);
+        if (record.getServiceData(UriBeacon.URI_SERVICE_UUID) != null) {
+          uriBeaconAddresses.add(address);
+        }
+        scanner.onScanResult(address, new ScanResult(device, record, rssi,
+            TimeUnit.MILLISECONDS.toNanos(nowMillis())));
+      }
+    });
+
+    assertEquals(count, generator.getAdvertisementCount());
+    assertEquals(uriBeaconAddresses.size(), callback.found);
+    assertEquals(callback.found, scanner.getDeliveryStats(callback).getDeliveredCount());
+  }
+
   /////////////////////////////////////////////////////////////////////////////
 
   private static class TestingCallback extends ScanCallback {
@@ -522,20 +832,24 @@ public class JbBluetoothLeScannerCompatTest extends AndroidTestCase {
   }
 
   private void onScan(String address, long timeMillis) {
-    byte[] addressBytes = address.getBytes();
-    byte[] scanRecordBytes = new byte[addressBytes.length + 2];
-    scanRecordBytes[0] = (byte) (addressBytes.length + 1);
-    scanRecordBytes[1] = 0x09; // Value of private ScanRecord.DATA_TYPE_LOCAL_NAME_COMPLETE;
-    System.arraycopy(addressBytes, 0, scanRecordBytes, 2, addressBytes.length);
-
     scanner.onScanResult(address,
         new ScanResult(
             null /* BluetoothDevice */,
-            ScanRecord.parseFromBytes(scanRecordBytes),
+            ScanRecord.parseFromBytes(localNameRecord(address)),
             0 /* rssi */,
             TimeUnit.MILLISECONDS.toNanos(timeMillis)));
   }
 
+  // Returns an advertisement with the complete local name {@code name}.
+  private static byte[] localNameRecord(String name) {
+    byte[] nameBytes = name.getBytes();
+    byte[] scanRecordBytes = new byte[nameBytes.length + 2];
+    scanRecordBytes[0] = (byte) (nameBytes.length + 1);
+    scanRecordBytes[1] = 0x09; // Value of private ScanRecord.DATA_TYPE_LOCAL_NAME_COMPLETE;
+    System.arraycopy(nameBytes, 0, scanRecordBytes, 2, nameBytes.length);
+    return scanRecordBytes;
+  }
+
   private long nowMillis() {
     return clock.currentTimeMillis();
   }
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.uribeacon.scan.compat;
+
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Unit tests for the {@link LostTimingWheel} class.
+ */
+public class LostTimingWheelTest extends AndroidTestCase {
+
+  private static final long START_MILLIS = 1000000;
+
+  private LostTimingWheel<String> wheel;
+  private List<String> expired;
+  private LostTimingWheel.Listener<String> listener;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    wheel = new LostTimingWheel<String>(100, 16, 1000, START_MILLIS);
+    expired = new ArrayList<String>();
+    listener = new LostTimingWheel.Listener<String>() {
+      @Override
+      public void onExpired(String address, String sighting) {
+        expired.add(address + "=" + sighting);
+      }
+    };
+  }
+
+  public void testSlotCountMustBePowerOfTwo() {
+    try {
+      new LostTimingWheel<String>(100, 12, 1000, START_MILLIS);
+      fail("Should have failed");
+    } catch (IllegalArgumentException e) {
+      // Expected.
+    }
+  }
+
+  public void testExpiresAfterTimeout() {
+    wheel.touch("a", START_MILLIS, "1");
+    wheel.touch("b", START_MILLIS + 500, "2");
+    wheel.advance(START_MILLIS + 1000, listener);
+    assertTrue(expired.isEmpty());
+
+    wheel.advance(START_MILLIS + 1001, listener);
+    assertEquals("[a=1]", expired.toString());
+    assertEquals(1, wheel.size());
+
+    wheel.advance(START_MILLIS + 1501, listener);
+    assertEquals("[a=1, b=2]", expired.toString());
+    assertEquals(0, wheel.size());
+  }
+
+  public void testTouchPostponesExpiry() {
+    assertTrue(wheel.touch("a", START_MILLIS, "1"));
+    assertFalse(wheel.touch("a", START_MILLIS + 800, "2"));
+    wheel.advance(START_MILLIS + 1500, listener);
+    assertTrue(expired.isEmpty());
+    wheel.advance(START_MILLIS + 1801, listener);
+    assertEquals("[a=2]", expired.toString());
+  }
+
+  public void testOldSightingExpiresOnNextAdvance() {
+    wheel.touch("a", START_MILLIS - 5000, "1");
+    wheel.advance(START_MILLIS, listener);
+    assertEquals("[a=1]", expired.toString());
+  }
+
+  public void testDeadlineBeyondOneRotation() {
+    // 16 slots of 100 milliseconds turn in 1.6 seconds.
+    wheel.setTimeoutMillis(5000);
+    wheel.touch("a", START_MILLIS, "1");
+    for (long now = START_MILLIS; now <= START_MILLIS + 5000; now += 100) {
+      wheel.advance(now, listener);
+      assertTrue(expired.isEmpty());
+    }
+    wheel.advance(START_MILLIS + 5100, listener);
+    assertEquals("[a=1]", expired.toString());
+  }
+
+  public void testLongGapBetweenAdvances() {
+    wheel.touch("a", START_MILLIS, "1");
+    wheel.advance(START_MILLIS + 60000, listener);
+    assertEquals("[a=1]", expired.toString());
+  }
+
+  public void testShorterTimeout() {
+    wheel.touch("a", START_MILLIS, "1");
+    wheel.setTimeoutMillis(200);
+    wheel.advance(START_MILLIS + 201, listener);
+    assertEquals("[a=1]", expired.toString());
+  }
+
+  public void testLongerTimeout() {
+    wheel.touch("a", START_MILLIS, "1");
+    wheel.setTimeoutMillis(3000);
+    wheel.advance(START_MILLIS + 1001, listener);
+    assertTrue(expired.isEmpty());
+    wheel.advance(START_MILLIS + 3001, listener);
+    assertEquals("[a=1]", expired.toString());
+  }
+
+  public void testRemove() {
+    wheel.touch("a", START_MILLIS, "1");
+    assertTrue(wheel.remove("a"));
+    assertFalse(wheel.remove("a"));
+    wheel.advance(START_MILLIS + 2000, listener);
+    assertTrue(expired.isEmpty());
+    assertEquals(0, wheel.size());
+  }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.uribeacon.scan.compat;
+
+import android.test.AndroidTestCase;
+
+import java.util.List;
+
+/**
+ * Unit tests for the {@link RecentSightings} class.
+ */
+public class RecentSightingsTest extends AndroidTestCase {
+
+  private static final byte[] SCAN_RECORD = {0x04, 0x09, 0x50, 0x65, 0x64};
+
+  private RecentSightings sightings;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    sightings = new RecentSightings(2);
+  }
+
+  public void testEvictsLeastRecentlySeen() {
+    assertNull(sightings.put(sighting("a", 1)));
+    assertNull(sightings.put(sighting("b", 2)));
+    // Seeing "a" again makes "b" the least recent.
+    assertNull(sightings.put(sighting("a", 3)));
+    RecentSightings.Sighting evicted = sightings.put(sighting("c", 4));
+    assertEquals("b", evicted.address);
+    assertEquals(2, sightings.size());
+    assertEquals(1, sightings.getEvictionCount());
+    assertEquals(2, sightings.getPeakSize());
+
+    List<RecentSightings.Sighting> snapshot = sightings.snapshot();
+    assertEquals("a", snapshot.get(0).address);
+    assertEquals("c", snapshot.get(1).address);
+  }
+
+  public void testRemoveIfNotNewer() {
+    sightings.put(sighting("a", 5));
+    assertFalse(sightings.removeIfNotNewer("a", 4));
+    assertEquals(1, sightings.size());
+    assertTrue(sightings.removeIfNotNewer("a", 5));
+    assertEquals(0, sightings.size());
+    assertTrue(sightings.removeIfNotNewer("a", 5));
+  }
+
+  public void testToScanResult() {
+    ScanResult result = sighting("a", 7).toScanResult();
+    assertEquals(-7, result.getRssi());
+    assertEquals(7, result.getTimestampNanos());
+    assertEquals("Ped", result.getScanRecord().getDeviceName());
+  }
+
+  private static RecentSightings.Sighting sighting(String address, long timestampNanos) {
+    return new RecentSightings.Sighting(address, new ScanResult(null /* BluetoothDevice */,
+        ScanRecord.parseFromBytes(SCAN_RECORD), -(int) timestampNanos, timestampNanos));
+  }
+}
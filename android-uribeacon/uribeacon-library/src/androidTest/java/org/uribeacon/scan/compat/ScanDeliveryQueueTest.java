@@ -0,0 +1,218 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.uribeacon.scan.compat;
+
+import android.test.AndroidTestCase;
+
+import org.uribeacon.scan.testing.FakeClock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Unit tests for the {@link ScanDeliveryQueue} class.
+ */
+public class ScanDeliveryQueueTest extends AndroidTestCase {
+
+  private FakeClock clock;
+  // Drain tasks waiting to run, as if the client were busy.
+  private List<Runnable> pendingTasks;
+  private Executor executor;
+  private List<String> delivered;
+  private ScanCallback callback;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    clock = new FakeClock();
+    pendingTasks = new ArrayList<Runnable>();
+    executor = new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        pendingTasks.add(command);
+      }
+    };
+    delivered = new ArrayList<String>();
+    callback = new ScanCallback() {
+      @Override
+      public void onScanResult(int callbackType, ScanResult result) {
+        delivered.add(callbackType + ":" + result.getRssi());
+      }
+    };
+  }
+
+  public void testDeliversInOrder() {
+    ScanDeliveryQueue queue = queue(4, ScanSettings.DELIVERY_OVERFLOW_DROP_OLDEST);
+    queue.enqueue(ScanSettings.CALLBACK_TYPE_FIRST_MATCH, "a", result(1));
+    queue.enqueue(ScanSettings.CALLBACK_TYPE_ALL_MATCHES, "a", result(2));
+    // Only one drain is scheduled at a time.
+    assertEquals(1, pendingTasks.size());
+    assertEquals(2, queue.getStats().getQueueDepth());
+
+    clock.advance(5);
+    runPendingTasks();
+    assertEquals("[2:1, 1:2]", delivered.toString());
+    ScanDeliveryStats stats = queue.getStats();
+    assertEquals(0, stats.getQueueDepth());
+    assertEquals(2, stats.getMaxQueueDepth());
+    assertEquals(2, stats.getDeliveredCount());
+    assertEquals(5000000, stats.getMaxLatencyNanos());
+    assertEquals(5000000, stats.getMeanLatencyNanos());
+
+    queue.enqueue(ScanSettings.CALLBACK_TYPE_ALL_MATCHES, "a", result(3));
+    assertEquals(1, pendingTasks.size());
+  }
+
+  public void testDropOldest() {
+    ScanDeliveryQueue queue = queue(2, ScanSettings.DELIVERY_OVERFLOW_DROP_OLDEST);
+    queue.enqueue(ScanSettings.CALLBACK_TYPE_FIRST_MATCH, "a", result(1));
+    queue.enqueue(ScanSettings.CALLBACK_TYPE_ALL_MATCHES, "a", result(2));
+    queue.enqueue(ScanSettings.CALLBACK_TYPE_ALL_MATCHES, "a", result(3));
+    runPendingTasks();
+    // The first match is kept, the oldest update is dropped.
+    assertEquals("[2:1, 1:3]", delivered.toString());
+    assertEquals(1, queue.getStats().getDroppedCount());
+  }
+
+  public void testDropNewest() {
+    ScanDeliveryQueue queue = queue(2, ScanSettings.DELIVERY_OVERFLOW_DROP_NEWEST);
+    queue.enqueue(ScanSettings.CALLBACK_TYPE_ALL_MATCHES, "a", result(1));
+    queue.enqueue(ScanSettings.CALLBACK_TYPE_ALL_MATCHES, "b", result(2));
+    queue.enqueue(ScanSettings.CALLBACK_TYPE_ALL_MATCHES, "c", result(3));
+    runPendingTasks();
+    assertEquals("[1:1, 1:2]", delivered.toString());
+    assertEquals(1, queue.getStats().getDroppedCount());
+  }
+
+  public void testFoundAndLostGoOverCapacity() {
+    ScanDeliveryQueue queue = queue(1, ScanSettings.DELIVERY_OVERFLOW_DROP_NEWEST);
+    queue.enqueue(ScanSettings.CALLBACK_TYPE_FIRST_MATCH, "a", result(1));
+    runPendingTasks();
+    queue.enqueue(ScanSettings.CALLBACK_TYPE_FIRST_MATCH, "b", result(2));
+    queue.enqueue(ScanSettings.CALLBACK_TYPE_ALL_MATCHES, "a", result(3));
+    queue.enqueue(ScanSettings.CALLBACK_TYPE_MATCH_LOST, "a", result(4));
+    runPendingTasks();
+    assertEquals("[2:1, 2:2, 4:4]", delivered.toString());
+    assertEquals(1, queue.getStats().getDroppedCount());
+  }
+
+  public void testLostCollapsesQueuedFirstMatch() {
+    ScanDeliveryQueue queue = queue(8, ScanSettings.DELIVERY_OVERFLOW_DROP_OLDEST);
+    queue.enqueue(ScanSettings.CALLBACK_TYPE_ALL_MATCHES, "a", result(1));
+    queue.enqueue(ScanSettings.CALLBACK_TYPE_MATCH_LOST, "a", result(2));
+    queue.enqueue(ScanSettings.CALLBACK_TYPE_FIRST_MATCH, "a", result(3));
+    queue.enqueue(ScanSettings.CALLBACK_TYPE_FIRST_MATCH, "b", result(4));
+    queue.enqueue(ScanSettings.CALLBACK_TYPE_ALL_MATCHES, "a", result(5));
+    // The client never learned that a was found again.
+    queue.enqueue(ScanSettings.CALLBACK_TYPE_MATCH_LOST, "a", result(6));
+    assertEquals(3, queue.getStats().getQueueDepth());
+    runPendingTasks();
+    assertEquals("[1:1, 4:2, 2:4]", delivered.toString());
+    assertEquals(3, queue.getStats().getCoalescedCount());
+  }
+
+  public void testFoundAndLostFloodIsBounded() {
+    ScanDeliveryQueue queue = queue(4, ScanSettings.DELIVERY_OVERFLOW_DROP_OLDEST);
+    int hardCapacity = 4 * ScanDeliveryQueue.HARD_CAPACITY_FACTOR;
+    // Randomized addresses: each one found, then lost once delivered.
+    for (int i = 0; i < 100; i++) {
+      queue.enqueue(ScanSettings.CALLBACK_TYPE_FIRST_MATCH, "a" + i, result(i));
+      queue.enqueue(ScanSettings.CALLBACK_TYPE_ALL_MATCHES, "a" + i, result(i));
+      assertTrue(queue.getStats().getQueueDepth() <= hardCapacity);
+    }
+    ScanDeliveryStats stats = queue.getStats();
+    assertEquals(hardCapacity, stats.getMaxQueueDepth());
+    assertTrue(stats.getDroppedCount() > 0);
+
+    for (int i = 0; i < 100; i++) {
+      queue.enqueue(ScanSettings.CALLBACK_TYPE_MATCH_LOST, "b" + i, result(i));
+      assertTrue(queue.getStats().getQueueDepth() <= hardCapacity);
+    }
+    queue.enqueueBatch(new ArrayList<ScanResult>());
+    assertEquals(hardCapacity, queue.getStats().getMaxQueueDepth());
+    runPendingTasks();
+    assertEquals(hardCapacity, delivered.size());
+  }
+
+  public void testCoalesceByAddress() {
+    ScanDeliveryQueue queue = queue(2, ScanSettings.DELIVERY_OVERFLOW_COALESCE_BY_ADDRESS);
+    queue.enqueue(ScanSettings.CALLBACK_TYPE_FIRST_MATCH, "a", result(1));
+    queue.enqueue(ScanSettings.CALLBACK_TYPE_ALL_MATCHES, "b", result(2));
+    queue.enqueue(ScanSettings.CALLBACK_TYPE_ALL_MATCHES, "a", result(3));
+    queue.enqueue(ScanSettings.CALLBACK_TYPE_ALL_MATCHES, "b", result(4));
+    // A new device in a full queue drops the oldest update.
+    queue.enqueue(ScanSettings.CALLBACK_TYPE_ALL_MATCHES, "c", result(5));
+    runPendingTasks();
+    assertEquals("[2:3, 1:5]", delivered.toString());
+    ScanDeliveryStats stats = queue.getStats();
+    assertEquals(2, stats.getCoalescedCount());
+    assertEquals(1, stats.getDroppedCount());
+  }
+
+  public void testCoalesceDoesNotCrossLost() {
+    ScanDeliveryQueue queue = queue(4, ScanSettings.DELIVERY_OVERFLOW_COALESCE_BY_ADDRESS);
+    queue.enqueue(ScanSettings.CALLBACK_TYPE_ALL_MATCHES, "a", result(1));
+    queue.enqueue(ScanSettings.CALLBACK_TYPE_MATCH_LOST, "a", result(2));
+    queue.enqueue(ScanSettings.CALLBACK_TYPE_FIRST_MATCH, "a", result(3));
+    queue.enqueue(ScanSettings.CALLBACK_TYPE_ALL_MATCHES, "a", result(4));
+    runPendingTasks();
+    assertEquals("[1:1, 4:2, 2:4]", delivered.toString());
+  }
+
+  public void testClose() {
+    ScanDeliveryQueue queue = queue(4, ScanSettings.DELIVERY_OVERFLOW_DROP_OLDEST);
+    queue.enqueue(ScanSettings.CALLBACK_TYPE_FIRST_MATCH, "a", result(1));
+    queue.close();
+    queue.enqueue(ScanSettings.CALLBACK_TYPE_ALL_MATCHES, "a", result(2));
+    runPendingTasks();
+    assertTrue(delivered.isEmpty());
+  }
+
+  public void testCallbackExceptionDoesNotStopDelivery() {
+    ScanDeliveryQueue queue = new ScanDeliveryQueue(new ScanCallback() {
+      @Override
+      public void onScanResult(int callbackType, ScanResult result) {
+        delivered.add(callbackType + ":" + result.getRssi());
+        throw new RuntimeException("client failure");
+      }
+    }, settings(4, ScanSettings.DELIVERY_OVERFLOW_DROP_OLDEST), executor, clock);
+    queue.enqueue(ScanSettings.CALLBACK_TYPE_FIRST_MATCH, "a", result(1));
+    queue.enqueue(ScanSettings.CALLBACK_TYPE_FIRST_MATCH, "b", result(2));
+    runPendingTasks();
+    assertEquals(2, delivered.size());
+  }
+
+  private ScanDeliveryQueue queue(int capacity, int overflowPolicy) {
+    return new ScanDeliveryQueue(callback, settings(capacity, overflowPolicy), executor, clock);
+  }
+
+  private static ScanSettings settings(int capacity, int overflowPolicy) {
+    return new ScanSettings.Builder().setDeliveryQueue(capacity, overflowPolicy).build();
+  }
+
+  private void runPendingTasks() {
+    while (!pendingTasks.isEmpty()) {
+      pendingTasks.remove(0).run();
+    }
+  }
+
+  private static ScanResult result(int rssi) {
+    return new ScanResult(null /* BluetoothDevice */, null /* ScanRecord */, rssi, 0);
+  }
+}
@@ -30,6 +30,7 @@ import android.util.SparseArray;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Random;
 import java.util.UUID;
 
 /**
@@ -224,6 +225,113 @@ public class ScanFilterTest extends AndroidTestCase {
         assertMatches(filter, null, 0, scanRecord);
     }
 
+    public void testServiceData32BitUuid() {
+        byte[] scanRecord = new byte[] {
+            0x06, 0x20, (byte) 0xd8, (byte) 0xfe, 0x01, 0x00, 0x42, // 32-bit service data
+        };
+        ScanFilter filter = mFilterBuilder
+                .setServiceData(ParcelUuid.fromString("0001FED8-0000-1000-8000-00805F9B34FB"),
+                        new byte[] { 0x42 })
+                .build();
+        assertMatches(filter, null, 0, scanRecord);
+
+        filter = mFilterBuilder
+                .setServiceData(ParcelUuid.fromString("0000FED8-0000-1000-8000-00805F9B34FB"),
+                        new byte[] { 0x42 })
+                .build();
+        assertFalse(matches(filter, null, 0, scanRecord));
+    }
+
+    public void testEqualFiltersHaveEqualHashCodes() {
+        ScanFilter filter = mFilterBuilder
+                .setServiceData(SERVICE_DATA_UUID, new byte[] { 0x15 }, new byte[] { 0x1f })
+                .setManufacturerData(0xE0, new byte[] { 0x02 })
+                .build();
+        ScanFilter sameFilter = new ScanFilter.Builder()
+                .setServiceData(SERVICE_DATA_UUID, new byte[] { 0x15 }, new byte[] { 0x1f })
+                .setManufacturerData(0xE0, new byte[] { 0x02 })
+                .build();
+        assertEquals(filter, sameFilter);
+        assertEquals(filter.hashCode(), sameFilter.hashCode());
+    }
+
+    public void testRawAdvertisement() {
+        byte[] scanRecord = mScanResult.getScanRecord().getBytes();
+        assertTrue(mFilterBuilder.build().matches(scanRecord, null));
+        assertTrue(mFilterBuilder.setDeviceName("Ped").build().matches(scanRecord, null));
+        assertTrue(mFilterBuilder.setServiceUuid(
+                ParcelUuid.fromString("0000110A-0000-1000-8000-00805F9B34FB")).build()
+                .matches(scanRecord, null));
+        assertTrue(mFilterBuilder.setServiceData(
+                ParcelUuid.fromString("0000110B-0000-1000-8000-00805F9B34FB"),
+                new byte[] { 0x50 }).build().matches(scanRecord, null));
+        assertTrue(mFilterBuilder.setManufacturerData(0xE0, new byte[] { 0x02, 0x15 }).build()
+                .matches(scanRecord, null));
+
+        // Each criterion on its own fails the whole filter.
+        assertFalse(mFilterBuilder.setDeviceAddress("00:11:22:33:AA:BB").build()
+                .matches(scanRecord, "00:11:22:33:AA:CC"));
+        assertTrue(mFilterBuilder.build().matches(scanRecord, "00:11:22:33:AA:BB"));
+        assertFalse(mFilterBuilder.setManufacturerData(0xE0, new byte[] { 0x02, 0x16 }).build()
+                .matches(scanRecord, "00:11:22:33:AA:BB"));
+
+        // A malformed record has no fields, as when parsing.
+        byte[] truncated = new byte[] { 0x04, 0x09, 0x50, 0x65, 0x64, 0x05, 0x16, 0x0b };
+        assertFalse(new ScanFilter.Builder().setDeviceName("Ped").build()
+                .matches(truncated, null));
+        assertFalse(new ScanFilter.Builder().setDeviceName("Ped").build().matches(new ScanResult(
+                null /* device */, ScanRecord.wrap(truncated), -10, 1397545200000000L)));
+        assertTrue(new ScanFilter.Builder().build().matches(truncated, null));
+        assertFalse(new ScanFilter.Builder().setDeviceName("Ped").build().matches(null, null));
+        assertTrue(new ScanFilter.Builder().build().matches(null, null));
+    }
+
+    public void testRepeatedManufacturerIdUsesLastStructure() {
+        byte[] scanRecord = new byte[] {
+            0x05, (byte) 0xff, (byte) 0xe0, 0x00, 0x02, 0x15, // manufacturer specific data
+            0x05, (byte) 0xff, (byte) 0xe0, 0x00, 0x03, 0x16, // same manufacturer id
+        };
+        ScanResult result = new ScanResult(null /* device */,
+                ScanRecord.parseFromBytes(scanRecord), -10, 1397545200000000L);
+        ScanFilter first = mFilterBuilder.setManufacturerData(0xE0, new byte[] { 0x02 }).build();
+        ScanFilter last = mFilterBuilder.setManufacturerData(0xE0, new byte[] { 0x03 }).build();
+        assertFalse(first.matches(result));
+        assertFalse(first.matches(scanRecord, null));
+        assertTrue(last.matches(result));
+        assertTrue(last.matches(scanRecord, null));
+    }
+
+    public void testDataPatternMatchesByteByByteReference() {
+        Random random = new Random(42);
+        byte[] parsedData = new byte[31];
+        for (int length = 0; length <= 24; ++length) {
+            for (int trial = 0; trial < 50; ++trial) {
+                byte[] data = new byte[length];
+                random.nextBytes(data);
+                byte[] mask = null;
+                if (random.nextBoolean()) {
+                    mask = new byte[length];
+                    random.nextBytes(mask);
+                }
+                random.nextBytes(parsedData);
+                int offset = random.nextInt(parsedData.length - length + 1);
+                // Often copy the pattern in, with a byte flipped, so that both results occur.
+                if (random.nextBoolean()) {
+                    System.arraycopy(data, 0, parsedData, offset, length);
+                    if (length > 0 && random.nextBoolean()) {
+                        parsedData[offset + random.nextInt(length)] ^= 1 << random.nextInt(8);
+                    }
+                }
+                int available = parsedData.length - offset - random.nextInt(2);
+                ScanFilter.DataPattern pattern = ScanFilter.DataPattern.of(data, mask);
+                assertEquals("length " + length + " trial " + trial,
+                        matchesPartialData(data, mask, parsedData, offset, available),
+                        pattern.matches(parsedData, offset, available));
+            }
+        }
+        assertNull(ScanFilter.DataPattern.of(null, null));
+    }
+
     public void testServiceDataNoMatch() {
         byte[] scanRecord = TestData.sd1;
         byte serviceData[] = { (byte) 0xe1, (byte) 0x00 };
@@ -383,10 +491,14 @@ public class ScanFilterTest extends AndroidTestCase {
 
     /////////////////////////////////////////////////////////////////////////////
 
+    // Also checks that matching the raw bytes agrees with matching the parsed ScanResult.
     private static boolean matches(
         ScanFilter filter, BluetoothDevice device, int rssi, byte[] scanRecord) {
-      return filter.matches(new ScanResult(
+      boolean matches = filter.matches(new ScanResult(
           device, ScanRecord.parseFromBytes(scanRecord), rssi, 0 /* timestampNanos */));
+      assertEquals("raw advertisement match differs", matches,
+          filter.matches(scanRecord, device == null ? null : device.getAddress()));
+      return matches;
     }
 
     // Inspired by the "L" implementation
@@ -425,7 +537,7 @@ public class ScanFilterTest extends AndroidTestCase {
       }
 
       // Service data match
-      if (filter.getServiceDataUuid() != null && !ScanFilter.matchesPartialData(
+      if (filter.getServiceDataUuid() != null && !matchesPartialData(
           filter.getServiceData(),
           filter.getServiceDataMask(),
           scanRecord.getServiceData(filter.getServiceDataUuid()))) {
@@ -440,7 +552,7 @@ public class ScanFilterTest extends AndroidTestCase {
       }
 
       // Manufacturer data match.
-      if (filter.getManufacturerId() >= 0 && !ScanFilter.matchesPartialData(
+      if (filter.getManufacturerId() >= 0 && !matchesPartialData(
           filter.getManufacturerData(),
           filter.getManufacturerDataMask(),
           scanRecord.getManufacturerSpecificData(filter.getManufacturerId()))) {
@@ -525,4 +637,30 @@ public class ScanFilterTest extends AndroidTestCase {
       return ((uuid.getMostSignificantBits() & mask.getMostSignificantBits())
           == (data.getMostSignificantBits() & mask.getMostSignificantBits()));
     }
+
+    // Check whether the data pattern matches the parsed data, as in the "L" implementation.
+    private static boolean matchesPartialData(byte[] data, byte[] dataMask, byte[] parsedData) {
+      if (parsedData == null) {
+        return false;
+      }
+      return matchesPartialData(data, dataMask, parsedData, 0, parsedData.length);
+    }
+
+    // Check whether the data pattern matches length bytes of parsedData starting at offset.
+    private static boolean matchesPartialData(byte[] data, byte[] dataMask, byte[] parsedData,
+        int offset, int length) {
+      if (data == null) {
+        return true;
+      }
+      if (length < data.length) {
+        return false;
+      }
+      for (int i = 0; i < data.length; ++i) {
+        int mask = dataMask == null ? 0xFF : dataMask[i];
+        if ((mask & parsedData[offset + i]) != (mask & data[i])) {
+          return false;
+        }
+      }
+      return true;
+    }
 }
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.uribeacon.scan.compat;
+
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Unit tests for the {@link ScanMultiplexer} class.
+ */
+public class ScanMultiplexerTest extends AndroidTestCase {
+
+  private static final ScanFilter BERT = new ScanFilter.Builder().setDeviceName("Bert").build();
+  private static final ScanFilter ERNIE = new ScanFilter.Builder().setDeviceName("Ernie").build();
+  private static final ScanSettings LOW_POWER = settings(ScanSettings.SCAN_MODE_LOW_POWER);
+  private static final ScanSettings LOW_LATENCY = settings(ScanSettings.SCAN_MODE_LOW_LATENCY);
+
+  private ScanMultiplexer multiplexer;
+  private RecordingCallback bertCallback;
+  private RecordingCallback ernieCallback;
+  private RecordingCallback allCallback;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    multiplexer = new ScanMultiplexer();
+    bertCallback = new RecordingCallback();
+    ernieCallback = new RecordingCallback();
+    allCallback = new RecordingCallback();
+  }
+
+  public void testCanMultiplex() {
+    assertTrue(ScanMultiplexer.canMultiplex(LOW_POWER));
+    assertFalse(ScanMultiplexer.canMultiplex(new ScanSettings.Builder()
+        .setCallbackType(ScanSettings.CALLBACK_TYPE_FIRST_MATCH).build()));
+    assertFalse(ScanMultiplexer.canMultiplex(new ScanSettings.Builder()
+        .setCallbackType(ScanSettings.CALLBACK_TYPE_ALL_MATCHES)
+        .setReportDelayMillis(1000)
+        .build()));
+  }
+
+  public void testUnionOfFilters() {
+    assertTrue(multiplexer.add(filters(BERT), LOW_POWER, bertCallback));
+    assertEquals(filters(BERT), multiplexer.getScanFilters());
+    assertTrue(multiplexer.add(filters(ERNIE), LOW_POWER, ernieCallback));
+    assertEquals(filters(BERT, ERNIE), multiplexer.getScanFilters());
+
+    // A client with no filter makes the shared scan match everything.
+    assertTrue(multiplexer.add(null, LOW_POWER, allCallback));
+    assertTrue(multiplexer.getScanFilters().isEmpty());
+    assertTrue(multiplexer.remove(allCallback));
+    assertEquals(filters(BERT, ERNIE), multiplexer.getScanFilters());
+  }
+
+  public void testMostAggressiveScanMode() {
+    multiplexer.add(filters(BERT), LOW_POWER, bertCallback);
+    assertEquals(ScanSettings.SCAN_MODE_LOW_POWER, multiplexer.getScanSettings().getScanMode());
+    assertTrue(multiplexer.add(filters(BERT), LOW_LATENCY, ernieCallback));
+    assertEquals(ScanSettings.SCAN_MODE_LOW_LATENCY, multiplexer.getScanSettings().getScanMode());
+    assertEquals(ScanSettings.CALLBACK_TYPE_ALL_MATCHES,
+        multiplexer.getScanSettings().getCallbackType());
+    assertTrue(multiplexer.remove(ernieCallback));
+    assertEquals(ScanSettings.SCAN_MODE_LOW_POWER, multiplexer.getScanSettings().getScanMode());
+  }
+
+  public void testJoinWithoutChangingUnion() {
+    assertTrue(multiplexer.add(filters(BERT, ERNIE), LOW_LATENCY, allCallback));
+    assertFalse(multiplexer.add(filters(ERNIE), LOW_POWER, ernieCallback));
+    assertFalse(multiplexer.add(filters(BERT), LOW_POWER, bertCallback));
+    assertFalse(multiplexer.remove(bertCallback));
+    assertFalse(multiplexer.remove(bertCallback));
+    assertTrue(multiplexer.remove(allCallback));
+    assertTrue(multiplexer.remove(ernieCallback));
+    assertTrue(multiplexer.isEmpty());
+  }
+
+  public void testDispatch() {
+    multiplexer.add(filters(BERT), LOW_POWER, bertCallback);
+    multiplexer.add(filters(ERNIE, BERT), LOW_POWER, ernieCallback);
+    multiplexer.add(Collections.<ScanFilter>emptyList(), LOW_POWER, allCallback);
+
+    multiplexer.dispatch(result("Bert"));
+    multiplexer.dispatch(result("Ernie"));
+    multiplexer.dispatch(result("Grover"));
+    assertEquals(Arrays.asList("Bert"), bertCallback.names);
+    assertEquals(Arrays.asList("Bert", "Ernie"), ernieCallback.names);
+    assertEquals(Arrays.asList("Bert", "Ernie", "Grover"), allCallback.names);
+
+    multiplexer.remove(ernieCallback);
+    multiplexer.dispatch(result("Ernie"));
+    assertEquals(2, ernieCallback.names.size());
+    assertEquals(4, allCallback.names.size());
+
+    multiplexer.dispatchScanFailed(ScanCallback.SCAN_FAILED_INTERNAL_ERROR);
+    assertEquals(ScanCallback.SCAN_FAILED_INTERNAL_ERROR, bertCallback.errorCode);
+    assertEquals(0, ernieCallback.errorCode);
+  }
+
+  private static ScanResult result(String name) {
+    byte[] nameBytes = name.getBytes();
+    byte[] scanRecord = new byte[nameBytes.length + 2];
+    scanRecord[0] = (byte) (nameBytes.length + 1);
+    scanRecord[1] = 0x09; // Complete local name.
+    System.arraycopy(nameBytes, 0, scanRecord, 2, nameBytes.length);
+    return new ScanResult(null, ScanRecord.parseFromBytes(scanRecord), -50, 0);
+  }
+
+  private static List<ScanFilter> filters(ScanFilter... filters) {
+    return Arrays.asList(filters);
+  }
+
+  private static ScanSettings settings(int scanMode) {
+    return new ScanSettings.Builder()
+        .setScanMode(scanMode)
+        .setCallbackType(ScanSettings.CALLBACK_TYPE_ALL_MATCHES)
+        .build();
+  }
+
+  private static class RecordingCallback extends ScanCallback {
+    final List<String> names = new ArrayList<String>();
+    int errorCode;
+
+    @Override
+    public void onScanResult(int callbackType, ScanResult result) {
+      assertEquals(ScanSettings.CALLBACK_TYPE_ALL_MATCHES, callbackType);
+      names.add(result.getScanRecord().getDeviceName());
+    }
+
+    @Override
+    public void onScanFailed(int errorCode) {
+      this.errorCode = errorCode;
+    }
+  }
+}
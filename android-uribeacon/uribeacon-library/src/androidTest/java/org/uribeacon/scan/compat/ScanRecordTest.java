@@ -0,0 +1,238 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.scan.compat;
+
+import android.os.ParcelUuid;
+import android.test.AndroidTestCase;
+import android.test.MoreAsserts;
+import android.util.SparseArray;
+
+import org.uribeacon.scan.util.AdStructureIndex;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Unit tests for the {@link org.uribeacon.scan.compat.ScanRecord} class.
+ */
+public class ScanRecordTest extends AndroidTestCase {
+
+  private static final ParcelUuid SERVICE_DATA_UUID =
+      ParcelUuid.fromString("0000110B-0000-1000-8000-00805F9B34FB");
+
+  private static final byte[] SCAN_RECORD = new byte[] {
+      0x02, 0x01, 0x1a, // advertising flags
+      0x05, 0x02, 0x0b, 0x11, 0x0a, 0x11, // 16 bit service uuids
+      0x04, 0x09, 0x50, 0x65, 0x64, // setName
+      0x02, 0x0A, (byte) 0xec, // tx power level
+      0x05, 0x16, 0x0b, 0x11, 0x50, 0x64, // service data
+      0x05, (byte) 0xff, (byte) 0xe0, 0x00, 0x02, 0x15, // manufacturer specific data
+      0x03, 0x50, 0x01, 0x02, // an unknown data type won't cause trouble
+  };
+
+  public void testWrapMatchesParse() {
+    ScanRecord parsed = ScanRecord.parseFromBytes(SCAN_RECORD);
+    ScanRecord wrapped = ScanRecord.wrap(SCAN_RECORD);
+
+    assertEquals(parsed.getAdvertiseFlags(), wrapped.getAdvertiseFlags());
+    assertEquals(parsed.getTxPowerLevel(), wrapped.getTxPowerLevel());
+    assertEquals(parsed.getDeviceName(), wrapped.getDeviceName());
+    assertEquals(parsed.getServiceUuids(), wrapped.getServiceUuids());
+    MoreAsserts.assertEquals(parsed.getServiceData(SERVICE_DATA_UUID),
+        wrapped.getServiceData(SERVICE_DATA_UUID));
+    MoreAsserts.assertEquals(parsed.getManufacturerSpecificData(0x00e0),
+        wrapped.getManufacturerSpecificData(0x00e0));
+  }
+
+  public void testFields() {
+    ScanRecord record = ScanRecord.wrap(SCAN_RECORD);
+
+    assertEquals(0x1a, record.getAdvertiseFlags());
+    assertEquals(-20, record.getTxPowerLevel());
+    assertEquals("Ped", record.getDeviceName());
+    assertEquals(2, record.getServiceUuids().size());
+    MoreAsserts.assertEquals(new byte[] { 0x50, 0x64 },
+        record.getServiceData(SERVICE_DATA_UUID));
+    MoreAsserts.assertEquals(new byte[] { 0x02, 0x15 },
+        record.getManufacturerSpecificData(0x00e0));
+    assertSame(SCAN_RECORD, record.getBytes());
+  }
+
+  public void testGettersReturnSameInstance() {
+    ScanRecord record = ScanRecord.wrap(SCAN_RECORD);
+    assertSame(record.getServiceData(), record.getServiceData());
+    assertSame(record.getManufacturerSpecificData(), record.getManufacturerSpecificData());
+    assertSame(record.getServiceUuids(), record.getServiceUuids());
+  }
+
+  public void testServiceDataView() {
+    ScanRecord record = ScanRecord.wrap(SCAN_RECORD);
+    ByteBuffer view = record.getServiceDataView(SERVICE_DATA_UUID);
+
+    assertTrue(view.isReadOnly());
+    assertEquals(2, view.remaining());
+    assertEquals(0x6450, view.getShort(0));
+    assertNull(record.getServiceDataView(
+        ParcelUuid.fromString("0000110C-0000-1000-8000-00805F9B34FB")));
+  }
+
+  public void testManufacturerSpecificDataView() {
+    ScanRecord record = ScanRecord.wrap(SCAN_RECORD);
+    ByteBuffer view = record.getManufacturerSpecificDataView(0x00e0);
+
+    assertEquals(2, view.remaining());
+    assertEquals(0x02, view.get(0));
+    assertEquals(0x15, view.get(1));
+    assertNull(record.getManufacturerSpecificDataView(0x004c));
+  }
+
+  public void testRepeatedManufacturerIdUsesLastStructure() {
+    ScanRecord record = ScanRecord.parseFromBytes(new byte[] {
+        0x05, (byte) 0xff, (byte) 0xe0, 0x00, 0x02, 0x15, // manufacturer specific data
+        0x05, (byte) 0xff, (byte) 0xe0, 0x00, 0x03, 0x16, // same manufacturer id
+    });
+    MoreAsserts.assertEquals(new byte[] {0x03, 0x16}, record.getManufacturerSpecificData(0x00e0));
+    ByteBuffer view = record.getManufacturerSpecificDataView(0x00e0);
+    assertEquals(0x03, view.get(0));
+    assertEquals(0x16, view.get(1));
+  }
+
+  public void testServiceDataByShortUuid() {
+    ScanRecord record = ScanRecord.wrap(new byte[] {
+        0x05, 0x16, 0x0b, 0x11, 0x50, 0x64, // service data for 0x110b
+        0x06, 0x20, (byte) 0xd8, (byte) 0xfe, 0x01, 0x00, 0x42, // service data for 0x0001fed8
+        0x04, 0x16, 0x0b, 0x11, 0x51, // later service data for 0x110b
+    });
+
+    MoreAsserts.assertEquals(new byte[] { 0x51 }, record.getServiceData(0x110b));
+    MoreAsserts.assertEquals(new byte[] { 0x42 }, record.getServiceData(0x0001fed8));
+    assertNull(record.getServiceData(0xfed8));
+    assertEquals(0x42, record.getServiceDataView(0x0001fed8).get(0));
+    MoreAsserts.assertEquals(record.getServiceData(0x110b),
+        record.getServiceData(SERVICE_DATA_UUID));
+    MoreAsserts.assertEquals(new byte[] { 0x42 }, record.getServiceData(
+        ParcelUuid.fromString("0001FED8-0000-1000-8000-00805F9B34FB")));
+    assertEquals(2, record.getServiceData().size());
+  }
+
+  public void testServiceDataTableCollisions() {
+    // More entries than the initial table size, with UUIDs that share their low bits.
+    byte[] bytes = new byte[8 * 4];
+    for (int i = 0; i < 8; i++) {
+      bytes[i * 4] = 0x03;
+      bytes[i * 4 + 1] = 0x16;
+      bytes[i * 4 + 2] = 0x00;
+      bytes[i * 4 + 3] = (byte) i;
+    }
+    ScanRecord record = ScanRecord.wrap(bytes);
+    for (int i = 0; i < 8; i++) {
+      assertEquals(0, record.getServiceData(i << 8).length);
+    }
+    assertNull(record.getServiceData(8 << 8));
+    assertNull(record.getServiceDataView(1));
+  }
+
+  public void testMissingFields() {
+    ScanRecord record = ScanRecord.wrap(new byte[] { 0x02, 0x0A, 0x04, 0x00, 0x00 });
+
+    assertEquals(-1, record.getAdvertiseFlags());
+    assertEquals(4, record.getTxPowerLevel());
+    assertNull(record.getDeviceName());
+    assertNull(record.getServiceUuids());
+    assertTrue(record.getServiceData().isEmpty());
+    assertEquals(0, record.getManufacturerSpecificData().size());
+  }
+
+  public void testMalformedRecordIsEmpty() {
+    // The name claims more bytes than the record holds.
+    ScanRecord record = ScanRecord.wrap(new byte[] { 0x02, 0x01, 0x1a, 0x09, 0x09, 0x50 });
+
+    assertEquals(-1, record.getAdvertiseFlags());
+    assertNull(record.getDeviceName());
+    assertNull(record.getServiceUuids());
+    assertNull(record.getManufacturerSpecificData());
+    assertNull(record.getServiceData());
+    assertNull(record.getManufacturerSpecificData(0x00e0));
+    assertNull(record.getServiceData(SERVICE_DATA_UUID));
+    assertNotNull(record.toString());
+  }
+
+  public void testFromIndex() {
+    AdStructureIndex index = AdStructureIndex.build(SCAN_RECORD);
+    ScanRecord record = ScanRecord.fromIndex(index);
+
+    assertSame(index, record.getAdStructureIndex());
+    assertSame(SCAN_RECORD, record.getBytes());
+    assertEquals("Ped", record.getDeviceName());
+  }
+
+  public void testWrapAdoptsParsedFields() {
+    ScanRecord parsed = ScanRecord.parseFromBytes(SCAN_RECORD);
+    ScanRecord record = ScanRecord.wrap(SCAN_RECORD, parsedFields(parsed));
+
+    assertSame(parsed.getServiceUuids(), record.getServiceUuids());
+    assertSame(parsed.getManufacturerSpecificData(), record.getManufacturerSpecificData());
+    assertSame(parsed.getServiceData(), record.getServiceData());
+    assertSame(parsed.getDeviceName(), record.getDeviceName());
+    assertEquals(parsed.getTxPowerLevel(), record.getTxPowerLevel());
+  }
+
+  public void testWrapParsesWhatParsedFieldsMayDisagreeOn() {
+    // Another parser may not know 32-bit service data.
+    byte[] bytes = new byte[] {0x06, 0x20, (byte) 0xd8, (byte) 0xfe, 0x01, 0x00, 0x42};
+    ScanRecord parsed = ScanRecord.parseFromBytes(new byte[0]);
+    ScanRecord record = ScanRecord.wrap(bytes, parsedFields(parsed));
+    assertEquals(1, record.getServiceData().size());
+    assertSame(parsed.getManufacturerSpecificData(), record.getManufacturerSpecificData());
+
+    // Or find fields in a malformed record.
+    ScanRecord malformed = ScanRecord.wrap(new byte[] {0x04, 0x09, 0x50, 0x65, 0x64, 0x09, 0x09},
+        parsedFields(ScanRecord.parseFromBytes(SCAN_RECORD)));
+    assertNull(malformed.getDeviceName());
+    assertNull(malformed.getServiceData());
+  }
+
+  private static ScanRecord.ParsedFields parsedFields(final ScanRecord record) {
+    return new ScanRecord.ParsedFields() {
+      @Override
+      public List<ParcelUuid> getServiceUuids() {
+        return record.getServiceUuids();
+      }
+
+      @Override
+      public SparseArray<byte[]> getManufacturerSpecificData() {
+        return record.getManufacturerSpecificData();
+      }
+
+      @Override
+      public Map<ParcelUuid, byte[]> getServiceData() {
+        return record.getServiceData();
+      }
+
+      @Override
+      public String getDeviceName() {
+        return record.getDeviceName();
+      }
+    };
+  }
+
+  public void testNullBytes() {
+    assertNull(ScanRecord.wrap(null));
+    assertNull(ScanRecord.parseFromBytes(null));
+  }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.scan.compat;
+
+import android.bluetooth.BluetoothDevice;
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Unit tests for the {@link ScanRingBuffer} class.
+ */
+public class ScanRingBufferTest extends AndroidTestCase {
+
+  private static final String ADDRESS = "00:11:22:33:AA:BB";
+  private static final byte[] SCAN_RECORD = {0x02, 0x01, 0x1a};
+
+  private ScanRingBuffer buffer;
+  private List<Long> drained;
+  private ScanRingBuffer.Sink sink;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    buffer = new ScanRingBuffer(4);
+    drained = new ArrayList<Long>();
+    sink = new ScanRingBuffer.Sink() {
+      @Override
+      public void onSighting(BluetoothDevice device, String address, int rssi,
+          byte[] scanRecord, long timestampNanos) {
+        assertEquals(ADDRESS, address);
+        assertSame(SCAN_RECORD, scanRecord);
+        assertEquals(-(int) timestampNanos, rssi);
+        drained.add(timestampNanos);
+      }
+    };
+  }
+
+  public void testCapacityMustBePowerOfTwo() {
+    try {
+      new ScanRingBuffer(3);
+      fail("Should have failed");
+    } catch (IllegalArgumentException e) {
+      // Expected.
+    }
+  }
+
+  public void testDrainInOrder() {
+    assertTrue(buffer.isEmpty());
+    offer(1);
+    offer(2);
+    assertEquals(2, buffer.size());
+    assertEquals(2, buffer.drainTo(sink));
+    assertTrue(buffer.isEmpty());
+    assertEquals(0, buffer.drainTo(sink));
+
+    // Wraps around the end of the arrays.
+    for (long i = 3; i <= 6; i++) {
+      assertTrue(offer(i));
+    }
+    assertEquals(4, buffer.drainTo(sink));
+    assertEquals(6, drained.size());
+    for (int i = 0; i < drained.size(); i++) {
+      assertEquals(i + 1, (long) drained.get(i));
+    }
+  }
+
+  public void testDropsNewestWhenFull() {
+    for (long i = 1; i <= 4; i++) {
+      assertTrue(offer(i));
+    }
+    assertFalse(offer(5));
+    assertEquals(1, buffer.getDropCount());
+    buffer.drainTo(sink);
+    assertEquals(4, (long) drained.get(3));
+    assertTrue(offer(6));
+  }
+
+  public void testConsumerThread() throws InterruptedException {
+    final int count = 10000;
+    final long[] sum = new long[1];
+    final ScanRingBuffer.Sink summingSink = new ScanRingBuffer.Sink() {
+      @Override
+      public void onSighting(BluetoothDevice device, String address, int rssi,
+          byte[] scanRecord, long timestampNanos) {
+        sum[0] += timestampNanos;
+      }
+    };
+    Thread consumer = new Thread() {
+      @Override
+      public void run() {
+        int received = 0;
+        while (received < count) {
+          int drainedCount = buffer.drainTo(summingSink);
+          if (drainedCount == 0) {
+            buffer.awaitSighting();
+          }
+          received += drainedCount;
+        }
+      }
+    };
+    consumer.start();
+    for (long i = 1; i <= count; i++) {
+      while (!offer(i)) {
+        Thread.yield();
+      }
+    }
+    consumer.join(10000);
+    assertFalse(consumer.isAlive());
+    assertEquals((long) count * (count + 1) / 2, sum[0]);
+  }
+
+  private boolean offer(long timestampNanos) {
+    return buffer.offer(null, ADDRESS, -(int) timestampNanos, SCAN_RECORD, timestampNanos);
+  }
+}
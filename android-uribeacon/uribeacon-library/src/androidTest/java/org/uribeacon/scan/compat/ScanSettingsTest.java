@@ -61,4 +61,89 @@ public class ScanSettingsTest extends AndroidTestCase {
     }
 
   }
-}
\ No newline at end of file
+
+  public void testDeliveryQueue() {
+    ScanSettings.Builder builder = new ScanSettings.Builder();
+    ScanSettings settings = builder.build();
+    assertEquals(ScanSettings.DEFAULT_DELIVERY_QUEUE_CAPACITY,
+        settings.getDeliveryQueueCapacity());
+    assertEquals(ScanSettings.DELIVERY_OVERFLOW_DROP_OLDEST,
+        settings.getDeliveryOverflowPolicy());
+
+    settings = builder
+        .setDeliveryQueue(8, ScanSettings.DELIVERY_OVERFLOW_COALESCE_BY_ADDRESS)
+        .build();
+    assertEquals(8, settings.getDeliveryQueueCapacity());
+    assertEquals(ScanSettings.DELIVERY_OVERFLOW_COALESCE_BY_ADDRESS,
+        settings.getDeliveryOverflowPolicy());
+
+    try {
+      builder.setDeliveryQueue(0, ScanSettings.DELIVERY_OVERFLOW_DROP_NEWEST);
+      fail("should have thrown IllegalArgumentException!");
+    } catch (IllegalArgumentException e) {
+      // nothing to do
+    }
+
+    try {
+      builder.setDeliveryQueue(8, 3);
+      fail("should have thrown IllegalArgumentException!");
+    } catch (IllegalArgumentException e) {
+      // nothing to do
+    }
+  }
+
+  public void testReportBatching() {
+    ScanSettings.Builder builder = new ScanSettings.Builder();
+    ScanSettings settings = builder.build();
+    assertEquals(ScanSettings.DEFAULT_MAX_BATCH_SIZE, settings.getMaxBatchSize());
+    assertFalse(settings.getBatchLatestPerAddress());
+
+    settings = builder.setReportBatching(10, true).build();
+    assertEquals(10, settings.getMaxBatchSize());
+    assertTrue(settings.getBatchLatestPerAddress());
+
+    try {
+      builder.setReportBatching(0, false);
+      fail("should have thrown IllegalArgumentException!");
+    } catch (IllegalArgumentException e) {
+      // nothing to do
+    }
+  }
+
+  public void testCoalescingWindow() {
+    ScanSettings.Builder builder = new ScanSettings.Builder();
+    assertEquals(0, builder.build().getCoalescingWindowMillis());
+    assertEquals(500, builder.setCoalescingWindowMillis(500).build().getCoalescingWindowMillis());
+    try {
+      builder.setCoalescingWindowMillis(-1);
+      fail("should have thrown IllegalArgumentException!");
+    } catch (IllegalArgumentException e) {
+      // nothing to do
+    }
+  }
+
+  public void testLostTimeout() {
+    ScanSettings.Builder builder = new ScanSettings.Builder();
+    assertEquals(0, builder.build().getLostTimeoutMillis());
+    assertEquals(3000, builder.setLostTimeoutMillis(3000).build().getLostTimeoutMillis());
+    try {
+      builder.setLostTimeoutMillis(-1);
+      fail("should have thrown IllegalArgumentException!");
+    } catch (IllegalArgumentException e) {
+      // nothing to do
+    }
+  }
+
+  public void testEquals() {
+    ScanSettings.Builder builder = new ScanSettings.Builder()
+        .setScanMode(ScanSettings.SCAN_MODE_BALANCED)
+        .setReportDelayMillis(1000);
+    ScanSettings settings = builder.build();
+    assertEquals(settings, builder.build());
+    assertEquals(settings.hashCode(), builder.build().hashCode());
+    assertFalse(settings.equals(builder.setLostTimeoutMillis(3000).build()));
+    assertFalse(settings.equals(
+        builder.setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY).build()));
+    assertFalse(settings.equals(null));
+  }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.uribeacon.scan.compat;
+
+import android.test.AndroidTestCase;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for the {@link SightingCoalescer} class.
+ */
+public class SightingCoalescerTest extends AndroidTestCase {
+
+  private static final byte[] ADVERTISEMENT = {0x02, 0x01, 0x1a};
+  private static final byte[] OTHER_ADVERTISEMENT = {0x02, 0x01, 0x06};
+
+  private SightingCoalescer coalescer;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    coalescer = new SightingCoalescer(
+        new ScanSettings.Builder().setCoalescingWindowMillis(1000).build());
+  }
+
+  public void testMergesSightingsInWindow() {
+    assertNull(coalescer.add("a", result(ADVERTISEMENT, -60, 0)));
+    assertNull(coalescer.add("a", result(ADVERTISEMENT, -40, 100)));
+    assertNull(coalescer.add("a", result(ADVERTISEMENT, -50, 999)));
+
+    ScanResult merged = coalescer.add("a", result(ADVERTISEMENT, -70, 1000));
+    assertEquals(3, merged.getSightingCount());
+    assertEquals(-60, merged.getMinRssi());
+    assertEquals(-40, merged.getMaxRssi());
+    assertEquals(-50.0, merged.getMeanRssi());
+    // The latest sighting.
+    assertEquals(-50, merged.getRssi());
+    assertEquals(TimeUnit.MILLISECONDS.toNanos(999), merged.getTimestampNanos());
+
+    Map<String, ScanResult> pending = coalescer.takeAll();
+    assertEquals(1, pending.size());
+    assertEquals(1, pending.get("a").getSightingCount());
+    assertEquals(-70.0, pending.get("a").getMeanRssi());
+    assertTrue(coalescer.takeAll().isEmpty());
+  }
+
+  public void testNewAdvertisementReleasesPending() {
+    assertNull(coalescer.add("a", result(ADVERTISEMENT, -60, 0)));
+    assertNull(coalescer.add("a", result(ADVERTISEMENT, -60, 10)));
+    ScanResult released = coalescer.add("a", result(OTHER_ADVERTISEMENT, -60, 20));
+    assertEquals(2, released.getSightingCount());
+    assertSame(OTHER_ADVERTISEMENT, coalescer.takeAll().get("a").getScanRecord().getBytes());
+  }
+
+  public void testDevicesAreKeptApart() {
+    assertNull(coalescer.add("a", result(ADVERTISEMENT, -60, 0)));
+    assertNull(coalescer.add("b", result(ADVERTISEMENT, -60, 10)));
+    coalescer.remove("b");
+    Map<String, ScanResult> pending = coalescer.takeAll();
+    assertEquals(1, pending.size());
+    assertTrue(pending.containsKey("a"));
+  }
+
+  private static ScanResult result(byte[] advertisement, int rssi, long timeMillis) {
+    return new ScanResult(null /* BluetoothDevice */, ScanRecord.parseFromBytes(advertisement),
+        rssi, TimeUnit.MILLISECONDS.toNanos(timeMillis));
+  }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.uribeacon.scan.compat;
+
+import android.test.AndroidTestCase;
+
+import org.uribeacon.scan.testing.FakeClock;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Unit tests for the {@link SightingTracker} class.
+ */
+public class SightingTrackerTest extends AndroidTestCase {
+
+  private static final String ADDRESS = "00:11:22:33:AA:BB";
+  private static final String OTHER_ADDRESS = "00:11:22:33:AA:CC";
+
+  private FakeClock clock;
+  private SightingTracker<String, String> tracker;
+  private List<String> lost;
+  private SightingTracker.Listener<String, String> listener;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    clock = new FakeClock();
+    tracker = new SightingTracker<String, String>(clock, 1000);
+    lost = new ArrayList<String>();
+    listener = new SightingTracker.Listener<String, String>() {
+      @Override
+      public void onLost(String client, String address, String sighting) {
+        lost.add(client + ":" + address + "=" + sighting);
+      }
+    };
+  }
+
+  public void testFirstSighting() {
+    tracker.addClient("a", 0);
+    assertTrue(tracker.onSighting("a", ADDRESS, now(), "1"));
+    assertFalse(tracker.onSighting("a", ADDRESS, now(), "2"));
+    assertTrue(tracker.onSighting("a", OTHER_ADDRESS, now(), "3"));
+    assertFalse(tracker.onSighting("b", ADDRESS, now(), "4"));
+  }
+
+  public void testOneSweepForAllClients() {
+    tracker.addClient("a", 0);
+    tracker.addClient("b", 5000);
+    assertEquals(2, tracker.getClientCount());
+    tracker.onSighting("a", ADDRESS, now(), "1");
+    tracker.onSighting("b", ADDRESS, now(), "1");
+    clock.advance(1500);
+    tracker.sweep(listener);
+    assertEquals("[a:" + ADDRESS + "=1]", lost.toString());
+
+    clock.advance(4000);
+    tracker.sweep(listener);
+    assertEquals("[a:" + ADDRESS + "=1, b:" + ADDRESS + "=1]", lost.toString());
+  }
+
+  public void testFoundAgainAfterLost() {
+    tracker.addClient("a", 0);
+    tracker.onSighting("a", ADDRESS, now(), "1");
+    clock.advance(1500);
+    tracker.sweep(listener);
+    assertEquals(1, lost.size());
+    assertTrue(tracker.onSighting("a", ADDRESS, now(), "2"));
+  }
+
+  public void testDefaultTimeout() {
+    tracker.addClient("a", 0);
+    tracker.addClient("b", 500);
+    tracker.setDefaultTimeoutMillis(3000);
+    assertEquals(3000, tracker.getDefaultTimeoutMillis());
+    tracker.onSighting("a", ADDRESS, now(), "1");
+    tracker.onSighting("b", ADDRESS, now(), "1");
+    clock.advance(1500);
+    tracker.sweep(listener);
+    assertEquals("[b:" + ADDRESS + "=1]", lost.toString());
+
+    // Clients added later use the new default too.
+    tracker.addClient("c", 0);
+    tracker.onSighting("c", ADDRESS, now(), "2");
+    clock.advance(2000);
+    tracker.sweep(listener);
+    assertEquals("[b:" + ADDRESS + "=1, a:" + ADDRESS + "=1]", lost.toString());
+  }
+
+  public void testForget() {
+    tracker.addClient("a", 0);
+    tracker.addClient("b", 0);
+    tracker.onSighting("a", ADDRESS, now(), "1");
+    tracker.onSighting("a", OTHER_ADDRESS, now(), "1");
+    tracker.forget(ADDRESS, "2", listener);
+    assertEquals("[a:" + ADDRESS + "=2]", lost.toString());
+
+    clock.advance(1500);
+    tracker.sweep(listener);
+    assertEquals("[a:" + ADDRESS + "=2, a:" + OTHER_ADDRESS + "=1]", lost.toString());
+  }
+
+  public void testRemoveClient() {
+    tracker.addClient("a", 0);
+    tracker.onSighting("a", ADDRESS, now(), "1");
+    tracker.removeClient("a");
+    assertEquals(0, tracker.getClientCount());
+    clock.advance(1500);
+    tracker.sweep(listener);
+    assertTrue(lost.isEmpty());
+  }
+
+  private long now() {
+    return clock.currentTimeMillis();
+  }
+}
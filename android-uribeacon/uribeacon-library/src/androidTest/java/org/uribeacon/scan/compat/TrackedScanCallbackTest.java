@@ -0,0 +1,134 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.uribeacon.scan.compat;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.test.AndroidTestCase;
+
+import org.uribeacon.scan.testing.FakeClock;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for the {@link TrackedScanCallback} class.
+ */
+public class TrackedScanCallbackTest extends AndroidTestCase {
+
+  private static final String ADDRESS = "00:11:22:33:AA:BB";
+
+  private FakeClock clock;
+  private SightingTracker<TrackedScanCallback, ScanResult> tracker;
+  private BluetoothDevice device;
+  private List<Integer> callbackTypes;
+  private ScanCallback callback;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    clock = new FakeClock();
+    tracker = new SightingTracker<TrackedScanCallback, ScanResult>(clock, 1000);
+    device = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(ADDRESS);
+    callbackTypes = new ArrayList<Integer>();
+    callback = new ScanCallback() {
+      @Override
+      public void onScanResult(int callbackType, ScanResult result) {
+        assertEquals(device, result.getDevice());
+        callbackTypes.add(callbackType);
+      }
+    };
+  }
+
+  public void testIsTracked() {
+    assertFalse(TrackedScanCallback.isTracked(settings(ScanSettings.CALLBACK_TYPE_ALL_MATCHES)));
+    assertTrue(TrackedScanCallback.isTracked(settings(ScanSettings.CALLBACK_TYPE_FIRST_MATCH)));
+    assertTrue(TrackedScanCallback.isTracked(settings(ScanSettings.CALLBACK_TYPE_MATCH_LOST)));
+    assertFalse(TrackedScanCallback.isTracked(new ScanSettings.Builder()
+        .setCallbackType(ScanSettings.CALLBACK_TYPE_FIRST_MATCH)
+        .setReportDelayMillis(1000)
+        .build()));
+  }
+
+  public void testFirstMatch() {
+    TrackedScanCallback tracked = track(ScanSettings.CALLBACK_TYPE_FIRST_MATCH);
+    tracked.onScanResult(ScanSettings.CALLBACK_TYPE_ALL_MATCHES, result());
+    tracked.onScanResult(ScanSettings.CALLBACK_TYPE_ALL_MATCHES, result());
+    assertEquals(Arrays.asList(ScanSettings.CALLBACK_TYPE_FIRST_MATCH), callbackTypes);
+
+    // Not told, but found again once lost.
+    clock.advance(1500);
+    tracker.sweep(TrackedScanCallback.LOST_LISTENER);
+    tracked.onScanResult(ScanSettings.CALLBACK_TYPE_ALL_MATCHES, result());
+    assertEquals(Arrays.asList(ScanSettings.CALLBACK_TYPE_FIRST_MATCH,
+        ScanSettings.CALLBACK_TYPE_FIRST_MATCH), callbackTypes);
+  }
+
+  public void testAllMatches() {
+    TrackedScanCallback tracked = track(ScanSettings.CALLBACK_TYPE_ALL_MATCHES);
+    tracked.onScanResult(ScanSettings.CALLBACK_TYPE_ALL_MATCHES, result());
+    tracked.onScanResult(ScanSettings.CALLBACK_TYPE_ALL_MATCHES, result());
+    clock.advance(1500);
+    tracker.sweep(TrackedScanCallback.LOST_LISTENER);
+    assertEquals(Arrays.asList(ScanSettings.CALLBACK_TYPE_FIRST_MATCH,
+        ScanSettings.CALLBACK_TYPE_ALL_MATCHES, ScanSettings.CALLBACK_TYPE_MATCH_LOST),
+        callbackTypes);
+  }
+
+  public void testMatchLost() {
+    TrackedScanCallback tracked = track(ScanSettings.CALLBACK_TYPE_MATCH_LOST);
+    tracked.onScanResult(ScanSettings.CALLBACK_TYPE_ALL_MATCHES, result());
+    clock.advance(500);
+    tracked.onScanResult(ScanSettings.CALLBACK_TYPE_ALL_MATCHES, result());
+    clock.advance(800);
+    tracker.sweep(TrackedScanCallback.LOST_LISTENER);
+    assertTrue(callbackTypes.isEmpty());
+
+    clock.advance(500);
+    tracker.sweep(TrackedScanCallback.LOST_LISTENER);
+    assertEquals(Arrays.asList(ScanSettings.CALLBACK_TYPE_MATCH_LOST), callbackTypes);
+  }
+
+  public void testStoppedClientIsNotCalled() {
+    TrackedScanCallback tracked = track(ScanSettings.CALLBACK_TYPE_ALL_MATCHES);
+    tracked.onScanResult(ScanSettings.CALLBACK_TYPE_ALL_MATCHES, result());
+    tracked.stop();
+    tracked.onScanResult(ScanSettings.CALLBACK_TYPE_ALL_MATCHES, result());
+    // A sweep that collected the device before the scan stopped.
+    clock.advance(1500);
+    tracker.sweep(TrackedScanCallback.LOST_LISTENER);
+    assertEquals(Arrays.asList(ScanSettings.CALLBACK_TYPE_FIRST_MATCH), callbackTypes);
+  }
+
+  private TrackedScanCallback track(int callbackType) {
+    TrackedScanCallback tracked = new TrackedScanCallback(callback, callbackType, tracker);
+    tracker.addClient(tracked, 0);
+    return tracked;
+  }
+
+  private ScanResult result() {
+    return new ScanResult(device, null, -50,
+        TimeUnit.MILLISECONDS.toNanos(clock.currentTimeMillis()));
+  }
+
+  private static ScanSettings settings(int callbackType) {
+    return new ScanSettings.Builder().setCallbackType(callbackType).build();
+  }
+}
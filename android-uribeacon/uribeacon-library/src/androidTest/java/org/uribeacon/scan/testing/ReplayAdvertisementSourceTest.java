@@ -0,0 +1,162 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.uribeacon.scan.testing;
+
+import android.bluetooth.BluetoothDevice;
+import android.test.AndroidTestCase;
+
+import org.uribeacon.scan.compat.AdvertisementSource;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for the {@link ReplayAdvertisementSource} class.
+ */
+public class ReplayAdvertisementSourceTest extends AndroidTestCase {
+
+  private static final String CSV = "# timestampMillis,address,rssi,scanRecord\n"
+      + "1000,00:11:22:33:AA:BB,-40,02011a\n"
+      + "\n"
+      + "1250,00:11:22:33:aa:cc,-70,02 01 1a 03 09 41 42\n"
+      + "1250,00:11:22:33:AA:BB,-41,\n";
+
+  private FakeClock clock;
+  private List<ReplayAdvertisementSource.Record> received;
+  private List<Long> receivedAtMillis;
+  private AdvertisementSource.Listener listener;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    clock = new FakeClock();
+    received = new ArrayList<ReplayAdvertisementSource.Record>();
+    receivedAtMillis = new ArrayList<Long>();
+    listener = new AdvertisementSource.Listener() {
+      @Override
+      public void onAdvertisement(
+          BluetoothDevice device, String address, int rssi, byte[] scanRecord) {
+        received.add(new ReplayAdvertisementSource.Record(0, address, rssi, scanRecord));
+        receivedAtMillis.add(clock.currentTimeMillis());
+      }
+    };
+  }
+
+  public void testCsv() throws Exception {
+    long startMillis = clock.currentTimeMillis();
+    assertEquals(3, csvSource(CSV).replay(listener));
+
+    assertEquals("00:11:22:33:AA:BB", received.get(0).getAddress());
+    assertEquals(-40, received.get(0).getRssi());
+    assertTrue(Arrays.equals(new byte[] {0x02, 0x01, 0x1a}, received.get(0).getScanRecord()));
+    assertEquals("00:11:22:33:AA:CC", received.get(1).getAddress());
+    assertEquals(7, received.get(1).getScanRecord().length);
+    assertEquals(0, received.get(2).getScanRecord().length);
+
+    // The clock follows the capture, from wherever it was.
+    assertEquals(startMillis, (long) receivedAtMillis.get(0));
+    assertEquals(startMillis + 250, (long) receivedAtMillis.get(1));
+    assertEquals(startMillis + 250, (long) receivedAtMillis.get(2));
+  }
+
+  public void testInvalidCsv() throws Exception {
+    for (String line : Arrays.asList("1000,00:11:22:33:AA:BB,-40", "x,00:11:22:33:AA:BB,-40,02",
+        "1000,00:11:22:33:AA,-40,02", "1000,00:11:22:33:AA:BB,-40,0g")) {
+      try {
+        csvSource(line).replay(listener);
+        fail("Should have failed: " + line);
+      } catch (IOException e) {
+        // Expected.
+      }
+    }
+  }
+
+  public void testBinaryRoundTrip() throws Exception {
+    List<ReplayAdvertisementSource.Record> records =
+        new ArrayList<ReplayAdvertisementSource.Record>();
+    ReplayAdvertisementSource.RecordReader csv =
+        ReplayAdvertisementSource.csvReader(new StringReader(CSV));
+    ReplayAdvertisementSource.Record record;
+    while ((record = csv.read()) != null) {
+      records.add(record);
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ReplayAdvertisementSource.writeBinary(records, out);
+
+    ReplayAdvertisementSource binary = new ReplayAdvertisementSource(
+        ReplayAdvertisementSource.binaryReader(new ByteArrayInputStream(out.toByteArray())),
+        ReplayAdvertisementSource.SPEED_MAX, clock);
+    assertEquals(records.size(), binary.replay(listener));
+    for (int i = 0; i < records.size(); i++) {
+      assertEquals(records.get(i).getAddress(), received.get(i).getAddress());
+      assertEquals(records.get(i).getRssi(), received.get(i).getRssi());
+      assertTrue(Arrays.equals(records.get(i).getScanRecord(), received.get(i).getScanRecord()));
+    }
+  }
+
+  public void testNotBinary() {
+    try {
+      ReplayAdvertisementSource.binaryReader(new ByteArrayInputStream(CSV.getBytes()));
+      fail("Should have failed");
+    } catch (IOException e) {
+      // Expected.
+    }
+  }
+
+  public void testStartResumesWhereStopped() throws Exception {
+    final CountDownLatch first = new CountDownLatch(1);
+    final CountDownLatch all = new CountDownLatch(3);
+    final ReplayAdvertisementSource source = new ReplayAdvertisementSource(
+        ReplayAdvertisementSource.csvReader(new StringReader(CSV)),
+        ReplayAdvertisementSource.SPEED_REAL_TIME, null);
+    AdvertisementSource.Listener countingListener = new AdvertisementSource.Listener() {
+      @Override
+      public void onAdvertisement(
+          BluetoothDevice device, String address, int rssi, byte[] scanRecord) {
+        listener.onAdvertisement(device, address, rssi, scanRecord);
+        first.countDown();
+        all.countDown();
+      }
+    };
+
+    assertTrue(source.start(countingListener));
+    assertTrue(first.await(1, TimeUnit.SECONDS));
+    // The next record is 250ms later, so the replay is stopped before delivering it.
+    source.stop(countingListener);
+    assertEquals(1, received.size());
+
+    assertTrue(source.start(countingListener));
+    assertTrue(all.await(1, TimeUnit.SECONDS));
+    source.close();
+    assertEquals(3, received.size());
+    assertEquals("00:11:22:33:AA:CC", received.get(1).getAddress());
+  }
+
+  private ReplayAdvertisementSource csvSource(String csv) {
+    return new ReplayAdvertisementSource(
+        ReplayAdvertisementSource.csvReader(new StringReader(csv)),
+        ReplayAdvertisementSource.SPEED_MAX, clock);
+  }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.uribeacon.scan.testing;
+
+import android.bluetooth.BluetoothDevice;
+import android.test.AndroidTestCase;
+
+import org.uribeacon.beacon.UriBeacon;
+import org.uribeacon.scan.compat.AdvertisementSource;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Unit tests for the {@link SyntheticBeaconGenerator} class.
+ */
+public class SyntheticBeaconGeneratorTest extends AndroidTestCase {
+
+  private FakeClock clock;
+  private RecordingListener listener;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    clock = new FakeClock();
+    listener = new RecordingListener();
+  }
+
+  public void testAdvertisingInterval() {
+    long startMillis = clock.currentTimeMillis();
+    SyntheticBeaconGenerator generator = builder().setBeaconCount(100).build();
+    int count = generator.generate(10000, listener);
+
+    // Each beacon advertises every 100ms plus up to 10ms of random delay.
+    assertTrue(count >= 100 * 10000
+        / (100 + SyntheticBeaconGenerator.MAX_ADVERTISING_DELAY_MILLIS));
+    assertTrue(count <= 100 * 10000 / 100);
+    assertEquals(count, generator.getAdvertisementCount());
+    assertEquals(100, listener.addresses.size());
+    assertEquals(startMillis + 10000, clock.currentTimeMillis());
+    for (int i = 1; i < listener.timesMillis.size(); i++) {
+      assertTrue(listener.timesMillis.get(i) >= listener.timesMillis.get(i - 1));
+    }
+  }
+
+  public void testMixedTraffic() {
+    SyntheticBeaconGenerator generator =
+        builder().setBeaconCount(200).setUriBeaconFraction(0.5).build();
+    generator.generate(1000, listener);
+    assertTrue(listener.uriBeacons > 0);
+    assertTrue(listener.others > 0);
+    assertEquals(listener.uriBeacons, generator.getUriBeaconAdvertisementCount());
+  }
+
+  public void testRssiWalkStaysInRange() {
+    SyntheticBeaconGenerator generator =
+        builder().setBeaconCount(10).setRssiWalk(-80, -60, 5).build();
+    generator.generate(10000, listener);
+    assertTrue(listener.minRssi >= -80);
+    assertTrue(listener.maxRssi <= -60);
+    assertTrue(listener.maxRssi > listener.minRssi);
+  }
+
+  public void testAddressRotation() {
+    SyntheticBeaconGenerator generator = builder().setBeaconCount(10)
+        .setAddressRandomization(1, 1000)
+        .build();
+    generator.generate(10000, listener);
+    // Each beacon rotates about once a second.
+    assertTrue(generator.getAddressRotationCount() >= 90);
+    assertEquals(10 + generator.getAddressRotationCount(), listener.addresses.size());
+    for (String address : listener.addresses) {
+      // Random static addresses have their two most significant bits set.
+      assertTrue(address, Integer.parseInt(address.substring(0, 2), 16) >= 0xC0);
+    }
+  }
+
+  public void testChurn() {
+    SyntheticBeaconGenerator generator = builder().setBeaconCount(10)
+        .setMeanLifetimeMillis(1000)
+        .build();
+    generator.generate(10000, listener);
+    assertTrue(generator.getChurnCount() > 20);
+    assertTrue(listener.addresses.size() > 30);
+  }
+
+  public void testSameSeedSameAdvertisements() {
+    builder().setSeed(42).setAddressRandomization(0.5, 500).setMeanLifetimeMillis(2000).build()
+        .generate(5000, listener);
+    RecordingListener other = new RecordingListener();
+    builder().setSeed(42).setAddressRandomization(0.5, 500).setMeanLifetimeMillis(2000).build()
+        .generate(5000, other);
+    assertEquals(listener.sequence, other.sequence);
+  }
+
+  private SyntheticBeaconGenerator.Builder builder() {
+    return new SyntheticBeaconGenerator.Builder().setClock(clock);
+  }
+
+  private class RecordingListener implements AdvertisementSource.Listener {
+    final Set<String> addresses = new HashSet<String>();
+    final List<String> sequence = new ArrayList<String>();
+    final List<Long> timesMillis = new ArrayList<Long>();
+    int uriBeacons;
+    int others;
+    int minRssi = Integer.MAX_VALUE;
+    int maxRssi = Integer.MIN_VALUE;
+
+    @Override
+    public void onAdvertisement(
+        BluetoothDevice device, String address, int rssi, byte[] scanRecord) {
+      assertNull(device);
+      addresses.add(address);
+      sequence.add(address + " " + rssi);
+      timesMillis.add(clock.currentTimeMillis());
+      minRssi = Math.min(minRssi, rssi);
+      maxRssi = Math.max(maxRssi, rssi);
+      if (UriBeacon.parseFromBytes(scanRecord) != null) {
+        uriBeacons++;
+      } else {
+        others++;
+      }
+    }
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.scan.util;
+
+import org.uribeacon.scan.testing.TestData;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Unit tests for the {@link org.uribeacon.scan.util.AdStructureIndex} class.
+ */
+public class AdStructureIndexTest extends AndroidTestCase {
+  public void testBuild() {
+    AdStructureIndex index = AdStructureIndex.build(TestData.adv_1);
+    assertSame(TestData.adv_1, index.getBytes());
+    assertEquals(2, index.size());
+    assertFalse(index.isTruncated());
+    assertEquals(0x01, index.getType(0));
+    assertEquals(2, index.getDataOffset(0));
+    assertEquals(1, index.getDataLength(0));
+    assertEquals(0x09, index.getType(1));
+    assertEquals(5, index.getDataOffset(1));
+    assertEquals(9, index.getDataLength(1));
+  }
+
+  public void testFind() {
+    AdStructureIndex index = AdStructureIndex.build(new byte[] {
+        0x02, 0x0a, 0x01, // tx power level
+        0x02, 0x0a, 0x02, // tx power level
+        0x00, 0x00 // padding
+    });
+    assertEquals(2, index.size());
+    assertEquals(0, index.find(0x0a));
+    assertEquals(1, index.find(0x0a, 1));
+    assertEquals(1, index.findLast(0x0a));
+    assertEquals(-1, index.find(0x09));
+    assertEquals(-1, index.findLast(0x09));
+  }
+
+  public void testFindServiceData() {
+    AdStructureIndex index = AdStructureIndex.build(new byte[] {
+        0x04, 0x16, 0x0b, 0x11, 0x50, // service data 0x110b
+        0x05, 0x16, (byte) 0xd8, (byte) 0xfe, 0x00, 0x20, // service data 0xfed8
+        0x04, (byte) 0xff, 0x4c, 0x00, 0x02 // manufacturer specific data 0x004c
+    });
+    assertEquals(0, index.findServiceData(0x110b));
+    assertEquals(1, index.findServiceData(0xfed8));
+    assertEquals(-1, index.findServiceData(0x004c));
+    assertEquals(2, index.findManufacturerData(0x004c));
+    assertEquals(-1, index.findManufacturerData(0x110b));
+  }
+
+  public void testTruncated() {
+    // The name claims more bytes than the record holds.
+    AdStructureIndex index = AdStructureIndex.build(new byte[] {
+        0x02, 0x01, 0x1a, 0x09, 0x09, 0x50
+    });
+    assertTrue(index.isTruncated());
+    assertEquals(1, index.size());
+    assertEquals(0x01, index.getType(0));
+  }
+
+  public void testEmpty() {
+    AdStructureIndex index = AdStructureIndex.build(new byte[0]);
+    assertEquals(0, index.size());
+    assertFalse(index.isTruncated());
+  }
+}
@@ -165,5 +165,24 @@ public class AdvertisingDataTest extends AndroidTestCase {
     assertNotSame(0x0102030405L, value3);
   }
 
-
+  public void testIndexMatchesBytes() {
+    byte[][] records = {
+        TestData.eir_1, TestData.adv_1, TestData.adv_2, TestData.adv_3, TestData.manu_data_1,
+        TestData.manu_data_2, TestData.ibeacon_2
+    };
+    for (byte[] record : records) {
+      AdStructureIndex index = AdStructureIndex.build(record);
+      assertEquals(AdvertisingData.getName(record), AdvertisingData.getName(index));
+      assertEquals(AdvertisingData.getServiceUuids(record),
+          AdvertisingData.getServiceUuids(index));
+      assertEquals(AdvertisingData.getTxPowerLevel(record),
+          AdvertisingData.getTxPowerLevel(index));
+      assertEquals(AdvertisingData.getManufacturerCode(record),
+          AdvertisingData.getManufacturerCode(index));
+      assertTrue(Arrays.equals(AdvertisingData.getManufacturerData(record),
+          AdvertisingData.getManufacturerData(index)));
+      assertEquals(AdvertisingData.getServiceDataId(record),
+          AdvertisingData.getServiceDataId(index));
+    }
+  }
 }
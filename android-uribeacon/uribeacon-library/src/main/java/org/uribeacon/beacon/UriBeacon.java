@@ -18,14 +18,14 @@ package org.uribeacon.beacon;
 
 import android.os.ParcelUuid;
 import android.util.Log;
-import android.util.SparseArray;
-import android.webkit.URLUtil;
+
+import org.uribeacon.scan.util.AdStructureIndex;
 
 import java.net.URISyntaxException;
-import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Locale;
 import java.util.UUID;
 
@@ -45,38 +45,61 @@ public class UriBeacon {
   public static final byte NO_FLAGS = 0;
   public static final String NO_URI = "";
   private static final String TAG = "UriBeacon";
-  private static final int DATA_TYPE_SERVICE_DATA = 0x16;
-  private static final byte[] URI_SERVICE_16_BIT_UUID_BYTES = {(byte) 0xd8, (byte) 0xfe};
+  static final int URI_SERVICE_16_BIT_UUID = 0xfed8;
   /**
-   * URI Scheme maps a byte code into the scheme and an optional scheme specific prefix.
+   * URI Scheme maps a byte code into the scheme and an optional scheme specific prefix. The table
+   * is indexed by the unsigned byte code; the codes in use are 0 to URI_SCHEME_COUNT - 1.
    */
-  private static final SparseArray<String> URI_SCHEMES = new SparseArray<String>() {{
-    put((byte) 0, "http://www.");
-    put((byte) 1, "https://www.");
-    put((byte) 2, "http://");
-    put((byte) 3, "https://");
-    put((byte) 4, "urn:uuid:");    // RFC 2141 and RFC 4122};
-  }};
+  private static final String[] URI_SCHEMES = new String[256];
+  private static final int URI_SCHEME_COUNT = 5;
+  private static final int URN_UUID_SCHEME = 4;
   /**
    * Expansion strings for "http" and "https" schemes. These contain strings appearing anywhere in a
-   * URL. Restricted to Generic TLDs. <p/> Note: this is a scheme specific encoding.
+   * URL. Restricted to Generic TLDs. <p/> Note: this is a scheme specific encoding. The table is
+   * indexed by the unsigned byte code; the codes in use are 0 to URL_CODE_COUNT - 1.
    */
-  private static final SparseArray<String> URL_CODES = new SparseArray<String>() {{
-    put((byte) 0, ".com/");
-    put((byte) 1, ".org/");
-    put((byte) 2, ".edu/");
-    put((byte) 3, ".net/");
-    put((byte) 4, ".info/");
-    put((byte) 5, ".biz/");
-    put((byte) 6, ".gov/");
-    put((byte) 7, ".com");
-    put((byte) 8, ".org");
-    put((byte) 9, ".edu");
-    put((byte) 10, ".net");
-    put((byte) 11, ".info");
-    put((byte) 12, ".biz");
-    put((byte) 13, ".gov");
-  }};
+  private static final String[] URL_CODES = new String[256];
+  private static final int URL_CODE_COUNT = 14;
+
+  static {
+    URI_SCHEMES[0] = "http://www.";
+    URI_SCHEMES[1] = "https://www.";
+    URI_SCHEMES[2] = "http://";
+    URI_SCHEMES[3] = "https://";
+    URI_SCHEMES[URN_UUID_SCHEME] = "urn:uuid:";    // RFC 2141 and RFC 4122
+
+    URL_CODES[0] = ".com/";
+    URL_CODES[1] = ".org/";
+    URL_CODES[2] = ".edu/";
+    URL_CODES[3] = ".net/";
+    URL_CODES[4] = ".info/";
+    URL_CODES[5] = ".biz/";
+    URL_CODES[6] = ".gov/";
+    URL_CODES[7] = ".com";
+    URL_CODES[8] = ".org";
+    URL_CODES[9] = ".edu";
+    URL_CODES[10] = ".net";
+    URL_CODES[11] = ".info";
+    URL_CODES[12] = ".biz";
+    URL_CODES[13] = ".gov";
+  }
+
+  // Find the longest scheme or expansion in a single pass while encoding.
+  private static final UriCodeTrie URI_SCHEME_TRIE =
+      new UriCodeTrie(URI_SCHEMES, URI_SCHEME_COUNT, true);
+  private static final UriCodeTrie URL_CODE_TRIE =
+      new UriCodeTrie(URL_CODES, URL_CODE_COUNT, false);
+
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+  private static final int UUID_BYTES = 16;
+  // Reused by parseFromBytes() so decoding a packet only allocates the resulting String.
+  private static final ThreadLocal<StringBuilder> DECODE_BUFFER =
+      new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+          return new StringBuilder();
+        }
+      };
   private static final int FLAGS_FIELD_SIZE = 3;
   private static final int URI_SERVICE_FLAGS_TXPOWER_SIZE = 2;
   private static final byte[] URI_SERVICE_UUID_FIELD = {(byte) 0x03, (byte) 0x03, (byte) 0xD8,
@@ -102,29 +125,33 @@ public class UriBeacon {
    * @return the Uri string with expansion codes.
    */
   public static byte[] encodeUri(String uri) {
-    if (uri.length() == 0) {
-      return new byte[0];
-    }
-    ByteBuffer bb = ByteBuffer.allocate(uri.length());
-    // UUIDs are ordered as byte array, which means most significant first
-    bb.order(ByteOrder.BIG_ENDIAN);
-    int position = 0;
-
-    // Add the byte code for the scheme or return null if none
-    Byte schemeCode = encodeUriScheme(uri);
-    if (schemeCode == null) {
+    byte[] encodedUri = new byte[uri.length()];
+    int length = encodeUri(uri, encodedUri);
+    if (length < 0) {
       return null;
     }
-    String scheme = URI_SCHEMES.get(schemeCode);
-    bb.put(schemeCode);
-    position += scheme.length();
-
-    if (URLUtil.isNetworkUrl(scheme)) {
-      return encodeUrl(uri, position, bb);
-    } else if ("urn:uuid:".equals(scheme)) {
-      return encodeUrnUuid(uri, position, bb);
+    return length == encodedUri.length ? encodedUri : Arrays.copyOf(encodedUri, length);
+  }
+
+  /**
+   * Creates the Uri strings with embedded expansion codes for a batch of Uris. A single buffer is
+   * used to encode the whole batch.
+   *
+   * @param uris to be encoded
+   * @return the Uri strings with expansion codes, in the same order, with null for each Uri that
+   * cannot be encoded.
+   */
+  public static List<byte[]> encodeAll(List<String> uris) {
+    List<byte[]> encodedUris = new ArrayList<byte[]>(uris.size());
+    byte[] buffer = new byte[MAX_URI_LENGTH];
+    for (String uri : uris) {
+      if (buffer.length < uri.length()) {
+        buffer = new byte[Math.max(uri.length(), buffer.length * 2)];
+      }
+      int length = encodeUri(uri, buffer);
+      encodedUris.add(length < 0 ? null : Arrays.copyOf(buffer, length));
     }
-    return null;
+    return encodedUris;
   }
 
   /**
@@ -164,15 +191,45 @@ public class UriBeacon {
    * @param scanRecordBytes The scan record of Bluetooth LE advertisement and/or scan response.
    */
   public static UriBeacon parseFromBytes(byte[] scanRecordBytes) {
-    byte[] serviceData = parseServiceDataFromBytes(scanRecordBytes);
+    if (scanRecordBytes == null) {
+      return null;
+    }
+    return parseFromIndex(AdStructureIndex.build(scanRecordBytes));
+  }
+
+  /**
+   * Parse an already indexed scan record to {@link UriBeacon}, reading the Uri Service data in
+   * place. Use this with {@link org.uribeacon.scan.compat.ScanResult#getAdStructureIndex()} to
+   * avoid walking the scan record again.
+   *
+   * @param index The index of the Bluetooth LE advertisement and/or scan response.
+   */
+  public static UriBeacon parseFromIndex(AdStructureIndex index) {
+    if (index == null) {
+      return null;
+    }
+    int field = index.findServiceData(URI_SERVICE_16_BIT_UUID);
+    if (field < 0) {
+      return null;
+    }
+    // The first two bytes of the service data are the service data UUID.
+    return parseServiceData(index.getBytes(), index.getDataOffset(field) + 2,
+        index.getDataOffset(field) + index.getDataLength(field));
+  }
+
+  /**
+   * Parse the Uri Service data found from {@code offset} up to {@code end}, following the service
+   * data UUID.
+   */
+  static UriBeacon parseServiceData(byte[] bytes, int offset, int end) {
     // Minimum UriBeacon consists of flags, TxPower
-    if (serviceData == null || serviceData.length < 2) {
+    if (end - offset < 2) {
       return null;
     }
-    int currentPos = 0;
-    byte flags = serviceData[currentPos++];
-    byte txPowerLevel = serviceData[currentPos++];
-    String uri = decodeUri(serviceData, currentPos);
+    int currentPos = offset;
+    byte flags = bytes[currentPos++];
+    byte txPowerLevel = bytes[currentPos++];
+    String uri = decodeUri(bytes, currentPos, end);
     return new UriBeacon(flags, txPowerLevel, uri);
   }
 
@@ -213,12 +270,7 @@ public class UriBeacon {
    * @return
    */
   public static int uriLength(String uriString) {
-    byte[] encodedUri = encodeUri(uriString);
-    if (encodedUri == null) {
-      return -1;
-    } else {
-      return encodedUri.length;
-    }
+    return encodeUri(uriString, new byte[uriString.length()]);
   }
 
   public static class Builder {
@@ -274,7 +326,7 @@ public class UriBeacon {
      */
     public UriBeacon build() throws URISyntaxException {
       if (mUriBytes != null) {
-        mUriString = decodeUri(mUriBytes, 0);
+        mUriString = decodeUri(mUriBytes, 0, mUriBytes.length);
         if (mUriString == null) {
           throw new IllegalArgumentException("Could not decode URI");
         }
@@ -305,120 +357,139 @@ public class UriBeacon {
     mUriString = uriString;
   }
 
-  private static String decodeUri(byte[] serviceData, int offset) {
-    if (serviceData.length == offset) {
-      return NO_URI;
+  /**
+   * Decode the Uri encoded in {@code uriBytes} from {@code offset} up to {@code end}, appending it
+   * to {@code out}. This does not allocate, so a caller that reuses {@code out} can decode repeated
+   * sightings without creating garbage.
+   *
+   * @param uriBytes The encoded Uri, starting with its scheme code.
+   * @param offset The position of the scheme code.
+   * @param end The position following the last byte of the encoded Uri.
+   * @param out Receives the decoded Uri. It is left unchanged if the Uri is not valid.
+   * @return false if the bytes do not hold a valid Uri.
+   */
+  public static boolean decodeUri(byte[] uriBytes, int offset, int end, StringBuilder out) {
+    if (offset >= end) {
+      return offset == end;
     }
-    StringBuilder uriBuilder = new StringBuilder();
-    if (offset < serviceData.length) {
-      byte b = serviceData[offset++];
-      String scheme = URI_SCHEMES.get(b);
-      if (scheme != null) {
-        uriBuilder.append(scheme);
-        if (URLUtil.isNetworkUrl(scheme)) {
-          return decodeUrl(serviceData, offset, uriBuilder);
-        } else if ("urn:uuid:".equals(scheme)) {
-          return decodeUrnUuid(serviceData, offset, uriBuilder);
-        }
+    int b = uriBytes[offset++] & 0xff;
+    String scheme = URI_SCHEMES[b];
+    if (scheme == null) {
+      Log.w(TAG, "decodeUri unknown Uri scheme code=" + (byte) b);
+      return false;
+    }
+    int start = out.length();
+    out.append(scheme);
+    if (b == URN_UUID_SCHEME) {
+      if (!decodeUrnUuid(uriBytes, offset, end, out)) {
+        out.setLength(start);
+        return false;
       }
-      Log.w(TAG, "decodeUri unknown Uri scheme code=" + b);
+      return true;
     }
-    return null;
+    decodeUrl(uriBytes, offset, end, out);
+    return true;
   }
 
-  private static String decodeUrl(byte[] serviceData, int offset, StringBuilder urlBuilder) {
-    while (offset < serviceData.length) {
+  private static String decodeUri(byte[] serviceData, int offset, int end) {
+    if (end == offset) {
+      return NO_URI;
+    }
+    StringBuilder uriBuilder = DECODE_BUFFER.get();
+    uriBuilder.setLength(0);
+    if (!decodeUri(serviceData, offset, end, uriBuilder)) {
+      return null;
+    }
+    return uriBuilder.toString();
+  }
+
+  private static void decodeUrl(byte[] serviceData, int offset, int end,
+      StringBuilder urlBuilder) {
+    while (offset < end) {
       byte b = serviceData[offset++];
-      String code = URL_CODES.get(b);
+      String code = URL_CODES[b & 0xff];
       if (code != null) {
         urlBuilder.append(code);
       } else {
         urlBuilder.append((char) b);
       }
     }
-    return urlBuilder.toString();
   }
 
-  private static String decodeUrnUuid(byte[] serviceData, int offset, StringBuilder urnBuilder) {
-    ByteBuffer bb = ByteBuffer.wrap(serviceData);
-    // UUIDs are ordered as byte array, which means most significant first
-    bb.order(ByteOrder.BIG_ENDIAN);
-    long mostSignificantBytes, leastSignificantBytes;
-    try {
-      bb.position(offset);
-      mostSignificantBytes = bb.getLong();
-      leastSignificantBytes = bb.getLong();
-    } catch (BufferUnderflowException e) {
-      Log.w(TAG, "decodeUrnUuid BufferUnderflowException!");
-      return null;
+  private static boolean decodeUrnUuid(byte[] serviceData, int offset, int end,
+      StringBuilder urnBuilder) {
+    if (end - offset < UUID_BYTES) {
+      Log.w(TAG, "decodeUrnUuid too few bytes for a UUID");
+      return false;
     }
-    UUID uuid = new UUID(mostSignificantBytes, leastSignificantBytes);
-    urnBuilder.append(uuid.toString());
-    return urnBuilder.toString();
+    // UUIDs are ordered as byte array, which means most significant first. Formatted the same way
+    // as UUID.toString().
+    for (int i = 0; i < UUID_BYTES; i++) {
+      if (i == 4 || i == 6 || i == 8 || i == 10) {
+        urnBuilder.append('-');
+      }
+      int b = serviceData[offset + i] & 0xff;
+      urnBuilder.append(HEX_DIGITS[b >>> 4]).append(HEX_DIGITS[b & 0x0f]);
+    }
+    return true;
   }
 
   /**
-   * Finds the longest expansion from the uri at the current position.
+   * Writes the Uri string with embedded expansion codes to {@code out}, which must hold at least as
+   * many bytes as the Uri has characters. The expansions never make the encoding longer.
    *
-   * @param uriString the Uri
-   * @param pos start position
-   * @return an index in URI_MAP or 0 if none.
+   * @return the number of bytes written, or -1 if the Uri cannot be encoded.
    */
-  private static byte findLongestExpansion(String uriString, int pos) {
-    byte expansion = -1;
-    int expansionLength = 0;
-    for (int i = 0; i < URL_CODES.size(); i++) {
-      // get the key and value.
-      int key = URL_CODES.keyAt(i);
-      String value = URL_CODES.valueAt(i);
-      if (value.length() > expansionLength && uriString.startsWith(value, pos)) {
-        expansion = (byte) key;
-        expansionLength = value.length();
-      }
+  private static int encodeUri(String uri, byte[] out) {
+    if (uri.length() == 0) {
+      return 0;
     }
-    return expansion;
-  }
+    // Add the byte code for the scheme or fail if none
+    int schemeCode = URI_SCHEME_TRIE.longestMatch(uri, 0);
+    if (schemeCode == UriCodeTrie.NO_CODE) {
+      return -1;
+    }
+    out[0] = (byte) schemeCode;
+    int position = URI_SCHEMES[schemeCode].length();
 
-  private static Byte encodeUriScheme(String uri) {
-    String lowerCaseUri = uri.toLowerCase(Locale.ENGLISH);
-    for (int i = 0; i < URI_SCHEMES.size(); i++) {
-      // get the key and value.
-      int key = URI_SCHEMES.keyAt(i);
-      String value = URI_SCHEMES.valueAt(i);
-      if (lowerCaseUri.startsWith(value)) {
-        return (byte) key;
-      }
+    if (schemeCode == URN_UUID_SCHEME) {
+      return encodeUrnUuid(uri, position, out, 1);
     }
-    return null;
+    return encodeUrl(uri, position, out, 1);
   }
 
-  private static byte[] encodeUrl(String url, int position, ByteBuffer bb) {
+  private static int encodeUrl(String url, int position, byte[] out, int outPosition) {
     while (position < url.length()) {
-      byte expansion = findLongestExpansion(url, position);
-      if (expansion >= 0) {
-        bb.put(expansion);
-        position += URL_CODES.get(expansion).length();
+      int expansion = URL_CODE_TRIE.longestMatch(url, position);
+      if (expansion != UriCodeTrie.NO_CODE) {
+        out[outPosition++] = (byte) expansion;
+        position += URL_CODES[expansion].length();
       } else {
-        bb.put((byte) url.charAt(position++));
+        out[outPosition++] = (byte) url.charAt(position++);
       }
     }
-    return byteBufferToArray(bb);
+    return outPosition;
   }
 
-  private static byte[] encodeUrnUuid(String urn, int position, ByteBuffer bb) {
+  private static int encodeUrnUuid(String urn, int position, byte[] out, int outPosition) {
     String uuidString = urn.substring(position, urn.length());
     UUID uuid;
     try {
       uuid = UUID.fromString(uuidString);
     } catch (IllegalArgumentException e) {
       Log.w(TAG, "encodeUrnUuid invalid urn:uuid format - " + urn);
-      return null;
+      return -1;
     }
     // UUIDs are ordered as byte array, which means most significant first
-    bb.order(ByteOrder.BIG_ENDIAN);
-    bb.putLong(uuid.getMostSignificantBits());
-    bb.putLong(uuid.getLeastSignificantBits());
-    return byteBufferToArray(bb);
+    outPosition = putLongBigEndian(uuid.getMostSignificantBits(), out, outPosition);
+    return putLongBigEndian(uuid.getLeastSignificantBits(), out, outPosition);
+  }
+
+  private static int putLongBigEndian(long value, byte[] out, int outPosition) {
+    for (int shift = 56; shift >= 0; shift -= 8) {
+      out[outPosition++] = (byte) (value >>> shift);
+    }
+    return outPosition;
   }
 
   private static byte[] byteBufferToArray(ByteBuffer bb) {
@@ -438,8 +509,8 @@ public class UriBeacon {
   // Compute the size of the advertisement data in the Service UUID and Service Data fields.
   // This does not include the ADV Flag Fields (3 bytes).
   private static int totalBytes(String uriString) {
-    byte[] encodedUri = encodeUri(uriString);
-    if (encodedUri == null) {
+    int encodedUriLength = uriLength(uriString);
+    if (encodedUriLength < 0) {
       return 0;
     }
     int size = URI_SERVICE_UUID_FIELD.length;
@@ -447,42 +518,8 @@ public class UriBeacon {
     size += URI_SERVICE_DATA_FIELD_HEADER.length;
     size += 1; // flags is one byte.
     size += 1; // tx power level value is one byte.
-    size += encodedUri.length;
+    size += encodedUriLength;
     return size;
   }
 
-  /**
-   * Return the Service Data for Uri Service.
-   *
-   * @param scanRecord The scanRecord containing the UriBeacon advertisement.
-   * @return data from the Uri Service field
-   */
-  private static byte[] parseServiceDataFromBytes(byte[] scanRecord) {
-    int currentPos = 0;
-    try {
-      while (currentPos < scanRecord.length) {
-        int fieldLength = scanRecord[currentPos++] & 0xff;
-        if (fieldLength == 0) {
-          break;
-        }
-        int fieldType = scanRecord[currentPos++] & 0xff;
-        if (fieldType == DATA_TYPE_SERVICE_DATA) {
-          // The first two bytes of the service data are service data UUID.
-          if (scanRecord[currentPos++] == URI_SERVICE_16_BIT_UUID_BYTES[0]
-              && scanRecord[currentPos++] == URI_SERVICE_16_BIT_UUID_BYTES[1]) {
-            // length includes the length of the field type and ID
-            byte[] bytes = new byte[fieldLength - 3];
-            System.arraycopy(scanRecord, currentPos, bytes, 0, fieldLength - 3);
-            return bytes;
-          }
-        }
-        // length includes the length of the field type
-        currentPos += fieldLength - 1;
-      }
-    } catch (Exception e) {
-      Log.e(TAG, "unable to parse scan record: " + Arrays.toString(scanRecord), e);
-    }
-    return null;
-  }
-
 }
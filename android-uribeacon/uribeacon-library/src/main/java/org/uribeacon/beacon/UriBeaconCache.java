@@ -0,0 +1,238 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.beacon;
+
+import org.uribeacon.scan.util.AdStructureIndex;
+
+import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded, least recently used cache of decoded {@link UriBeacon}s keyed by the Uri Service data
+ * they were decoded from.
+ * <p>
+ * Beacons re-advertise the same service data several times a second. A cache hit returns the
+ * {@link UriBeacon} built for the first sighting without decoding the Uri again; the lookup itself
+ * does not allocate. Only beacons that decoded successfully are cached.
+ * <p>
+ * This class is thread safe.
+ */
+public class UriBeaconCache {
+
+  public static final int DEFAULT_MAX_SIZE = 64;
+
+  private final int maxSize;
+  private final LinkedHashMap<Key, UriBeacon> beacons;
+  // Reused for lookups so that a hit does not allocate.
+  private final Key probe = new Key();
+  private int hitCount;
+  private int missCount;
+  private int evictionCount;
+
+  public UriBeaconCache() {
+    this(DEFAULT_MAX_SIZE);
+  }
+
+  /**
+   * @param maxSize The maximum number of beacons kept.
+   */
+  public UriBeaconCache(int maxSize) {
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("maxSize must be positive: " + maxSize);
+    }
+    this.maxSize = maxSize;
+    this.beacons = new LinkedHashMap<Key, UriBeacon>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Key, UriBeacon> eldest) {
+        if (size() > UriBeaconCache.this.maxSize) {
+          evictionCount++;
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * Same as {@link UriBeacon#parseFromBytes(byte[])}, returning the cached beacon when the same
+   * service data was seen before.
+   */
+  public UriBeacon parseFromBytes(byte[] scanRecordBytes) {
+    if (scanRecordBytes == null) {
+      return null;
+    }
+    return parseFromIndex(AdStructureIndex.build(scanRecordBytes));
+  }
+
+  /**
+   * Same as {@link UriBeacon#parseFromIndex(AdStructureIndex)}, returning the cached beacon when
+   * the same service data was seen before.
+   */
+  public synchronized UriBeacon parseFromIndex(AdStructureIndex index) {
+    if (index == null) {
+      return null;
+    }
+    int field = index.findServiceData(UriBeacon.URI_SERVICE_16_BIT_UUID);
+    if (field < 0) {
+      return null;
+    }
+    byte[] bytes = index.getBytes();
+    int offset = index.getDataOffset(field) + 2;
+    int end = index.getDataOffset(field) + index.getDataLength(field);
+    UriBeacon uriBeacon = get(Key.URI_BEACON, bytes, offset, end);
+    if (uriBeacon == null) {
+      uriBeacon = UriBeacon.parseServiceData(bytes, offset, end);
+      if (uriBeacon != null) {
+        put(Key.URI_BEACON, bytes, offset, end, uriBeacon);
+      }
+    }
+    return uriBeacon;
+  }
+
+  /**
+   * Same as {@link ConfigUriBeacon#createConfigUriBeacon(byte[])}, returning the cached beacon
+   * when the same service data was seen before.
+   */
+  public synchronized ConfigUriBeacon createConfigUriBeacon(byte[] scanRecordBytes)
+      throws URISyntaxException {
+    AdStructureIndex index = scanRecordBytes == null
+        ? null : AdStructureIndex.build(scanRecordBytes);
+    int field = index == null ? -1 : index.findServiceData(UriBeacon.URI_SERVICE_16_BIT_UUID);
+    if (field < 0) {
+      return ConfigUriBeacon.createConfigUriBeacon(scanRecordBytes);
+    }
+    int offset = index.getDataOffset(field) + 2;
+    int end = index.getDataOffset(field) + index.getDataLength(field);
+    ConfigUriBeacon configUriBeacon =
+        (ConfigUriBeacon) get(Key.CONFIG_URI_BEACON, scanRecordBytes, offset, end);
+    if (configUriBeacon == null) {
+      configUriBeacon = ConfigUriBeacon.createConfigUriBeacon(scanRecordBytes);
+      put(Key.CONFIG_URI_BEACON, scanRecordBytes, offset, end, configUriBeacon);
+    }
+    return configUriBeacon;
+  }
+
+  /**
+   * Returns the number of lookups that found a cached beacon.
+   */
+  public synchronized int getHitCount() {
+    return hitCount;
+  }
+
+  /**
+   * Returns the number of lookups that had to decode the service data.
+   */
+  public synchronized int getMissCount() {
+    return missCount;
+  }
+
+  /**
+   * Returns the number of beacons dropped to stay within the maximum size.
+   */
+  public synchronized int getEvictionCount() {
+    return evictionCount;
+  }
+
+  /**
+   * Returns the number of beacons currently cached.
+   */
+  public synchronized int size() {
+    return beacons.size();
+  }
+
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  /**
+   * Drop every cached beacon. The counters are kept.
+   */
+  public synchronized void evictAll() {
+    beacons.clear();
+  }
+
+  private UriBeacon get(int kind, byte[] bytes, int offset, int end) {
+    UriBeacon uriBeacon = beacons.get(probe.set(kind, bytes, offset, end));
+    // Don't hold on to the caller's bytes.
+    probe.set(kind, null, 0, 0);
+    if (uriBeacon != null) {
+      hitCount++;
+    } else {
+      missCount++;
+    }
+    return uriBeacon;
+  }
+
+  private void put(int kind, byte[] bytes, int offset, int end, UriBeacon uriBeacon) {
+    beacons.put(new Key().set(kind, Arrays.copyOfRange(bytes, offset, end), 0, end - offset),
+        uriBeacon);
+  }
+
+  /**
+   * A range of service data bytes and the kind of beacon decoded from it.
+   */
+  private static final class Key {
+    static final int URI_BEACON = 0;
+    static final int CONFIG_URI_BEACON = 1;
+
+    private int kind;
+    private byte[] bytes;
+    private int offset;
+    private int length;
+    private int hash;
+
+    Key set(int kind, byte[] bytes, int offset, int end) {
+      this.kind = kind;
+      this.bytes = bytes;
+      this.offset = offset;
+      this.length = end - offset;
+      int hash = kind;
+      for (int i = offset; i < end; i++) {
+        hash = 31 * hash + bytes[i];
+      }
+      this.hash = hash;
+      return this;
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) obj;
+      if (hash != other.hash || kind != other.kind || length != other.length) {
+        return false;
+      }
+      for (int i = 0; i < length; i++) {
+        if (bytes[offset + i] != other.bytes[other.offset + i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.beacon;
+
+import java.util.Arrays;
+
+/**
+ * A character trie over the expansion strings of a UriBeacon code table. It finds the code of the
+ * longest expansion starting at a given position with a single walk over the following characters.
+ * <p>
+ * Expansions must be ASCII. The transitions are kept in one table with a column for each distinct
+ * character used by the expansions.
+ */
+final class UriCodeTrie {
+
+  static final int NO_CODE = -1;
+  private static final int ASCII_SIZE = 128;
+
+  private final boolean ignoreCase;
+  // Column of each ASCII character in the transition table, or -1 if no expansion uses it.
+  private final int[] columns = new int[ASCII_SIZE];
+  private final int width;
+  // Child of a node for a column is at [node * width + column]. The root is node 0 and is never a
+  // child, so 0 means there is no child.
+  private final int[] next;
+  // The code of the expansion ending at each node, or NO_CODE.
+  private final int[] codes;
+
+  /**
+   * @param table The expansion of each code.
+   * @param count The number of codes in use, which are 0 to count - 1.
+   * @param ignoreCase Whether ASCII letters match regardless of case. The expansions must then be
+   * lower case.
+   */
+  UriCodeTrie(String[] table, int count, boolean ignoreCase) {
+    this.ignoreCase = ignoreCase;
+    Arrays.fill(columns, -1);
+    int width = 0;
+    int maxNodes = 1;
+    for (int code = 0; code < count; code++) {
+      String expansion = table[code];
+      for (int i = 0; i < expansion.length(); i++) {
+        char c = expansion.charAt(i);
+        if (c >= ASCII_SIZE) {
+          throw new IllegalArgumentException("Expansion is not ASCII: " + expansion);
+        }
+        if (columns[c] < 0) {
+          columns[c] = width++;
+        }
+      }
+      maxNodes += expansion.length();
+    }
+    this.width = width;
+    this.next = new int[maxNodes * width];
+    this.codes = new int[maxNodes];
+    Arrays.fill(codes, NO_CODE);
+
+    int nodes = 1;
+    for (int code = 0; code < count; code++) {
+      String expansion = table[code];
+      int node = 0;
+      for (int i = 0; i < expansion.length(); i++) {
+        int slot = node * width + columns[expansion.charAt(i)];
+        if (next[slot] == 0) {
+          next[slot] = nodes++;
+        }
+        node = next[slot];
+      }
+      codes[node] = code;
+    }
+  }
+
+  /**
+   * Returns the code of the longest expansion that {@code s} starts with at {@code pos}, or
+   * {@link #NO_CODE} if there is none.
+   */
+  int longestMatch(String s, int pos) {
+    int node = 0;
+    int code = NO_CODE;
+    for (int i = pos; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (ignoreCase && c >= 'A' && c <= 'Z') {
+        c += 'a' - 'A';
+      }
+      if (c >= ASCII_SIZE || columns[c] < 0) {
+        break;
+      }
+      node = next[node * width + columns[c]];
+      if (node == 0) {
+        break;
+      }
+      if (codes[node] != NO_CODE) {
+        code = codes[node];
+      }
+    }
+    return code;
+  }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.uribeacon.scan.compat;
+
+/**
+ * Chooses the idle time of each scan cycle from what the previous cycle found.
+ * <p>
+ * A cycle that finds a new device drops the idle time to its minimum, so that discovery is fast
+ * when walking into a new area. A cycle where devices changed their advertisement or their
+ * signal strength varied halves it. A quiet cycle lengthens it by half, up to its maximum, so
+ * that the radio sleeps more while nothing happens.
+ * <p>
+ * Not thread safe: used while holding the scanner lock.
+ */
+final class AdaptiveScanScheduler {
+
+  // Variance of the signal strength of the devices, in dBm squared, above which they are taken
+  // to be moving (a standard deviation of 4 dBm).
+  /* @VisibleForTesting */ static final double RSSI_VARIANCE_THRESHOLD = 16;
+
+  private final int activeMillis;
+  private final int minIdleMillis;
+  private final int maxIdleMillis;
+  private int idleMillis;
+  // The length of the last cycles, for the lost timeout.
+  private final long[] recentPeriodsMillis;
+  private int nextPeriod;
+  private long cycleCount;
+  private long shortenedCount;
+  private long lengthenedCount;
+
+  /**
+   * @param activeMillis The time the radio scans in each cycle.
+   * @param minIdleMillis The shortest idle time.
+   * @param maxIdleMillis The longest idle time.
+   * @param lostCycles The number of cycles after which an unseen device is lost.
+   */
+  AdaptiveScanScheduler(int activeMillis, int minIdleMillis, int maxIdleMillis, int lostCycles) {
+    if (activeMillis <= 0 || minIdleMillis <= 0 || maxIdleMillis < minIdleMillis) {
+      throw new IllegalArgumentException("invalid adaptive timing: active=" + activeMillis
+          + ", idle=[" + minIdleMillis + ", " + maxIdleMillis + "]");
+    }
+    this.activeMillis = activeMillis;
+    this.minIdleMillis = minIdleMillis;
+    this.maxIdleMillis = maxIdleMillis;
+    this.idleMillis = minIdleMillis;
+    this.recentPeriodsMillis = new long[lostCycles];
+    for (int i = 0; i < lostCycles; i++) {
+      recentPeriodsMillis[i] = activeMillis + minIdleMillis;
+    }
+  }
+
+  /**
+   * Choose the idle time of the next cycle from the {@code activity} of the one that completed.
+   * Returns true if it changed.
+   */
+  boolean onCycleComplete(RecentSightings.Activity activity) {
+    recentPeriodsMillis[nextPeriod] = activeMillis + idleMillis;
+    nextPeriod = (nextPeriod + 1) % recentPeriodsMillis.length;
+    cycleCount++;
+
+    int nextIdleMillis;
+    if (activity.newDevices > 0) {
+      nextIdleMillis = minIdleMillis;
+    } else if (activity.changedDevices > 0 || activity.rssiVariance > RSSI_VARIANCE_THRESHOLD) {
+      nextIdleMillis = Math.max(minIdleMillis, idleMillis / 2);
+    } else {
+      nextIdleMillis = (int) Math.min(maxIdleMillis, idleMillis + Math.max(1, idleMillis / 2));
+    }
+    if (nextIdleMillis < idleMillis) {
+      shortenedCount++;
+    } else if (nextIdleMillis > idleMillis) {
+      lengthenedCount++;
+    }
+    boolean changed = nextIdleMillis != idleMillis;
+    idleMillis = nextIdleMillis;
+    return changed;
+  }
+
+  /**
+   * Go back to the shortest idle time, when a new client may be looking for new devices.
+   */
+  void reset() {
+    idleMillis = minIdleMillis;
+  }
+
+  int getActiveMillis() {
+    return activeMillis;
+  }
+
+  int getIdleMillis() {
+    return idleMillis;
+  }
+
+  /**
+   * Returns the length of the last cycles, over which an unseen device is lost. With cycles of
+   * varying length, this keeps a device from being lost in fewer cycles when they shorten.
+   */
+  long getLostTimeoutMillis() {
+    long timeoutMillis = 0;
+    for (long periodMillis : recentPeriodsMillis) {
+      timeoutMillis += periodMillis;
+    }
+    return timeoutMillis;
+  }
+
+  ScanDutyCycleStats getStats() {
+    return new ScanDutyCycleStats(
+        activeMillis, idleMillis, cycleCount, shortenedCount, lengthenedCount);
+  }
+}
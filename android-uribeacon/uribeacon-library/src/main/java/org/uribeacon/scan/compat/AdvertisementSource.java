@@ -0,0 +1,56 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.uribeacon.scan.compat;
+
+import android.bluetooth.BluetoothDevice;
+
+import android.support.annotation.Nullable;
+
+/**
+ * Where a scanner gets its advertisements from: the Bluetooth radio, or a stand-in such as a
+ * capture replayed to load-test the filtering and dispatch code without beacons.
+ */
+public interface AdvertisementSource {
+
+  /**
+   * Receives the advertisements, one at a time, while the source is started.
+   */
+  interface Listener {
+    /**
+     * Called for each advertisement received. Must not block.
+     *
+     * @param device The device that advertised, or null if the source has none.
+     * @param address The address of the device.
+     * @param rssi The signal strength the advertisement was received at, in dBm.
+     * @param scanRecord The raw advertisement bytes. Must not be modified.
+     */
+    void onAdvertisement(
+        @Nullable BluetoothDevice device, String address, int rssi, byte[] scanRecord);
+  }
+
+  /**
+   * Start delivering advertisements to {@code listener}. Returns false if the source could not
+   * start.
+   */
+  boolean start(Listener listener);
+
+  /**
+   * Stop delivering advertisements to {@code listener}.
+   */
+  void stop(Listener listener);
+}
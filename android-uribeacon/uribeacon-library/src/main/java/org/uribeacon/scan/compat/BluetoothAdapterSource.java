@@ -0,0 +1,58 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.uribeacon.scan.compat;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+
+/**
+ * Advertisements from the Bluetooth radio, through the
+ * {@link android.os.Build.VERSION_CODES#JELLY_BEAN_MR2} LE scan API.
+ * <p>
+ * Suppresses deprecation because this is the compatibility support.
+ */
+@SuppressWarnings("deprecation")
+final class BluetoothAdapterSource implements AdvertisementSource {
+  private final BluetoothAdapter bluetoothAdapter;
+  // The callback registered with the OS for the started listener.
+  private BluetoothAdapter.LeScanCallback leScanCallback;
+
+  BluetoothAdapterSource(BluetoothAdapter bluetoothAdapter) {
+    this.bluetoothAdapter = bluetoothAdapter;
+  }
+
+  @Override
+  public synchronized boolean start(final Listener listener) {
+    leScanCallback = new BluetoothAdapter.LeScanCallback() {
+      @Override
+      public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
+        listener.onAdvertisement(device, device.getAddress(), rssi, scanRecord);
+      }
+    };
+    return bluetoothAdapter.startLeScan(leScanCallback);
+  }
+
+  @Override
+  public synchronized void stop(Listener listener) {
+    if (leScanCallback != null) {
+      BluetoothAdapter.LeScanCallback callback = leScanCallback;
+      leScanCallback = null;
+      bluetoothAdapter.stopLeScan(callback);
+    }
+  }
+}
@@ -22,6 +22,10 @@
 //   Remove implementations
 //   Define setCustomScanTiming for ULR
 //   Slight updates to javadoc
+//   Define getDeliveryStats for per-client delivery counters
+//   Define setAdaptiveScanTiming and getDutyCycleStats
+//   Define setScanMultiplexing
+//   Define getSightingStats for the devices remembered for replay
 
 package org.uribeacon.scan.compat;
 
@@ -122,4 +126,65 @@ public abstract class BluetoothLeScannerCompat {
      * within the given time. Set to a negative value to allow default behaviour.
      */
     public abstract void setScanLostOverride(long lostOverrideMillis);
+
+    /**
+     * Lets the scanner choose the idle time of each scan cycle between the given bounds: shorter
+     * while new or changing devices are found, longer while nothing changes. A scan cycle set
+     * with {@link #setCustomScanTiming} supersedes it.
+     * <p>
+     * This is an extension of the "L" Platform API. Ignored by hardware scanners.
+     *
+     * @param scanMillis duration in milliseconds for the scan to be active, or -1 to remove.
+     * @param minIdleMillis shortest duration in milliseconds for the scan to be idle.
+     * @param maxIdleMillis longest duration in milliseconds for the scan to be idle.
+     * @throws IllegalArgumentException If the durations are not positive or
+     *        {@code maxIdleMillis} &lt; {@code minIdleMillis}.
+     */
+    public void setAdaptiveScanTiming(int scanMillis, int minIdleMillis, int maxIdleMillis) {
+    }
+
+    /**
+     * Returns the scan cycle the scanner runs and how adaptive timing changed it, or
+     * {@code null} if the scanner does not cycle.
+     * <p>
+     * This is an extension of the "L" Platform API.
+     *
+     * @see #setAdaptiveScanTiming
+     */
+    public ScanDutyCycleStats getDutyCycleStats() {
+        return null;
+    }
+
+    /**
+     * Lets scans started from now on share one hardware scan, when they report every match without
+     * delay. The shared scan uses the union of their filters and the most aggressive of their scan
+     * modes, and its results are routed to the matching scans in software. Off by default.
+     * <p>
+     * This is an extension of the "L" Platform API. Ignored by scanners that already run a single
+     * scan.
+     */
+    public void setScanMultiplexing(boolean enabled) {
+    }
+
+    /**
+     * Returns the delivery counters of the scan started with {@code callback}, or {@code null} if
+     * there is no such scan or the scanner does not queue results per client.
+     * <p>
+     * This is an extension of the "L" Platform API.
+     *
+     * @see ScanSettings.Builder#setDeliveryQueue
+     */
+    public ScanDeliveryStats getDeliveryStats(ScanCallback callback) {
+        return null;
+    }
+
+    /**
+     * Returns the counters of the devices the scanner remembers to report to scans started
+     * later, or {@code null} if the scanner does not remember them.
+     * <p>
+     * This is an extension of the "L" Platform API.
+     */
+    public ScanSightingStats getSightingStats() {
+        return null;
+    }
 }
@@ -16,6 +16,11 @@
 
 // THIS IS MODIFIED COPY OF THE "L" PLATFORM CLASS. BE CAREFUL ABOUT EDITS.
 // THIS CODE SHOULD FOLLOW ANDROID STYLE.
+//
+// Changes:
+//   Return interned ParcelUuids for 16-bit UUIDs (see get16BitUuid())
+//   Added parseUuidFrom() overload reading the UUID in place
+//   Added getShortUuid()
 
 package org.uribeacon.scan.compat;
 
@@ -26,6 +31,7 @@ import java.nio.ByteOrder;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Static helper methods and constants to decode the ParcelUuid of remote devices.
@@ -83,6 +89,8 @@ public final class BluetoothUuid {
     public static final int UUID_BYTES_32_BIT = 4;
     /** Length of bytes for 128 bit UUID */
     public static final int UUID_BYTES_128_BIT = 16;
+    private static final long BASE_UUID_MSB = BASE_UUID.getUuid().getMostSignificantBits();
+    private static final long BASE_UUID_LSB = BASE_UUID.getUuid().getLeastSignificantBits();
     public static final ParcelUuid[] RESERVED_UUIDS = {
             AudioSink, AudioSource, AdvAudioDist, HSP, Handsfree, AvrcpController, AvrcpTarget,
             ObexObjectPush, PANU, NAP, MAP, MNS, MAS };
@@ -227,6 +235,18 @@ public final class BluetoothUuid {
         return (int) value;
     }
 
+    /**
+     * Extract the 16-bit or 32-bit UUID from the Parcel Uuid. For example, if
+     * 0000110B-0000-1000-8000-00805F9B34FB is the parcel Uuid, this function will return 0x110B.
+     * Only meaningful if {@link #is16BitUuid} or {@link #is32BitUuid} holds for the Parcel Uuid.
+     *
+     * @param parcelUuid
+     * @return the 16-bit or 32-bit UUID.
+     */
+    public static int getShortUuid(ParcelUuid parcelUuid) {
+        return (int) (parcelUuid.getUuid().getMostSignificantBits() >>> 32);
+    }
+
     /**
      * Parse UUID from bytes. The {@code uuidBytes} can represent a 16-bit, 32-bit or 128-bit UUID,
      * but the returned UUID is always in 128-bit format. Note UUID is little endian in Bluetooth.
@@ -239,33 +259,71 @@ public final class BluetoothUuid {
         if (uuidBytes == null) {
             throw new IllegalArgumentException("uuidBytes cannot be null");
         }
-        int length = uuidBytes.length;
+        return parseUuidFrom(uuidBytes, 0, uuidBytes.length);
+    }
+
+    /**
+     * Parse UUID from {@code length} bytes of {@code bytes} starting at {@code offset}, without
+     * copying them. 16-bit UUIDs are returned as the instances of {@link #get16BitUuid}.
+     *
+     * @see #parseUuidFrom(byte[])
+     * @throws IllegalArgumentException If the bytes cannot be parsed.
+     */
+    public static ParcelUuid parseUuidFrom(byte[] bytes, int offset, int length) {
         if (length != UUID_BYTES_16_BIT && length != UUID_BYTES_32_BIT &&
                 length != UUID_BYTES_128_BIT) {
             throw new IllegalArgumentException("uuidBytes length invalid - " + length);
         }
         // Construct a 128 bit UUID.
         if (length == UUID_BYTES_128_BIT) {
-            ByteBuffer buf = ByteBuffer.wrap(uuidBytes).order(ByteOrder.LITTLE_ENDIAN);
-            long msb = buf.getLong(8);
-            long lsb = buf.getLong(0);
+            ByteBuffer buf = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+            long msb = buf.getLong(offset + 8);
+            long lsb = buf.getLong(offset);
             return new ParcelUuid(new UUID(msb, lsb));
         }
         // For 16 bit and 32 bit UUID we need to convert them to 128 bit value.
         // 128_bit_value = uuid * 2^96 + BASE_UUID
-        long shortUuid;
+        int shortUuid = bytes[offset] & 0xFF;
+        shortUuid += (bytes[offset + 1] & 0xFF) << 8;
         if (length == UUID_BYTES_16_BIT) {
-            shortUuid = uuidBytes[0] & 0xFF;
-            shortUuid += (uuidBytes[1] & 0xFF) << 8;
-        } else {
-            shortUuid = uuidBytes[0] & 0xFF;
-            shortUuid += (uuidBytes[1] & 0xFF) << 8;
-            shortUuid += (uuidBytes[2] & 0xFF) << 16;
-            shortUuid += (uuidBytes[3] & 0xFF) << 24;
+            return get16BitUuid(shortUuid);
         }
-        long msb = BASE_UUID.getUuid().getMostSignificantBits() + (shortUuid << 32);
-        long lsb = BASE_UUID.getUuid().getLeastSignificantBits();
-        return new ParcelUuid(new UUID(msb, lsb));
+        shortUuid += (bytes[offset + 2] & 0xFF) << 16;
+        shortUuid += (bytes[offset + 3] & 0xFF) << 24;
+        return new ParcelUuid(new UUID(from16Or32BitUuid(shortUuid & 0xFFFFFFFFL), BASE_UUID_LSB));
+    }
+
+    /**
+     * Returns the 128-bit form of a 16-bit UUID such as 0xFED8. The same instance is returned for
+     * every call with the same UUID; instances are created the first time they are requested.
+     *
+     * @param uuid16 The 16-bit UUID, from 0 to 0xFFFF.
+     * @throws IllegalArgumentException If {@code uuid16} is not a 16-bit value.
+     */
+    public static ParcelUuid get16BitUuid(int uuid16) {
+        if ((uuid16 & ~0xFFFF) != 0) {
+            throw new IllegalArgumentException("uuid16 out of range - " + uuid16);
+        }
+        AtomicReferenceArray<ParcelUuid> uuids = Uuid16BitTable.UUIDS;
+        ParcelUuid parcelUuid = uuids.get(uuid16);
+        if (parcelUuid == null) {
+            parcelUuid = new ParcelUuid(new UUID(from16Or32BitUuid(uuid16), BASE_UUID_LSB));
+            if (!uuids.compareAndSet(uuid16, null, parcelUuid)) {
+                // Another thread got there first; use its instance.
+                parcelUuid = uuids.get(uuid16);
+            }
+        }
+        return parcelUuid;
+    }
+
+    private static long from16Or32BitUuid(long shortUuid) {
+        return BASE_UUID_MSB + (shortUuid << 32);
+    }
+
+    // Holds the interned 16-bit UUIDs, so the table is only allocated once it is used.
+    private static final class Uuid16BitTable {
+        static final AtomicReferenceArray<ParcelUuid> UUIDS =
+                new AtomicReferenceArray<ParcelUuid>(1 << 16);
     }
 
     /**
@@ -276,7 +334,7 @@ public final class BluetoothUuid {
      */
     public static boolean is16BitUuid(ParcelUuid parcelUuid) {
         UUID uuid = parcelUuid.getUuid();
-        if (uuid.getLeastSignificantBits() != BASE_UUID.getUuid().getLeastSignificantBits()) {
+        if (uuid.getLeastSignificantBits() != BASE_UUID_LSB) {
             return false;
         }
         return ((uuid.getMostSignificantBits() & 0xFFFF0000FFFFFFFFL) == 0x1000L);
@@ -290,7 +348,7 @@ public final class BluetoothUuid {
      */
     public static boolean is32BitUuid(ParcelUuid parcelUuid) {
         UUID uuid = parcelUuid.getUuid();
-        if (uuid.getLeastSignificantBits() != BASE_UUID.getUuid().getLeastSignificantBits()) {
+        if (uuid.getLeastSignificantBits() != BASE_UUID_LSB) {
             return false;
         }
         if (is16BitUuid(parcelUuid)) {
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.uribeacon.scan.compat;
+
+import org.uribeacon.scan.util.Clock;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Converts timestamps from nanoseconds since boot, as the OS stamps scan results, to nanoseconds
+ * since the epoch.
+ * <p>
+ * The offset between the two clocks is read once and reused, so converting a result does not
+ * read either clock. It is read again once the timestamps converted have moved on by the refresh
+ * interval, to follow adjustments of the wall clock.
+ * <p>
+ * This class is thread safe.
+ */
+final class BootTimeOffset {
+
+  /**
+   * How long an offset is reused, in nanoseconds of the timestamps converted.
+   */
+  static final long DEFAULT_REFRESH_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+  private final Clock clock;
+  private final long refreshNanos;
+  // The offset and the time since boot it was read at, replaced together.
+  private volatile long[] offsetAndReadAtNanos;
+
+  BootTimeOffset(Clock clock, long refreshNanos) {
+    this.clock = clock;
+    this.refreshNanos = refreshNanos;
+  }
+
+  /**
+   * Returns the time since the epoch, in nanoseconds, of {@code elapsedRealtimeNanos}.
+   */
+  long toEpochNanos(long elapsedRealtimeNanos) {
+    long[] current = offsetAndReadAtNanos;
+    if (current == null || Math.abs(elapsedRealtimeNanos - current[1]) >= refreshNanos) {
+      current = read();
+      offsetAndReadAtNanos = current;
+    }
+    return elapsedRealtimeNanos + current[0];
+  }
+
+  private long[] read() {
+    long currentTimeNanos = TimeUnit.MILLISECONDS.toNanos(clock.currentTimeMillis());
+    long elapsedRealtimeNanos = clock.elapsedRealtimeNanos();
+    return new long[] {currentTimeNanos - elapsedRealtimeNanos, elapsedRealtimeNanos};
+  }
+}
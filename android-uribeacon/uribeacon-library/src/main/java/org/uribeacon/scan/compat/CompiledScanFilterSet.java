@@ -0,0 +1,321 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.scan.compat;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.ParcelUuid;
+
+import org.uribeacon.scan.util.AdStructureIndex;
+import org.uribeacon.scan.util.AssignedNumbers;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * A list of {@link ScanFilter}s prepared to tell quickly whether a {@link ScanResult} matches any
+ * of them.
+ * <p>
+ * Each filter is filed under the most selective field it requires: its device address, else the
+ * 16-bit or 32-bit UUID of its service data, else its manufacturer id. A result is only tested
+ * against the filters filed under its own address, service data UUIDs and manufacturer ids, plus
+ * the filters that require none of these. With many filters on distinct beacons, the cost of a
+ * match no longer grows with the number of filters.
+ * <p>
+ * Equal filters are only kept once, so a filter shared by several scan clients is evaluated once
+ * per result. Each distinct filter has an id, its position in the set, that {@link #matchAll}
+ * reports matches with.
+ * <p>
+ * Instances are immutable and can be shared between threads.
+ */
+final class CompiledScanFilterSet {
+
+  private static final int[] NO_IDS = new int[0];
+  private static final int MANUFACTURER_SPECIFIC_DATA = AssignedNumbers.MANUFACTURER & 0xFF;
+  private static final int SERVICE_DATA_16_BIT = AssignedNumbers.SERVICE & 0xFF;
+  private static final int SERVICE_DATA_32_BIT = 0x20;
+
+  // True if there were no filters, which matches every result.
+  private final boolean matchesAll;
+  // The distinct filters, indexed by id.
+  private final ScanFilter[] filters;
+  private final Map<ScanFilter, Integer> ids;
+  private final Map<String, int[]> byAddress;
+  private final IntBuckets byServiceDataUuid;
+  private final IntBuckets byManufacturerId;
+  // Filters with none of the above fields, tested against every result.
+  private final int[] unbucketed;
+
+  private CompiledScanFilterSet(List<ScanFilter> filterList) {
+    matchesAll = filterList == null || filterList.isEmpty();
+    ids = new HashMap<ScanFilter, Integer>();
+    List<ScanFilter> distinct = new ArrayList<ScanFilter>();
+    Map<String, List<Integer>> addresses = new HashMap<String, List<Integer>>();
+    Map<Integer, List<Integer>> serviceDataUuids = new HashMap<Integer, List<Integer>>();
+    Map<Integer, List<Integer>> manufacturerIds = new HashMap<Integer, List<Integer>>();
+    List<Integer> others = new ArrayList<Integer>();
+    if (filterList != null) {
+      for (ScanFilter filter : filterList) {
+        if (ids.containsKey(filter)) {
+          continue;
+        }
+        int id = distinct.size();
+        ids.put(filter, id);
+        distinct.add(filter);
+        ParcelUuid serviceDataUuid = filter.getServiceDataUuid();
+        if (filter.getDeviceAddress() != null) {
+          add(addresses, filter.getDeviceAddress(), id);
+        } else if (serviceDataUuid != null && (BluetoothUuid.is16BitUuid(serviceDataUuid)
+            || BluetoothUuid.is32BitUuid(serviceDataUuid))) {
+          add(serviceDataUuids, BluetoothUuid.getShortUuid(serviceDataUuid), id);
+        } else if (filter.getManufacturerId() >= 0) {
+          add(manufacturerIds, filter.getManufacturerId(), id);
+        } else {
+          others.add(id);
+        }
+      }
+    }
+    filters = distinct.toArray(new ScanFilter[distinct.size()]);
+    byAddress = new HashMap<String, int[]>();
+    for (Entry<String, List<Integer>> entry : addresses.entrySet()) {
+      byAddress.put(entry.getKey(), toArray(entry.getValue()));
+    }
+    byServiceDataUuid = new IntBuckets(serviceDataUuids);
+    byManufacturerId = new IntBuckets(manufacturerIds);
+    unbucketed = toArray(others);
+  }
+
+  /**
+   * Prepare {@code filters} for matching. A null or empty list matches every result.
+   */
+  static CompiledScanFilterSet compile(List<ScanFilter> filters) {
+    return new CompiledScanFilterSet(filters);
+  }
+
+  /**
+   * Returns the number of distinct filters in the set.
+   */
+  int size() {
+    return filters.length;
+  }
+
+  /**
+   * Returns the id of {@code filter}, or -1 if no equal filter is in the set.
+   */
+  int indexOf(ScanFilter filter) {
+    Integer id = ids.get(filter);
+    return id == null ? -1 : id;
+  }
+
+  /**
+   * Returns true if {@code result} matches any of the filters, or if there are no filters.
+   */
+  boolean matches(ScanResult result) {
+    return matchesAll || match(result, null);
+  }
+
+  /**
+   * Set the bit of every filter that {@code result} matches in {@code matched}, which is not
+   * cleared first. Each filter is evaluated at most once.
+   */
+  void matchAll(ScanResult result, BitSet matched) {
+    match(result, matched);
+  }
+
+  // Tests the candidate filters for result. With no bit set to fill, stops at the first match and
+  // returns true; otherwise evaluates every candidate and returns false.
+  private boolean match(ScanResult result, BitSet matched) {
+    if (result == null) {
+      return false;
+    }
+    BluetoothDevice device = result.getDevice();
+    if (device != null && !byAddress.isEmpty()
+        && match(byAddress.get(device.getAddress()), result, matched)) {
+      return true;
+    }
+    ScanRecord scanRecord = result.getScanRecord();
+    if (scanRecord != null && !(byServiceDataUuid.isEmpty() && byManufacturerId.isEmpty())) {
+      AdStructureIndex index = scanRecord.getFieldIndex();
+      byte[] bytes = index.getBytes();
+      for (int i = 0; i < index.size(); i++) {
+        if (scanRecord.getServiceDataUuidLength(i) > 0) {
+          if (match(byServiceDataUuid.get(scanRecord.getServiceDataUuid(i)), result, matched)) {
+            return true;
+          }
+        } else if (index.getType(i) == MANUFACTURER_SPECIFIC_DATA
+            && index.getDataLength(i) >= 2) {
+          int offset = index.getDataOffset(i);
+          int manufacturerId = ((bytes[offset + 1] & 0xFF) << 8) | (bytes[offset] & 0xFF);
+          if (match(byManufacturerId.get(manufacturerId), result, matched)) {
+            return true;
+          }
+        }
+      }
+    }
+    return match(unbucketed, result, matched);
+  }
+
+  private boolean match(int[] candidates, ScanResult result, BitSet matched) {
+    if (candidates == null) {
+      return false;
+    }
+    for (int id : candidates) {
+      if (matched == null) {
+        if (filters[id].matches(result)) {
+          return true;
+        }
+      } else if (!matched.get(id) && filters[id].matches(result)) {
+        matched.set(id);
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns true if the raw advertisement of the device at {@code address} matches any of the
+   * filters, or if there are no filters. No {@link ScanRecord} is built.
+   *
+   * @see ScanFilter#matches(byte[], String)
+   */
+  boolean matches(byte[] rawAdvertisement, String address) {
+    if (matchesAll) {
+      return true;
+    }
+    if (address != null && !byAddress.isEmpty()
+        && matchesAny(byAddress.get(address), rawAdvertisement, address)) {
+      return true;
+    }
+    if (rawAdvertisement != null && !(byServiceDataUuid.isEmpty() && byManufacturerId.isEmpty())) {
+      // Same walk as AdStructureIndex.build(), looking up each structure's key as it goes.
+      int pos = 0;
+      while (pos < rawAdvertisement.length) {
+        int length = rawAdvertisement[pos] & 0xFF;
+        if (length == 0 || pos + length >= rawAdvertisement.length) {
+          break;
+        }
+        int type = rawAdvertisement[pos + 1] & 0xFF;
+        int dataLength = length - 1;
+        int[] candidates = null;
+        if (type == SERVICE_DATA_16_BIT && dataLength >= 2) {
+          candidates = byServiceDataUuid.get(readLittleEndian(rawAdvertisement, pos + 2, 2));
+        } else if (type == SERVICE_DATA_32_BIT && dataLength >= 4) {
+          candidates = byServiceDataUuid.get(readLittleEndian(rawAdvertisement, pos + 2, 4));
+        } else if (type == MANUFACTURER_SPECIFIC_DATA && dataLength >= 2) {
+          candidates = byManufacturerId.get(readLittleEndian(rawAdvertisement, pos + 2, 2));
+        }
+        if (matchesAny(candidates, rawAdvertisement, address)) {
+          return true;
+        }
+        pos += length + 1;
+      }
+    }
+    return matchesAny(unbucketed, rawAdvertisement, address);
+  }
+
+  private static int readLittleEndian(byte[] bytes, int offset, int length) {
+    int value = 0;
+    for (int i = length - 1; i >= 0; i--) {
+      value = (value << 8) | (bytes[offset + i] & 0xFF);
+    }
+    return value;
+  }
+
+  private boolean matchesAny(int[] candidates, byte[] rawAdvertisement, String address) {
+    if (candidates == null) {
+      return false;
+    }
+    for (int id : candidates) {
+      if (filters[id].matches(rawAdvertisement, address)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static <K> void add(Map<K, List<Integer>> buckets, K key, int id) {
+    List<Integer> bucket = buckets.get(key);
+    if (bucket == null) {
+      bucket = new ArrayList<Integer>();
+      buckets.put(key, bucket);
+    }
+    bucket.add(id);
+  }
+
+  private static int[] toArray(List<Integer> ids) {
+    if (ids.isEmpty()) {
+      return NO_IDS;
+    }
+    int[] array = new int[ids.size()];
+    for (int i = 0; i < array.length; i++) {
+      array[i] = ids.get(i);
+    }
+    return array;
+  }
+
+  /**
+   * An open-addressed table from an int key to the ids of its filters, looked up without boxing
+   * the key.
+   */
+  private static final class IntBuckets {
+    private final int[] keys;
+    // A null bucket marks an empty slot.
+    private final int[][] buckets;
+    private final int mask;
+    private final boolean empty;
+
+    IntBuckets(Map<Integer, List<Integer>> filters) {
+      // Keep the table at most half full so that probing stays short and always ends.
+      int capacity = 2;
+      while (capacity < filters.size() * 2) {
+        capacity <<= 1;
+      }
+      keys = new int[capacity];
+      buckets = new int[capacity][];
+      mask = capacity - 1;
+      empty = filters.isEmpty();
+      for (Entry<Integer, List<Integer>> entry : filters.entrySet()) {
+        int key = entry.getKey();
+        int slot = hash(key) & mask;
+        while (buckets[slot] != null) {
+          slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        buckets[slot] = toArray(entry.getValue());
+      }
+    }
+
+    boolean isEmpty() {
+      return empty;
+    }
+
+    int[] get(int key) {
+      for (int slot = hash(key) & mask; buckets[slot] != null; slot = (slot + 1) & mask) {
+        if (keys[slot] == key) {
+          return buckets[slot];
+        }
+      }
+      return null;
+    }
+
+    private static int hash(int key) {
+      return key ^ (key >>> 16);
+    }
+  }
+}
@@ -28,14 +28,19 @@ import org.uribeacon.scan.util.Clock;
 import org.uribeacon.scan.util.Logger;
 import org.uribeacon.scan.util.SystemClock;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Implements Bluetooth LE scan related API on top of
@@ -51,8 +56,23 @@ import java.util.concurrent.TimeUnit;
  * <ul>
  * <li> main thread (user) can call any of the BluetoothLeScanner APIs
  * <li> IntentService worker thread can call {@link #blockingScanCycle}
- * <li> AIDL binder thread can call {@link #leScanCallback.onLeScan}
+ * <li> AIDL binder thread, or the thread of another {@link AdvertisementSource}, can call
+ * {@link AdvertisementSource.Listener#onAdvertisement}
+ * <li> the dispatcher thread matches results against the clients
+ * <li> delivery executor threads call back the clients
  * </ul>
+ * The binder thread never waits on the clients: it only records the raw bytes of sightings that
+ * match no client in {@link RecentSightings}, for replay to later clients, and hands the others
+ * to the dispatcher through a lock-free {@link ScanRingBuffer}. Registrations publish an
+ * immutable {@link ClientSnapshot} that the binder and dispatcher threads read without locking.
+ * The dispatcher queues each result on the {@link ScanDeliveryQueue} of every matching client,
+ * so a slow client callback holds up neither the radio, registrations nor the other clients.
+ * <p>
+ * Clients with a report delay get their results in batches through
+ * {@link ScanCallback#onBatchScanResults} instead, as soon as a batch is full and otherwise at
+ * the end of the first scan cycle after the report delay has passed. Clients with a coalescing
+ * window get their repeated sightings merged by a {@link SightingCoalescer}; the merged results
+ * are released by later sightings or at the end of the scan cycle.
  *
  * @see <a href="http://go/ble-glossary">BLE Glossary</a>
  */
@@ -73,33 +93,163 @@ class JbBluetoothLeScannerCompat extends BluetoothLeScannerCompat {
   /* @VisibleForTesting */ static final int LOW_LATENCY_IDLE_MILLIS = 167;
   /* @VisibleForTesting */ static final int LOW_LATENCY_ACTIVE_MILLIS = 1500;
 
+  // Sightings waiting for the dispatcher. Beyond this the binder thread drops new sightings.
+  /* @VisibleForTesting */ static final int SIGHTING_BUFFER_CAPACITY = 256;
+
+  // Devices kept for replay to new clients. Beyond this the least recently seen is evicted.
+  /* @VisibleForTesting */ static final int MAX_RECENT_SIGHTINGS = 2048;
+
+  // Lost timing wheel: 250 millisecond ticks, 1024 slots for a rotation of about 4 minutes.
+  private static final long LOST_WHEEL_TICK_MILLIS = 250;
+  private static final int LOST_WHEEL_SLOTS = 1024;
+
   /**
-   * Wraps user requests and stores the list of filters and callbacks. Also saves a set of
-   * addresses for which any of the filters have matched in order to do lost processing.
+   * Wraps user requests and stores the list of filters and callbacks. The addresses for which
+   * any of the filters have matched are kept by the {@link SightingTracker} in order to do lost
+   * processing.
    */
   private static class ScanClient {
     final List<ScanFilter> filtersList;
-    final Set<String> addressesSeen;
     final ScanCallback callback;
     final ScanSettings settings;
-
-    ScanClient(ScanSettings settings, List<ScanFilter> filters, ScanCallback callback) {
+    // True if the client has no filters and so wants every result.
+    final boolean matchesAll;
+    final ScanDeliveryQueue deliveries;
+    // The results waiting to be reported, if the client has a report delay.
+    final ScanResultBatch batch;
+    // Merges repeated sightings, if the client has a coalescing window.
+    final SightingCoalescer coalescer;
+
+    ScanClient(ScanSettings settings, List<ScanFilter> filters, ScanCallback callback,
+        Executor deliveryExecutor, Clock clock) {
       this.settings = settings;
       this.filtersList = filters;
-      this.addressesSeen = new HashSet<String>();
       this.callback = callback;
+      this.matchesAll = filters == null || filters.isEmpty();
+      this.deliveries = new ScanDeliveryQueue(callback, settings, deliveryExecutor, clock);
+      this.batch = settings.getReportDelayMillis() > 0 ? new ScanResultBatch(settings) : null;
+      this.coalescer =
+          settings.getCoalescingWindowMillis() > 0 ? new SightingCoalescer(settings) : null;
+    }
+
+    /**
+     * Tell the client that the device at {@code address}, which it found, is lost.
+     */
+    void onLost(String address, RecentSightings.Sighting sighting) {
+      if (coalescer != null) {
+        coalescer.remove(address);
+      }
+      int wantAny = settings.getCallbackType() & ScanSettings.CALLBACK_TYPE_ALL_MATCHES;
+      int wantLost = settings.getCallbackType() & ScanSettings.CALLBACK_TYPE_MATCH_LOST;
+      if ((wantAny | wantLost) != 0) {
+        deliveries.enqueue(
+            ScanSettings.CALLBACK_TYPE_MATCH_LOST, address, sighting.toScanResult());
+      }
+    }
+  }
+
+  /**
+   * An immutable view of the registered clients and of the distinct filters they use, replaced
+   * whenever a client starts or stops. A filter shared by several clients is only evaluated once
+   * per result.
+   */
+  private static final class ClientSnapshot {
+    static final ClientSnapshot EMPTY =
+        new ClientSnapshot(Collections.<ScanClient>emptyList());
+
+    final ScanClient[] clients;
+    final CompiledScanFilterSet filters;
+    // Ids in filters of the filters of each client.
+    final BitSet[] filterIds;
+    final boolean anyClientMatchesAll;
+
+    ClientSnapshot(Collection<ScanClient> clientList) {
+      clients = clientList.toArray(new ScanClient[clientList.size()]);
+      List<ScanFilter> allFilters = new ArrayList<ScanFilter>();
+      boolean matchesAll = false;
+      for (ScanClient client : clients) {
+        if (client.matchesAll) {
+          matchesAll = true;
+        } else {
+          allFilters.addAll(client.filtersList);
+        }
+      }
+      anyClientMatchesAll = matchesAll;
+      filters = CompiledScanFilterSet.compile(allFilters);
+      filterIds = new BitSet[clients.length];
+      for (int i = 0; i < clients.length; i++) {
+        filterIds[i] = new BitSet();
+        if (!clients[i].matchesAll) {
+          for (ScanFilter filter : clients[i].filtersList) {
+            filterIds[i].set(filters.indexOf(filter));
+          }
+        }
+      }
+    }
+
+    /**
+     * Returns true if the raw advertisement matches the filters of at least one client.
+     */
+    boolean matchesAnyClient(byte[] scanRecordBytes, String address) {
+      if (clients.length == 0) {
+        return false;
+      }
+      return anyClientMatchesAll || filters.matches(scanRecordBytes, address);
+    }
+
+    /**
+     * Returns true if the client at {@code index} has a filter set in {@code matchedFilters}.
+     */
+    boolean clientMatches(int index, BitSet matchedFilters) {
+      return clients[index].matchesAll || filterIds[index].intersects(matchedFilters);
     }
   }
 
+  /**
+   * Creates the daemon threads that call back the clients.
+   */
+  private static final ThreadFactory DELIVERY_THREAD_FACTORY = new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, "UriBeaconScanDelivery");
+      thread.setDaemon(true);
+      return thread;
+    }
+  };
+
   // Alarm Scan variables
   private final Clock clock;
   private final AlarmManager alarmManager;
   private final PendingIntent alarmIntent;
   private long alarmIntervalMillis;
 
-  // Map of BD_ADDR->ScanResult for replay to new registrations.
-  // Entries are evicted after SCAN_LOST_CYCLES cycles.
-  /* @VisibleForTesting */ final HashMap<String, ScanResult> recentScanResults;
+  // BD_ADDR->sighting for replay to new registrations, whether or not it matched a client when
+  // it was received. Entries are evicted after SCAN_LOST_CYCLES cycles, or earlier if more than
+  // MAX_RECENT_SIGHTINGS devices are seen.
+  /* @VisibleForTesting */ final RecentSightings recentSightings;
+  // Expires the entries of recentSightings, using the scanner-wide lost timeout.
+  private final LostTimingWheel<RecentSightings.Sighting> lostWheel;
+  // The devices each client found, lost after the client's or the scanner-wide lost timeout.
+  private final SightingTracker<ScanClient, RecentSightings.Sighting> tracker;
+  // Evictions already logged.
+  private long loggedEvictionCount;
+
+  private final LostTimingWheel.Listener<RecentSightings.Sighting> lostListener =
+      new LostTimingWheel.Listener<RecentSightings.Sighting>() {
+    @Override
+    public void onExpired(String address, RecentSightings.Sighting sighting) {
+      // Only remove the sighting if the dispatcher has not just replaced it with a newer one.
+      recentSightings.removeIfNotNewer(address, sighting.timestampNanos);
+    }
+  };
+
+  private final SightingTracker.Listener<ScanClient, RecentSightings.Sighting> trackerListener =
+      new SightingTracker.Listener<ScanClient, RecentSightings.Sighting>() {
+    @Override
+    public void onLost(ScanClient client, String address, RecentSightings.Sighting sighting) {
+      client.onLost(address, sighting);
+    }
+  };
 
   // Default Scan Constants = Balanced
   private int scanIdleMillis = BALANCED_IDLE_MILLIS;
@@ -109,34 +259,80 @@ class JbBluetoothLeScannerCompat extends BluetoothLeScannerCompat {
   private int overrideScanActiveMillis = -1;
   private int overrideScanIdleMillis;
 
+  // Chooses the idle time of each cycle, if adaptive timing is on. Superseded by the override.
+  private AdaptiveScanScheduler adaptiveScheduler;
+
   // Milliseconds to wait before considering a device lost. If set to a negative number
   // SCAN_LOST_CYCLES is used to determine when to inform clients about lost events.
   private long scanLostOverrideMillis = -1;
 
-  private final BluetoothAdapter bluetoothAdapter;
+  private final AdvertisementSource advertisementSource;
+  private final Executor deliveryExecutor;
+  // The registered clients. Only accessed while holding the lock; every change is published to
+  // the other threads as a new clientSnapshot.
   /* @VisibleForTesting */ final HashMap<ScanCallback, ScanClient> serialClients;
+  private volatile ClientSnapshot clientSnapshot = ClientSnapshot.EMPTY;
+
+  // Sightings from the binder thread, delivered by the dispatcher thread.
+  /* @VisibleForTesting */ final ScanRingBuffer sightings =
+      new ScanRingBuffer(SIGHTING_BUFFER_CAPACITY);
+  private final AtomicBoolean dispatcherStarted = new AtomicBoolean();
+
+  private final ScanRingBuffer.Sink sightingSink = new ScanRingBuffer.Sink() {
+    @Override
+    public void onSighting(BluetoothDevice device, String address, int rssi, byte[] scanRecord,
+        long timestampNanos) {
+      onScanResult(address,
+          new ScanResult(device, ScanRecord.wrap(scanRecord), rssi, timestampNanos));
+    }
+  };
+
+  /**
+   * Delivers the sightings published by the binder thread until the process ends.
+   */
+  private final Runnable dispatcher = new Runnable() {
+    @Override
+    public void run() {
+      while (!Thread.currentThread().isInterrupted()) {
+        if (sightings.drainTo(sightingSink) == 0) {
+          sightings.awaitSighting();
+        }
+      }
+    }
+  };
 
   /**
-   * The Bluetooth LE callback which will be registered with the OS,
+   * The listener which will be registered with the advertisement source,
    * to be fired on device discovery.
    */
-  private final BluetoothAdapter.LeScanCallback leScanCallback =
-      new BluetoothAdapter.LeScanCallback() {
+  private final AdvertisementSource.Listener advertisementListener =
+      new AdvertisementSource.Listener() {
     /**
-     * Callback method called from the OS on each BLE device sighting.
-     * This method is invoked on the AIDL handler thread, so all methods
-     * called here must be synchronized.
+     * Callback method called from the source on each BLE device sighting.
+     * For the radio, this method is invoked on the AIDL handler thread. A source delivers
+     * sightings one at a time, so it is the single producer of {@link #sightings}. It must not
+     * block, so it only takes the short locks of the recent sightings.
      *
-     * @param device The device discovered
+     * @param device The device discovered, or null
+     * @param address The address of the device discovered
      * @param rssi The signal strength in dBm it was received at
      * @param scanRecordBytes The raw byte payload buffer
      */
     @Override
-    public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecordBytes) {
+    public void onAdvertisement(
+        BluetoothDevice device, String address, int rssi, byte[] scanRecordBytes) {
       long currentTimeInNanos = TimeUnit.MILLISECONDS.toNanos(clock.currentTimeMillis());
-      ScanResult result = new ScanResult(device, ScanRecord.parseFromBytes(scanRecordBytes), rssi,
-          currentTimeInNanos);
-      onScanResult(device.getAddress(), result);
+      // Most packets match no client. Only keep their raw bytes for replay to later clients,
+      // without building a ScanRecord.
+      if (!clientSnapshot.matchesAnyClient(scanRecordBytes, address)) {
+        recordSighting(new RecentSightings.Sighting(
+            address, device, scanRecordBytes, rssi, currentTimeInNanos));
+        return;
+      }
+      startDispatcherIfNeeded();
+      if (!sightings.offer(device, address, rssi, scanRecordBytes, currentTimeInNanos)) {
+        Logger.logDebug("Dispatcher is behind, dropped sighting of " + address);
+      }
     }
   };
 
@@ -147,22 +343,52 @@ class JbBluetoothLeScannerCompat extends BluetoothLeScannerCompat {
       Context context, BluetoothManager manager, AlarmManager alarmManager) {
     this(manager, alarmManager, new SystemClock(),
         PendingIntent.getBroadcast(context, 0 /* requestCode */,
-            new Intent(context, ScanWakefulBroadcastReceiver.class), 0 /* flags */));
+            new Intent(context, ScanWakefulBroadcastReceiver.class), 0 /* flags */),
+        Executors.newCachedThreadPool(DELIVERY_THREAD_FACTORY));
   }
 
   /**
-   * Testing constructor for the scanner.
+   * Testing constructor for the scanner. Clients are called back on the thread that delivers
+   * the result.
    *
    * @VisibleForTesting
    */
   JbBluetoothLeScannerCompat(BluetoothManager manager, AlarmManager alarmManager,
       Clock clock, PendingIntent alarmIntent) {
-    this.bluetoothAdapter = manager.getAdapter();
+    this(manager, alarmManager, clock, alarmIntent, ScanDeliveryQueue.DIRECT_EXECUTOR);
+  }
+
+  /**
+   * Testing constructor for the scanner, calling back clients on {@code deliveryExecutor}.
+   *
+   * @VisibleForTesting
+   */
+  JbBluetoothLeScannerCompat(BluetoothManager manager, AlarmManager alarmManager,
+      Clock clock, PendingIntent alarmIntent, Executor deliveryExecutor) {
+    this(new BluetoothAdapterSource(manager.getAdapter()), alarmManager, clock, alarmIntent,
+        deliveryExecutor);
+  }
+
+  /**
+   * Testing constructor for the scanner, scanning {@code advertisementSource} instead of the
+   * radio, such as a {@link org.uribeacon.scan.testing.ReplayAdvertisementSource}.
+   *
+   * @VisibleForTesting
+   */
+  JbBluetoothLeScannerCompat(AdvertisementSource advertisementSource,
+      AlarmManager alarmManager, Clock clock, PendingIntent alarmIntent,
+      Executor deliveryExecutor) {
+    this.advertisementSource = advertisementSource;
+    this.deliveryExecutor = deliveryExecutor;
     this.serialClients = new HashMap<ScanCallback, ScanClient>();
-    this.recentScanResults = new HashMap<String, ScanResult>();
+    this.recentSightings = new RecentSightings(MAX_RECENT_SIGHTINGS);
     this.alarmManager = alarmManager;
     this.alarmIntent = alarmIntent;
     this.clock = clock;
+    this.lostWheel = new LostTimingWheel<RecentSightings.Sighting>(LOST_WHEEL_TICK_MILLIS,
+        LOST_WHEEL_SLOTS, getLostTimeoutMillis(), clock.currentTimeMillis());
+    this.tracker = new SightingTracker<ScanClient, RecentSightings.Sighting>(
+        clock, getLostTimeoutMillis());
   }
 
   /**
@@ -171,57 +397,72 @@ class JbBluetoothLeScannerCompat extends BluetoothLeScannerCompat {
    * receiver to release its wakelock and the phone will enter a sleep phase for the remainder of
    * the BLE scan cycle.
    * <p>
-   * This is called on the IntentService handler thread and hence is synchronized.
+   * This is called on the IntentService handler thread. The lock is only held to start and stop
+   * the radio; lost clients are called back without it.
    * <p>
    * Suppresses the experimental 'wait not in loop' warning because we don't mind exiting early.
-   * Suppresses deprecation because this is the compatibility support.
    */
-  @SuppressWarnings({"WaitNotInLoop", "deprecation"})
-  synchronized void blockingScanCycle() {
+  @SuppressWarnings("WaitNotInLoop")
+  void blockingScanCycle() {
     Logger.logDebug("Starting BLE Active Scan Cycle.");
-    int activeMillis = getScanActiveMillis();
-    if (activeMillis > 0) {
-      bluetoothAdapter.startLeScan(leScanCallback);
-      // Sleep for the duration of the scan. No wakeups are expected, but catch is required.
-      try {
-        wait(activeMillis);
-      } catch (InterruptedException e) {
-        Logger.logError("Exception in ScanCycle Sleep", e);
-      } finally {
+    boolean scanned = false;
+    synchronized (this) {
+      int activeMillis = getScanActiveMillis();
+      if (activeMillis > 0) {
+        scanned = true;
+        advertisementSource.start(advertisementListener);
+        // Sleep for the duration of the scan. No wakeups are expected, but catch is required.
         try {
-          bluetoothAdapter.stopLeScan(leScanCallback);
-        } catch (NullPointerException e) {
-          // An NPE is thrown if Bluetooth has been reset since this blocking scan began.
-          Logger.logDebug("NPE thrown in BlockingScanCycle");
+          wait(activeMillis);
+        } catch (InterruptedException e) {
+          Logger.logError("Exception in ScanCycle Sleep", e);
+        } finally {
+          try {
+            advertisementSource.stop(advertisementListener);
+          } catch (NullPointerException e) {
+            // An NPE is thrown if Bluetooth has been reset since this blocking scan began.
+            Logger.logDebug("NPE thrown in BlockingScanCycle");
+          }
         }
-        // Active BLE scan ends
-        // Execute cycle complete to 1) detect lost devices
-        onScanCycleComplete();
       }
     }
+    if (scanned) {
+      // Active BLE scan ends
+      // Execute cycle complete to 1) detect lost devices
+      onScanCycleComplete();
+    }
     Logger.logDebug("Stopping BLE Active Scan Cycle.");
   }
 
-  private void callbackLostLeScanClients(String address, ScanResult result) {
-    for (ScanClient client : serialClients.values()) {
-      int wantAny = client.settings.getCallbackType() & ScanSettings.CALLBACK_TYPE_ALL_MATCHES;
-      int wantLost = client.settings.getCallbackType() & ScanSettings.CALLBACK_TYPE_MATCH_LOST;
+  /**
+   * Report a device evicted from recentSightings as lost to every client that found it, so that
+   * no client keeps tracking it.
+   */
+  private void callbackEvictedLeScanClients(RecentSightings.Sighting sighting) {
+    lostWheel.remove(sighting.address);
+    tracker.forget(sighting.address, sighting, trackerListener);
+  }
 
-      if (client.addressesSeen.remove(address) && (wantAny | wantLost) != 0) {
+  /**
+   * Publish the current clients to the binder and dispatcher threads. Called while holding the
+   * lock whenever a client starts or stops.
+   */
+  private void updateClientSnapshot() {
+    clientSnapshot = new ClientSnapshot(serialClients.values());
+  }
 
-        // Catch any exceptions and log them but continue processing other scan results.
-        try {
-          client.callback.onScanResult(ScanSettings.CALLBACK_TYPE_MATCH_LOST, result);
-        } catch (Exception e) {
-          Logger.logError("Failure while sending 'lost' scan result to listener", e);
-        }
-      }
+  private void startDispatcherIfNeeded() {
+    if (!dispatcherStarted.get() && dispatcherStarted.compareAndSet(false, true)) {
+      Thread thread = new Thread(dispatcher, "UriBeaconScanDispatcher");
+      thread.setDaemon(true);
+      thread.start();
     }
   }
 
   /**
-   * Process a single scan result, sending it directly
-   * to any active listeners who want to know.
+   * Process a single scan result, queueing it for any active listeners who want to know.
+   * <p>
+   * Called on the dispatcher thread, or directly by tests.
    *
    * @VisibleForTesting
    */
@@ -233,35 +474,63 @@ class JbBluetoothLeScannerCompat extends BluetoothLeScannerCompat {
    * Distribute each scan record to registered clients. When a "found" event occurs record the
    * address in the client filter so we can later send the "lost" event to that same client.
    * <P>
-   * This method will be called by the AIDL handler thread from onLeScan.
+   * This method is called by the dispatcher thread with the sightings from onLeScan. It does not
+   * take the lock.
    */
-  private synchronized void callbackLeScanClients(String address, ScanResult result) {
-    for (ScanClient client : serialClients.values()) {
-      if (matchesAnyFilter(client.filtersList, result)) {
-        boolean seenItBefore = client.addressesSeen.contains(address);
+  private void callbackLeScanClients(String address, ScanResult result) {
+    ClientSnapshot snapshot = clientSnapshot;
+    long seenMillis = TimeUnit.NANOSECONDS.toMillis(result.getTimestampNanos());
+    RecentSightings.Sighting sighting = new RecentSightings.Sighting(address, result);
+    // Local, as tests and load harnesses deliver results while the dispatcher runs.
+    BitSet matchedFilters = new BitSet(snapshot.filters.size());
+    snapshot.filters.matchAll(result, matchedFilters);
+    for (int i = 0; i < snapshot.clients.length; i++) {
+      if (snapshot.clientMatches(i, matchedFilters)) {
+        ScanClient client = snapshot.clients[i];
+        if (client.batch != null) {
+          long nowMillis = clock.currentTimeMillis();
+          client.batch.add(address, result, nowMillis);
+          reportBatchIfDue(client, nowMillis);
+          continue;
+        }
+        // Claims the first sighting atomically, against a replay in startSerialScan().
+        boolean seenItBefore = !tracker.onSighting(client, address, seenMillis, sighting);
         int clientFlags = client.settings.getCallbackType();
         int firstMatchBit = clientFlags & ScanSettings.CALLBACK_TYPE_FIRST_MATCH;
         int allMatchesBit = clientFlags & ScanSettings.CALLBACK_TYPE_ALL_MATCHES;
 
-        // Catch any exceptions and log them but continue processing other listeners.
-        if ((firstMatchBit | allMatchesBit) != 0) {
-          try {
-            if (!seenItBefore) {
-              client.callback.onScanResult(ScanSettings.CALLBACK_TYPE_FIRST_MATCH, result);
-            } else if (allMatchesBit != 0) {
-              client.callback.onScanResult(ScanSettings.CALLBACK_TYPE_ALL_MATCHES, result);
-            }
-          } catch (Exception e) {
-            Logger.logError("Failure while handling scan result", e);
+        if (!seenItBefore && (firstMatchBit | allMatchesBit) != 0) {
+          client.deliveries.enqueue(ScanSettings.CALLBACK_TYPE_FIRST_MATCH, address, result);
+        } else if (seenItBefore && allMatchesBit != 0) {
+          ScanResult update =
+              client.coalescer == null ? result : client.coalescer.add(address, result);
+          if (update != null) {
+            client.deliveries.enqueue(ScanSettings.CALLBACK_TYPE_ALL_MATCHES, address, update);
           }
         }
-        if (!seenItBefore) {
-          client.addressesSeen.add(address);
-        }
       }
     }
 
-    recentScanResults.put(address, result);
+    recordSighting(sighting);
+  }
+
+  /**
+   * Keep the latest sighting of a device for replay to new registrations, until it is lost.
+   */
+  private void recordSighting(RecentSightings.Sighting sighting) {
+    RecentSightings.Sighting evicted = recentSightings.put(sighting);
+    lostWheel.touch(sighting.address,
+        TimeUnit.NANOSECONDS.toMillis(sighting.timestampNanos), sighting);
+    if (evicted != null) {
+      callbackEvictedLeScanClients(evicted);
+    }
+  }
+
+  private static void reportBatchIfDue(ScanClient client, long nowMillis) {
+    List<ScanResult> results = client.batch.takeIfDue(nowMillis);
+    if (results != null) {
+      client.deliveries.enqueueBatch(results);
+    }
   }
 
   @Override
@@ -272,31 +541,41 @@ class JbBluetoothLeScannerCompat extends BluetoothLeScannerCompat {
 
   private boolean startSerialScan(ScanSettings settings, List<ScanFilter> filterList,
       ScanCallback callback) {
-    ScanClient client = new ScanClient(settings, filterList, callback);
-    serialClients.put(callback, client);
+    ScanClient client = new ScanClient(settings, filterList, callback, deliveryExecutor, clock);
+    ScanClient previous = serialClients.put(callback, client);
+    if (previous != null) {
+      tracker.removeClient(previous);
+      previous.deliveries.close();
+    }
+    tracker.addClient(client, settings.getLostTimeoutMillis());
+    if (adaptiveScheduler != null) {
+      // The new client may be looking for devices not found yet.
+      adaptiveScheduler.reset();
+    }
+    updateClientSnapshot();
+    ClientSnapshot snapshot = clientSnapshot;
+    int clientIndex = Arrays.asList(snapshot.clients).indexOf(client);
 
     int clientFlags = client.settings.getCallbackType();
     int firstMatchBit = clientFlags & ScanSettings.CALLBACK_TYPE_FIRST_MATCH;
     int allMatchesBit = clientFlags & ScanSettings.CALLBACK_TYPE_ALL_MATCHES;
 
     // Process new registrations by immediately invoking the "found" callback
-    // with all previously sighted devices.
-    if ((firstMatchBit | allMatchesBit) != 0) {
-      for (Entry<String, ScanResult> entry : recentScanResults.entrySet()) {
-        String address = entry.getKey();
-        ScanResult savedResult = entry.getValue();
-        if (matchesAnyFilter(filterList, savedResult)) {
-
-          // Catch any exceptions and log them but continue processing other scan results.
-          try {
-            client.callback.onScanResult(ScanSettings.CALLBACK_TYPE_FIRST_MATCH, savedResult);
-          } catch (Exception e) {
-            Logger.logError("Failure while handling scan result for new listener", e);
-          }
-          client.addressesSeen.add(address);
+    // with all previously sighted devices, including those no client matched so far. Their
+    // scan records are only parsed here. Batching clients only get new sightings.
+    if (client.batch == null && (firstMatchBit | allMatchesBit) != 0) {
+      BitSet savedMatches = new BitSet(snapshot.filters.size());
+      for (RecentSightings.Sighting sighting : recentSightings.snapshot()) {
+        String address = sighting.address;
+        ScanResult savedResult = sighting.toScanResult();
+        savedMatches.clear();
+        snapshot.filters.matchAll(savedResult, savedMatches);
+        if (snapshot.clientMatches(clientIndex, savedMatches) && tracker.onSighting(client,
+            address, TimeUnit.NANOSECONDS.toMillis(sighting.timestampNanos), sighting)) {
+          client.deliveries.enqueue(ScanSettings.CALLBACK_TYPE_FIRST_MATCH, address, savedResult);
         }
       }
-  }
+    }
 
     updateRepeatingAlarm();
     return true;
@@ -318,6 +597,30 @@ class JbBluetoothLeScannerCompat extends BluetoothLeScannerCompat {
     updateRepeatingAlarm();
   }
 
+  /**
+   * Adaptive scan window, used when there is no global override. Every scan cycle idles between
+   * {@code minIdleMillis} and {@code maxIdleMillis}, depending on what the previous cycle found.
+   *
+   * @param scanMillis -1 to turn adaptive timing off, or a positive number
+   * @see AdaptiveScanScheduler
+   */
+  @Override
+  public synchronized void setAdaptiveScanTiming(
+      int scanMillis, int minIdleMillis, int maxIdleMillis) {
+    adaptiveScheduler = (scanMillis == -1) ? null
+        : new AdaptiveScanScheduler(scanMillis, minIdleMillis, maxIdleMillis, SCAN_LOST_CYCLES);
+    // reset scanner so it picks up new scan window values
+    updateRepeatingAlarm();
+  }
+
+  @Override
+  public synchronized ScanDutyCycleStats getDutyCycleStats() {
+    if (isAdaptive()) {
+      return adaptiveScheduler.getStats();
+    }
+    return new ScanDutyCycleStats(getScanActiveMillis(), getScanIdleMillis(), 0, 0, 0);
+  }
+
   /**
    * Sets the time after which a sighted device will be marked as lost.
    */
@@ -333,29 +636,67 @@ class JbBluetoothLeScannerCompat extends BluetoothLeScannerCompat {
    */
   @Override
   public synchronized void stopScan(ScanCallback callback) {
-    serialClients.remove(callback);
+    ScanClient client = serialClients.remove(callback);
+    if (client != null) {
+      tracker.removeClient(client);
+      client.deliveries.close();
+    }
+    updateClientSnapshot();
     updateRepeatingAlarm();
   }
 
+  @Override
+  public synchronized ScanDeliveryStats getDeliveryStats(ScanCallback callback) {
+    ScanClient client = serialClients.get(callback);
+    return client == null ? null : client.deliveries.getStats();
+  }
+
+  @Override
+  public ScanSightingStats getSightingStats() {
+    return recentSightings.getStats();
+  }
+
   /**
-   * Test for lost tags by periodically checking the found devices
-   * for any that haven't been seen recently.
+   * Report the batches whose delay has passed and the coalesced results, then report the found
+   * devices that haven't been seen recently as lost. Only the devices whose lost deadline has
+   * passed are visited.
    *
    * @VisibleForTesting
    */
   void onScanCycleComplete() {
-    Iterator<Map.Entry<String, ScanResult>> iter = recentScanResults.entrySet().iterator();
-    long lostTimestampMillis = getLostTimestampMillis();
+    long nowMillis = clock.currentTimeMillis();
+    for (ScanClient client : clientSnapshot.clients) {
+      if (client.batch != null) {
+        reportBatchIfDue(client, nowMillis);
+      }
+      if (client.coalescer != null) {
+        for (Entry<String, ScanResult> entry : client.coalescer.takeAll().entrySet()) {
+          client.deliveries.enqueue(
+              ScanSettings.CALLBACK_TYPE_ALL_MATCHES, entry.getKey(), entry.getValue());
+        }
+      }
+    }
 
-    // Clear out any expired notifications from the "old sightings" record.
-    while (iter.hasNext()) {
-      Map.Entry<String, ScanResult> entry = iter.next();
-      String address = entry.getKey();
-      ScanResult savedResult = entry.getValue();
-      if (TimeUnit.NANOSECONDS.toMillis(savedResult.getTimestampNanos()) < lostTimestampMillis) {
-        callbackLostLeScanClients(address, savedResult);
-        iter.remove();
+    RecentSightings.Activity activity = recentSightings.takeActivity();
+    long lostTimeoutMillis;
+    synchronized (this) {
+      if (isAdaptive() && adaptiveScheduler.onCycleComplete(activity)) {
+        updateRepeatingAlarm();
       }
+      lostTimeoutMillis = getLostTimeoutMillis();
+    }
+
+    // Clear out any expired notifications from the "old sightings" record.
+    lostWheel.setTimeoutMillis(lostTimeoutMillis);
+    lostWheel.advance(nowMillis, lostListener);
+    tracker.setDefaultTimeoutMillis(lostTimeoutMillis);
+    tracker.sweep(trackerListener);
+
+    long evictionCount = recentSightings.getEvictionCount();
+    if (evictionCount > loggedEvictionCount) {
+      Logger.logInfo("Recent sightings full (" + recentSightings.getCapacity() + "): evicted "
+          + (evictionCount - loggedEvictionCount) + " devices this cycle");
+      loggedEvictionCount = evictionCount;
     }
   }
 
@@ -428,28 +769,20 @@ class JbBluetoothLeScannerCompat extends BluetoothLeScannerCompat {
       int idleMillis = getScanIdleMillis();
       int scanPeriod = idleMillis + getScanActiveMillis();
       if ((idleMillis != 0) && (alarmIntervalMillis != scanPeriod)) {
+        // A new alarm starts immediately. A running one next fires after the idle time, so that
+        // changing the period does not skip the idle part of the current cycle.
+        long triggerAtMillis =
+            (alarmIntervalMillis == 0) ? 0 : clock.currentTimeMillis() + idleMillis;
         alarmIntervalMillis = scanPeriod;
-        // Specifies a repeating alarm at the scanPeriod, starting immediately.
+        // Specifies a repeating alarm at the scanPeriod.
         alarmManager.setRepeating(AlarmManager.RTC_WAKEUP,
-            0, alarmIntervalMillis,
+            triggerAtMillis, alarmIntervalMillis,
             alarmIntent);
         Logger.logInfo("Scan alarm setup complete @ " + System.currentTimeMillis());
       }
     }
   }
 
-  private static boolean matchesAnyFilter(List<ScanFilter> filters, ScanResult result) {
-    if (filters == null || filters.isEmpty()) {
-      return true;
-    }
-    for (ScanFilter filter : filters) {
-      if (filter.matches(result)) {
-        return true;
-      }
-    }
-    return false;
-  }
-
   /**
    * Calculates the number of milliseconds since this device was booted up.
    * (Not a value that can be used as a real timestamp, but suitable for comparisons.)
@@ -466,10 +799,25 @@ class JbBluetoothLeScannerCompat extends BluetoothLeScannerCompat {
    * @VisibleForTesting
    */
   long getLostTimestampMillis() {
+    return clock.currentTimeMillis() - getLostTimeoutMillis();
+  }
+
+  /**
+   * Returns the time without sightings after which a device is lost, for the clients without
+   * their own lost timeout.
+   */
+  private long getLostTimeoutMillis() {
     if (scanLostOverrideMillis >= 0) {
-      return clock.currentTimeMillis() - scanLostOverrideMillis;
+      return scanLostOverrideMillis;
+    }
+    if (isAdaptive()) {
+      return adaptiveScheduler.getLostTimeoutMillis();
     }
-    return clock.currentTimeMillis() - (SCAN_LOST_CYCLES * getScanCycleMillis());
+    return SCAN_LOST_CYCLES * getScanCycleMillis();
+  }
+
+  private boolean isAdaptive() {
+    return adaptiveScheduler != null && overrideScanActiveMillis == -1;
   }
 
   /**
@@ -487,7 +835,10 @@ class JbBluetoothLeScannerCompat extends BluetoothLeScannerCompat {
    * @VisibleForTesting
    */
   int getScanActiveMillis() {
-    return (overrideScanActiveMillis != -1) ? overrideScanActiveMillis : scanActiveMillis;
+    if (overrideScanActiveMillis != -1) {
+      return overrideScanActiveMillis;
+    }
+    return isAdaptive() ? adaptiveScheduler.getActiveMillis() : scanActiveMillis;
   }
 
   /**
@@ -496,6 +847,9 @@ class JbBluetoothLeScannerCompat extends BluetoothLeScannerCompat {
    * @VisibleForTesting
    */
   int getScanIdleMillis() {
-    return (overrideScanActiveMillis != -1) ? overrideScanIdleMillis : scanIdleMillis;
+    if (overrideScanActiveMillis != -1) {
+      return overrideScanIdleMillis;
+    }
+    return isAdaptive() ? adaptiveScheduler.getIdleMillis() : scanIdleMillis;
   }
 }
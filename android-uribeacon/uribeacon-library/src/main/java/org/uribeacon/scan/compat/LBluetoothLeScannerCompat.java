@@ -20,8 +20,14 @@ package org.uribeacon.scan.compat;
 import android.annotation.TargetApi;
 import android.bluetooth.BluetoothManager;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelUuid;
+import android.util.LruCache;
+import android.util.SparseArray;
 
 import org.uribeacon.scan.util.Logger;
+import org.uribeacon.scan.util.SystemClock;
 
 import java.lang.reflect.Method;
 import java.util.ArrayList;
@@ -33,13 +39,66 @@ import java.util.concurrent.TimeUnit;
 /**
  * Implements Bluetooth LE scan related API on top of {@link android.os.Build.VERSION_CODES#LOLLIPOP}
  * and later.
+ * <p>
+ * Each scan runs as its own OS scan unless multiplexing is on, see {@link #setScanMultiplexing}.
+ * Then the scans that report every match without delay share a single OS scan, and a
+ * {@link ScanMultiplexer} routes its results to them.
+ * <p>
+ * The OS only reports first and lost matches with hardware filtering, so scans that ask for
+ * them run as scans of every match, and a {@link TrackedScanCallback} derives them. One
+ * {@link SightingTracker} holds the devices of every such scan, and a single periodic sweep
+ * reports the lost ones while any of them runs. The sweep runs on the main thread, where the OS
+ * delivers scan results, so each callback is called from one thread at a time.
  */
 @TargetApi(Build.VERSION_CODES.LOLLIPOP)
 class LBluetoothLeScannerCompat extends BluetoothLeScannerCompat {
 
+  // Scans are restarted whenever the scan controller changes state, with the same filters and
+  // settings. The OS objects are immutable, so their conversions are shared.
+  private static final int MAX_CACHED_CONVERSIONS = 64;
+  private static final LruCache<ScanFilter, android.bluetooth.le.ScanFilter> FILTER_CACHE =
+      new LruCache<ScanFilter, android.bluetooth.le.ScanFilter>(MAX_CACHED_CONVERSIONS);
+  private static final LruCache<ScanSettings, android.bluetooth.le.ScanSettings> SETTINGS_CACHE =
+      new LruCache<ScanSettings, android.bluetooth.le.ScanSettings>(MAX_CACHED_CONVERSIONS);
+
+  private static final BootTimeOffset BOOT_TIME_OFFSET =
+      new BootTimeOffset(new SystemClock(), BootTimeOffset.DEFAULT_REFRESH_NANOS);
+
+  // A device not seen for this long is lost, unless overridden by setScanLostOverride().
+  private static final long DEFAULT_LOST_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(10);
+  // Lost devices are reported up to this late.
+  private static final long LOST_SWEEP_PERIOD_MILLIS = 1000;
+
   private final Map<ScanCallback, android.bluetooth.le.ScanCallback> callbacksMap =
       new HashMap<ScanCallback, android.bluetooth.le.ScanCallback>();
   private final android.bluetooth.le.BluetoothLeScanner osScanner;
+  private final ScanMultiplexer multiplexer = new ScanMultiplexer();
+  private boolean multiplexing;
+  // The callback of the shared OS scan, while it runs.
+  private android.bluetooth.le.ScanCallback multiplexedOsCallback;
+  // The scans whose first and lost matches are tracked in software, by user callback.
+  private final Map<ScanCallback, TrackedScanCallback> trackedCallbacks =
+      new HashMap<ScanCallback, TrackedScanCallback>();
+  private final SightingTracker<TrackedScanCallback, ScanResult> tracker =
+      new SightingTracker<TrackedScanCallback, ScanResult>(
+          new SystemClock(), DEFAULT_LOST_TIMEOUT_MILLIS);
+  // Runs the sweep on the main thread, where the OS delivers scan results.
+  private final Handler handler = new Handler(Looper.getMainLooper());
+  // True while the sweep of the tracker is scheduled, that is while any scan is tracked.
+  private boolean sweeping;
+
+  private final Runnable sweepTask = new Runnable() {
+    @Override
+    public void run() {
+      synchronized (LBluetoothLeScannerCompat.this) {
+        if (!sweeping) {
+          return;
+        }
+        handler.postDelayed(this, LOST_SWEEP_PERIOD_MILLIS);
+      }
+      tracker.sweep(TrackedScanCallback.LOST_LISTENER);
+    }
+  };
 
   /**
    * Package-protected constructor, used by {@link BluetoothLeScannerCompatProvider}.
@@ -65,12 +124,54 @@ class LBluetoothLeScannerCompat extends BluetoothLeScannerCompat {
   }
 
   @Override
-  public boolean startScan(List<ScanFilter> filters, ScanSettings settings, ScanCallback callback) {
-    if (callbacksMap.containsKey(callback)) {
+  public synchronized boolean startScan(
+      List<ScanFilter> filters, ScanSettings settings, ScanCallback callback) {
+    if (callbacksMap.containsKey(callback) || multiplexer.contains(callback)
+        || trackedCallbacks.containsKey(callback)) {
       Logger.logInfo("StartScan(): BLE 'L' hardware scan already in progress...");
       stopScan(callback);
     }
-    
+
+    ScanCallback scanCallback = callback;
+    ScanSettings scanSettings = settings;
+    if (TrackedScanCallback.isTracked(settings)) {
+      TrackedScanCallback tracked =
+          new TrackedScanCallback(callback, settings.getCallbackType(), tracker);
+      tracker.addClient(tracked, settings.getLostTimeoutMillis());
+      trackedCallbacks.put(callback, tracked);
+      updateLostSweep();
+      scanCallback = tracked;
+      // The hardware scan reports every match, the tracked callback derives the rest.
+      scanSettings = new ScanSettings.Builder()
+          .setScanMode(settings.getScanMode())
+          .setScanResultType(settings.getScanResultType())
+          .build();
+    }
+
+    if (!startOsScan(filters, scanSettings, scanCallback)) {
+      stopTracking(callback);
+      return false;
+    }
+    return true;
+  }
+
+  // Starts the OS scan of a client, shared if it can be.
+  private boolean startOsScan(
+      List<ScanFilter> filters, ScanSettings settings, ScanCallback callback) {
+    if (multiplexing && ScanMultiplexer.canMultiplex(settings)) {
+      if (!multiplexer.add(filters, settings, callback) && multiplexedOsCallback != null) {
+        // The shared scan already covers this client.
+        return true;
+      }
+      if (!restartMultiplexedScan()) {
+        // Give the scans already sharing the OS scan their previous one back.
+        multiplexer.remove(callback);
+        restartMultiplexedScanOrFail();
+        return false;
+      }
+      return true;
+    }
+
     android.bluetooth.le.ScanSettings osSettings = toOs(settings);
     android.bluetooth.le.ScanCallback osCallback = toOs(callback);
     List<android.bluetooth.le.ScanFilter> osFilters = toOs(filters);
@@ -87,8 +188,17 @@ class LBluetoothLeScannerCompat extends BluetoothLeScannerCompat {
   }
 
   @Override
-  public void stopScan(ScanCallback callback) {
-    android.bluetooth.le.ScanCallback osCallback = callbacksMap.get(callback);
+  public synchronized void stopScan(ScanCallback callback) {
+    TrackedScanCallback tracked = stopTracking(callback);
+    ScanCallback scanCallback = tracked != null ? tracked : callback;
+    if (multiplexer.contains(scanCallback)) {
+      if (multiplexer.remove(scanCallback) || multiplexer.isEmpty()) {
+        restartMultiplexedScanOrFail();
+      }
+      return;
+    }
+
+    android.bluetooth.le.ScanCallback osCallback = callbacksMap.remove(scanCallback);
 
     if (osCallback != null) {
       try {
@@ -100,20 +210,109 @@ class LBluetoothLeScannerCompat extends BluetoothLeScannerCompat {
     }
   }
 
+  /**
+   * {@inheritDoc}
+   * <p>
+   * Scans started while multiplexing is on that report every match without delay share one OS
+   * scan, using the union of their filters and the most aggressive of their scan modes. The OS
+   * scan is only restarted when a scan joining or leaving changes these. Scans already running
+   * are not moved.
+   */
+  @Override
+  public synchronized void setScanMultiplexing(boolean enabled) {
+    multiplexing = enabled;
+  }
+
+  // Restarts the shared OS scan, and reports the failure to the scans sharing it if it could not
+  // be started. They stay registered, so that they can be stopped and share the next OS scan.
+  private void restartMultiplexedScanOrFail() {
+    if (!restartMultiplexedScan()) {
+      multiplexer.dispatchScanFailed(ScanCallback.SCAN_FAILED_INTERNAL_ERROR);
+    }
+  }
+
+  // Stops the shared OS scan, and starts it again with the current union of the multiplexed
+  // scans, if any. Returns false if it could not be started.
+  private boolean restartMultiplexedScan() {
+    if (multiplexedOsCallback != null) {
+      try {
+        Logger.logInfo("Stopping multiplexed BLE 'L' hardware scan");
+        osScanner.stopScan(multiplexedOsCallback);
+      } catch (Exception e) {
+        Logger.logError("Exception caught calling 'L' BluetoothLeScanner.stopScan()", e);
+      }
+      multiplexedOsCallback = null;
+    }
+    if (multiplexer.isEmpty()) {
+      return true;
+    }
+    android.bluetooth.le.ScanCallback osCallback = toOs(multiplexer);
+    try {
+      Logger.logInfo("Starting multiplexed BLE 'L' hardware scan");
+      osScanner.startScan(toOs(multiplexer.getScanFilters()), toOs(multiplexer.getScanSettings()),
+          osCallback);
+      multiplexedOsCallback = osCallback;
+      return true;
+    } catch (Exception e) {
+      Logger.logError("Exception caught calling 'L' BluetoothLeScanner.startScan()", e);
+      return false;
+    }
+  }
+
   @Override
   public void setCustomScanTiming(int scanMillis, int idleMillis, long serialScanDurationMillis) {
     // Do nothing.  This operation is not supported, but calling it is not an error.
   }
   
+  /**
+   * {@inheritDoc}
+   * <p>
+   * Applies to the scans tracked in software without a lost timeout of their own.
+   */
   @Override
   public synchronized void setScanLostOverride(long lostOverrideMillis) {
-    // TODO: discuss w/ bentonian how best to implement this here.
+    tracker.setDefaultTimeoutMillis(
+        lostOverrideMillis >= 0 ? lostOverrideMillis : DEFAULT_LOST_TIMEOUT_MILLIS);
+  }
+
+  // Stops tracking the first and lost matches of callback, if they were. Returns the tracked
+  // callback the OS scan reports to, or null.
+  private TrackedScanCallback stopTracking(ScanCallback callback) {
+    TrackedScanCallback tracked = trackedCallbacks.remove(callback);
+    if (tracked != null) {
+      tracked.stop();
+      tracker.removeClient(tracked);
+      updateLostSweep();
+    }
+    return tracked;
+  }
+
+  // Runs the sweep of the tracker while any scan is tracked.
+  private void updateLostSweep() {
+    if (trackedCallbacks.isEmpty()) {
+      if (sweeping) {
+        sweeping = false;
+        handler.removeCallbacks(sweepTask);
+      }
+    } else if (!sweeping) {
+      sweeping = true;
+      handler.postDelayed(sweepTask, LOST_SWEEP_PERIOD_MILLIS);
+    }
   }
 
   /////////////////////////////////////////////////////////////////////////////
   // Conversion methods
 
   private static android.bluetooth.le.ScanSettings toOs(ScanSettings settings) {
+    android.bluetooth.le.ScanSettings osSettings = SETTINGS_CACHE.get(settings);
+    if (osSettings == null) {
+      osSettings = convert(settings);
+      SETTINGS_CACHE.put(settings, osSettings);
+    }
+    return osSettings;
+  }
+
+  private static android.bluetooth.le.ScanSettings convert(ScanSettings settings) {
     android.bluetooth.le.ScanSettings.Builder builder =
         new android.bluetooth.le.ScanSettings.Builder()
             .setReportDelay(settings.getReportDelayMillis())
@@ -124,35 +323,44 @@ class LBluetoothLeScannerCompat extends BluetoothLeScannerCompat {
     // Eclipse doesn't recognize these methods (yet). To track changes to this, keep an eye on
     // http://cs/#android/frameworks/base/core/java/android/bluetooth/le/ScanSettings.java
     // TODO: Remove--or at least never commit to gcore.
-    Class<?> clazz = builder.getClass();
-    boolean resultTypeSet = false;
-    boolean callbackTypeSet = false;
+    Method setScanResultType = HiddenSettingsMethods.SET_SCAN_RESULT_TYPE;
+    Method setCallbackType = HiddenSettingsMethods.SET_CALLBACK_TYPE;
+    if (setScanResultType == null && setCallbackType == null) {
+      throw new RuntimeException(
+          "Failed to find setScanResultType() and setCallbackType() via reflection");
+    }
     try {
-      for (Method method : clazz.getMethods()) {
-        if (method.toString().contains(".setScanResultType(")) {
-          method.invoke(builder, settings.getScanResultType());
-          resultTypeSet = true;
-        }
-        if (method.toString().contains(".setCallbackType(")) {
-          method.invoke(builder, settings.getCallbackType());
-          callbackTypeSet = true;
-        }
-        if (resultTypeSet && callbackTypeSet) {
-          break;
-        }
+      if (setScanResultType != null) {
+        setScanResultType.invoke(builder, settings.getScanResultType());
+      }
+      if (setCallbackType != null) {
+        setCallbackType.invoke(builder, settings.getCallbackType());
       }
     } catch (Exception e) {
       throw new RuntimeException(e);
     }
-    if (!resultTypeSet && !callbackTypeSet) {
-      throw new RuntimeException(
-          "Failed to find setScanResultType() and setCallbackType() via reflection");
-    }
     // </hack>
 
     return builder.build();
   }
 
+  /**
+   * The hidden setters of the OS scan settings builder, looked up once per process.
+   */
+  private static final class HiddenSettingsMethods {
+    static final Method SET_SCAN_RESULT_TYPE = find(".setScanResultType(");
+    static final Method SET_CALLBACK_TYPE = find(".setCallbackType(");
+
+    private static Method find(String signature) {
+      for (Method method : android.bluetooth.le.ScanSettings.Builder.class.getMethods()) {
+        if (method.toString().contains(signature)) {
+          return method;
+        }
+      }
+      return null;
+    }
+  }
+
   private static android.bluetooth.le.ScanCallback toOs(final ScanCallback callback) {
     return new android.bluetooth.le.ScanCallback() {
 
@@ -161,6 +369,12 @@ class LBluetoothLeScannerCompat extends BluetoothLeScannerCompat {
         callback.onScanResult(callbackType, fromOs(osResult));
       }
 
+      // Results the controller buffered during the report delay, converted in one pass.
+      @Override
+      public void onBatchScanResults(List<android.bluetooth.le.ScanResult> osResults) {
+        callback.onBatchScanResults(fromOs(osResults));
+      }
+
       @Override
       public void onScanFailed(int errorCode) {
         Logger.logInfo("LBluetoothLeScannerCompat::onScanFailed(" + errorCode + ")");
@@ -169,6 +383,22 @@ class LBluetoothLeScannerCompat extends BluetoothLeScannerCompat {
     };
   }
 
+  private static android.bluetooth.le.ScanCallback toOs(final ScanMultiplexer multiplexer) {
+    return new android.bluetooth.le.ScanCallback() {
+
+      @Override
+      public void onScanResult(int callbackType, android.bluetooth.le.ScanResult osResult) {
+        multiplexer.dispatch(fromOs(osResult));
+      }
+
+      @Override
+      public void onScanFailed(int errorCode) {
+        Logger.logInfo("LBluetoothLeScannerCompat::onScanFailed(" + errorCode + ")");
+        multiplexer.dispatchScanFailed(errorCode);
+      }
+    };
+  }
+
   private static List<android.bluetooth.le.ScanFilter> toOs(List<ScanFilter> filters) {
     List<android.bluetooth.le.ScanFilter> osFilters =
         new ArrayList<android.bluetooth.le.ScanFilter>(filters.size());
@@ -179,6 +409,15 @@ class LBluetoothLeScannerCompat extends BluetoothLeScannerCompat {
   }
 
   private static android.bluetooth.le.ScanFilter toOs(ScanFilter filter) {
+    android.bluetooth.le.ScanFilter osFilter = FILTER_CACHE.get(filter);
+    if (osFilter == null) {
+      osFilter = convert(filter);
+      FILTER_CACHE.put(filter, osFilter);
+    }
+    return osFilter;
+  }
+
+  private static android.bluetooth.le.ScanFilter convert(ScanFilter filter) {
     android.bluetooth.le.ScanFilter.Builder builder = new android.bluetooth.le.ScanFilter.Builder();
     if (!isNullOrEmpty(filter.getDeviceAddress())) {
       builder.setDeviceAddress(filter.getDeviceAddress());
@@ -226,17 +465,38 @@ class LBluetoothLeScannerCompat extends BluetoothLeScannerCompat {
         fromOs(osResult.getScanRecord()),
         osResult.getRssi(),
         // Convert the osResult timestamp from 'nanos since boot' to 'nanos since epoch'.
-        osResult.getTimestampNanos() + getActualBootTimeNanos());
+        BOOT_TIME_OFFSET.toEpochNanos(osResult.getTimestampNanos()));
   }
 
-  private static long getActualBootTimeNanos() {
-    long currentTimeNanos = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
-    long elapsedRealtimeNanos = android.os.SystemClock.elapsedRealtimeNanos();
-    return currentTimeNanos - elapsedRealtimeNanos;
-  }
+  /**
+   * Wraps the bytes of the OS record, without copying them, and adopts the fields the OS has
+   * already parsed when they are first read, instead of parsing them again.
+   */
+  private static ScanRecord fromOs(final android.bluetooth.le.ScanRecord osRecord) {
+    if (osRecord == null) {
+      return null;
+    }
+    return ScanRecord.wrap(osRecord.getBytes(), new ScanRecord.ParsedFields() {
+      @Override
+      public List<ParcelUuid> getServiceUuids() {
+        return osRecord.getServiceUuids();
+      }
 
-  private static ScanRecord fromOs(android.bluetooth.le.ScanRecord osRecord) {
-    return ScanRecord.parseFromBytes(osRecord.getBytes());
+      @Override
+      public SparseArray<byte[]> getManufacturerSpecificData() {
+        return osRecord.getManufacturerSpecificData();
+      }
+
+      @Override
+      public Map<ParcelUuid, byte[]> getServiceData() {
+        return osRecord.getServiceData();
+      }
+
+      @Override
+      public String getDeviceName() {
+        return osRecord.getDeviceName();
+      }
+    });
   }
 
   private static boolean isNullOrEmpty(String s) {
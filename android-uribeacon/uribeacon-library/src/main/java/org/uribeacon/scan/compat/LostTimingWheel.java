@@ -0,0 +1,200 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.uribeacon.scan.compat;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A hashed timing wheel telling which devices have not been seen for the lost timeout.
+ * <p>
+ * Each device is filed in the slot of the tick its deadline falls in, the slots wrapping around
+ * the wheel. {@link #advance} only visits the slots of the ticks that passed since the previous
+ * call, so a scan cycle costs as many steps as devices expiring, not as devices tracked.
+ * <p>
+ * Sighting a device again only records its new last-seen time: the device is not moved to a new
+ * slot until its old deadline is reached, when it is filed again under its real deadline. So
+ * frequent sightings cost a map update each.
+ * <p>
+ * Devices are touched by the dispatcher and binder threads and expired by the scan cycle
+ * thread, so all methods are synchronized. Expired devices are reported after the lock is released.
+ *
+ * @param <V> The sighting kept with each device, handed back when it expires.
+ */
+final class LostTimingWheel<V> {
+
+  /**
+   * Receives the devices that expired.
+   */
+  interface Listener<V> {
+    void onExpired(String address, V sighting);
+  }
+
+  private static final class Entry<V> {
+    final String address;
+    long lastSeenMillis;
+    V sighting;
+    // The deadline the entry is filed under, and the slot it is filed in.
+    long deadlineMillis;
+    int slot;
+
+    Entry(String address) {
+      this.address = address;
+    }
+  }
+
+  private final long tickMillis;
+  private final List<List<Entry<V>>> slots;
+  private final int mask;
+  private final Map<String, Entry<V>> entries = new HashMap<String, Entry<V>>();
+  private long timeoutMillis;
+  // The tick of the last advance. Its slot is visited again by the next advance.
+  private long currentTick;
+
+  /**
+   * @param tickMillis The resolution of the wheel.
+   * @param slotCount The number of slots, a power of two. Deadlines further away than a
+   *     rotation of the wheel are revisited once per rotation.
+   * @param timeoutMillis The time after which an unseen device expires.
+   * @param nowMillis The current time.
+   */
+  LostTimingWheel(long tickMillis, int slotCount, long timeoutMillis, long nowMillis) {
+    if (slotCount <= 0 || (slotCount & (slotCount - 1)) != 0) {
+      throw new IllegalArgumentException("slotCount must be a power of two: " + slotCount);
+    }
+    this.tickMillis = tickMillis;
+    this.mask = slotCount - 1;
+    this.slots = new ArrayList<List<Entry<V>>>(slotCount);
+    for (int i = 0; i < slotCount; i++) {
+      slots.add(new ArrayList<Entry<V>>());
+    }
+    this.timeoutMillis = timeoutMillis;
+    this.currentTick = nowMillis / tickMillis;
+  }
+
+  /**
+   * Record that the device at {@code address} was seen at {@code seenMillis}. Returns true if the
+   * device was not tracked yet.
+   */
+  synchronized boolean touch(String address, long seenMillis, V sighting) {
+    Entry<V> entry = entries.get(address);
+    boolean added = entry == null;
+    if (added) {
+      entry = new Entry<V>(address);
+      entry.lastSeenMillis = seenMillis;
+      entries.put(address, entry);
+      schedule(entry);
+    } else if (seenMillis >= entry.lastSeenMillis) {
+      entry.lastSeenMillis = seenMillis;
+    }
+    entry.sighting = sighting;
+    return added;
+  }
+
+  /**
+   * Stop tracking the device at {@code address}. Returns true if it was tracked.
+   */
+  synchronized boolean remove(String address) {
+    Entry<V> entry = entries.remove(address);
+    if (entry != null) {
+      slots.get(entry.slot).remove(entry);
+    }
+    return entry != null;
+  }
+
+  /**
+   * Change the lost timeout. A shorter timeout files every device again under its new deadline.
+   */
+  synchronized void setTimeoutMillis(long timeoutMillis) {
+    boolean shorter = timeoutMillis < this.timeoutMillis;
+    this.timeoutMillis = timeoutMillis;
+    if (shorter) {
+      for (List<Entry<V>> slot : slots) {
+        slot.clear();
+      }
+      for (Entry<V> entry : entries.values()) {
+        schedule(entry);
+      }
+    }
+  }
+
+  synchronized long getTimeoutMillis() {
+    return timeoutMillis;
+  }
+
+  /**
+   * Returns the number of devices tracked.
+   */
+  synchronized int size() {
+    return entries.size();
+  }
+
+  /**
+   * Expire the devices not seen for longer than the timeout at {@code nowMillis}, reporting them
+   * to {@code listener}.
+   */
+  void advance(long nowMillis, Listener<V> listener) {
+    List<Entry<V>> expired = new ArrayList<Entry<V>>();
+    synchronized (this) {
+      long lastTick = nowMillis / tickMillis;
+      // Past a full rotation, every slot has been reached.
+      long firstTick = Math.max(currentTick, lastTick - mask);
+      currentTick = Math.max(currentTick, lastTick);
+      for (long tick = firstTick; tick <= lastTick; tick++) {
+        List<Entry<V>> slot = slots.get((int) (tick & mask));
+        List<Entry<V>> rescheduled = null;
+        for (Iterator<Entry<V>> it = slot.iterator(); it.hasNext(); ) {
+          Entry<V> entry = it.next();
+          if (entry.deadlineMillis >= nowMillis) {
+            // Not due yet, or due on a later rotation.
+            continue;
+          }
+          it.remove();
+          if (entry.lastSeenMillis + timeoutMillis < nowMillis) {
+            entries.remove(entry.address);
+            expired.add(entry);
+          } else {
+            if (rescheduled == null) {
+              rescheduled = new ArrayList<Entry<V>>();
+            }
+            rescheduled.add(entry);
+          }
+        }
+        if (rescheduled != null) {
+          for (Entry<V> entry : rescheduled) {
+            schedule(entry);
+          }
+        }
+      }
+    }
+    for (Entry<V> entry : expired) {
+      listener.onExpired(entry.address, entry.sighting);
+    }
+  }
+
+  // Files the entry under its deadline, or under the current tick if that has passed.
+  private void schedule(Entry<V> entry) {
+    entry.deadlineMillis = entry.lastSeenMillis + timeoutMillis;
+    long tick = Math.max(entry.deadlineMillis / tickMillis, currentTick);
+    entry.slot = (int) (tick & mask);
+    slots.get(entry.slot).add(entry);
+  }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.uribeacon.scan.compat;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * The latest sighting of each recently seen device, replayed to new scan clients.
+ * <p>
+ * At most {@code capacity} devices are kept: adding one more evicts the device seen least
+ * recently, so addresses that change every few minutes cannot grow it without bound. Only what a
+ * replay needs is stored: the device, the raw advertisement bytes, the signal strength and the
+ * timestamp. The {@link ScanRecord} is parsed again, lazily, when the sighting is replayed.
+ * <p>
+ * As each sighting replaces the previous one of its device, the {@link Activity} since the last
+ * call to {@link #takeActivity} is counted, for {@link AdaptiveScanScheduler}.
+ * <p>
+ * Sightings are added by the dispatcher thread, or by the binder thread when they match no
+ * client, replayed by registrations and expired by the scan cycle thread, so all methods are
+ * synchronized.
+ */
+final class RecentSightings {
+
+  /**
+   * The compact record of a sighting.
+   */
+  static final class Sighting {
+    final String address;
+    final BluetoothDevice device;
+    final byte[] scanRecordBytes;
+    final int rssi;
+    final long timestampNanos;
+
+    Sighting(String address, ScanResult result) {
+      this(address, result.getDevice(),
+          result.getScanRecord() == null ? null : result.getScanRecord().getBytes(),
+          result.getRssi(), result.getTimestampNanos());
+    }
+
+    Sighting(String address, BluetoothDevice device, byte[] scanRecordBytes, int rssi,
+        long timestampNanos) {
+      this.address = address;
+      this.device = device;
+      this.scanRecordBytes = scanRecordBytes;
+      this.rssi = rssi;
+      this.timestampNanos = timestampNanos;
+    }
+
+    ScanResult toScanResult() {
+      return new ScanResult(device, ScanRecord.wrap(scanRecordBytes), rssi, timestampNanos);
+    }
+  }
+
+  /**
+   * What changed among the devices over a period.
+   */
+  static final class Activity {
+    // Devices not seen before, or seen again after being lost.
+    final int newDevices;
+    // Devices whose advertisement changed.
+    final int changedDevices;
+    // Half the mean squared change of signal strength between sightings of a device, in dBm
+    // squared. For a device standing still, this estimates the variance of its signal strength.
+    final double rssiVariance;
+
+    Activity(int newDevices, int changedDevices, double rssiVariance) {
+      this.newDevices = newDevices;
+      this.changedDevices = changedDevices;
+      this.rssiVariance = rssiVariance;
+    }
+  }
+
+  private final int capacity;
+  // In order of last sighting, least recent first.
+  private final LinkedHashMap<String, Sighting> sightings;
+  private long evictionCount;
+  private int peakSize;
+  private int newDevices;
+  private int changedDevices;
+  private long rssiChangeSquaredSum;
+  private int rssiChangeCount;
+
+  RecentSightings(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("capacity must be > 0: " + capacity);
+    }
+    this.capacity = capacity;
+    this.sightings = new LinkedHashMap<String, Sighting>(16, 0.75f, true /* accessOrder */);
+  }
+
+  /**
+   * Record the latest sighting of a device. Returns the sighting evicted to make room for it, or
+   * null.
+   */
+  synchronized Sighting put(Sighting sighting) {
+    Sighting previous = sightings.put(sighting.address, sighting);
+    if (previous == null) {
+      newDevices++;
+    } else {
+      if (!Arrays.equals(previous.scanRecordBytes, sighting.scanRecordBytes)) {
+        changedDevices++;
+      }
+      long rssiChange = sighting.rssi - previous.rssi;
+      rssiChangeSquaredSum += rssiChange * rssiChange;
+      rssiChangeCount++;
+    }
+    Sighting evicted = null;
+    if (sightings.size() > capacity) {
+      Iterator<Sighting> eldest = sightings.values().iterator();
+      evicted = eldest.next();
+      eldest.remove();
+      evictionCount++;
+    }
+    peakSize = Math.max(peakSize, sightings.size());
+    return evicted;
+  }
+
+  /**
+   * Forget the device at {@code address} unless it was seen after {@code timestampNanos}.
+   * Returns false if a newer sighting is kept.
+   */
+  synchronized boolean removeIfNotNewer(String address, long timestampNanos) {
+    Sighting sighting = sightings.get(address);
+    if (sighting == null) {
+      return true;
+    }
+    if (sighting.timestampNanos > timestampNanos) {
+      return false;
+    }
+    sightings.remove(address);
+    return true;
+  }
+
+  /**
+   * Returns the sightings, least recent first. The list belongs to the caller.
+   */
+  synchronized List<Sighting> snapshot() {
+    return new ArrayList<Sighting>(sightings.values());
+  }
+
+  /**
+   * Returns the activity since the previous call.
+   */
+  synchronized Activity takeActivity() {
+    Activity activity = new Activity(newDevices, changedDevices,
+        rssiChangeCount == 0 ? 0 : rssiChangeSquaredSum / (2.0 * rssiChangeCount));
+    newDevices = 0;
+    changedDevices = 0;
+    rssiChangeSquaredSum = 0;
+    rssiChangeCount = 0;
+    return activity;
+  }
+
+  synchronized int size() {
+    return sightings.size();
+  }
+
+  int getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * Returns a snapshot of the size, capacity, peak size and eviction count.
+   */
+  synchronized ScanSightingStats getStats() {
+    return new ScanSightingStats(sightings.size(), capacity, peakSize, evictionCount);
+  }
+
+  /**
+   * Returns the number of devices evicted to respect the capacity.
+   */
+  synchronized long getEvictionCount() {
+    return evictionCount;
+  }
+
+  /**
+   * Returns the largest number of devices kept at once.
+   */
+  synchronized int getPeakSize() {
+    return peakSize;
+  }
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.uribeacon.scan.compat;
+
+import org.uribeacon.scan.util.Clock;
+import org.uribeacon.scan.util.Logger;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * The results waiting for one scan client, handed to its callback in order on an
+ * {@link Executor}.
+ * <p>
+ * Each client has its own queue, so a client that is slow to handle results only delays itself.
+ * The queue holds {@link ScanSettings#getDeliveryQueueCapacity} results; beyond that, updates are
+ * dropped according to {@link ScanSettings#getDeliveryOverflowPolicy}. First match and match lost
+ * results, and batches, may go over the capacity so that a client learns which devices come and
+ * go. A device lost before its first match was delivered is not reported at all. The whole
+ * queue is still bounded at {@link #HARD_CAPACITY_FACTOR} times the capacity: beyond that, updates
+ * make room for the others, and a result that finds none is dropped.
+ * <p>
+ * At most one drain task per queue is scheduled at a time, so the callback is never called
+ * concurrently with itself.
+ */
+final class ScanDeliveryQueue {
+
+  /**
+   * Runs the drain task on the calling thread.
+   */
+  static final Executor DIRECT_EXECUTOR = new Executor() {
+    @Override
+    public void execute(Runnable command) {
+      command.run();
+    }
+  };
+
+  /**
+   * The whole queue holds at most this many times the capacity.
+   */
+  static final int HARD_CAPACITY_FACTOR = 4;
+
+  private static final class Delivery {
+    int callbackType;
+    ScanResult result;
+    // Set instead of result for a batch.
+    final List<ScanResult> batch;
+    final String address;
+    final long enqueuedNanos;
+
+    Delivery(int callbackType, ScanResult result, List<ScanResult> batch, String address,
+        long enqueuedNanos) {
+      this.callbackType = callbackType;
+      this.result = result;
+      this.batch = batch;
+      this.address = address;
+      this.enqueuedNanos = enqueuedNanos;
+    }
+
+    boolean isDroppable() {
+      return callbackType == ScanSettings.CALLBACK_TYPE_ALL_MATCHES;
+    }
+  }
+
+  private final ScanCallback callback;
+  private final int capacity;
+  private final int hardCapacity;
+  private final int overflowPolicy;
+  private final Executor executor;
+  private final Clock clock;
+
+  // All fields below are guarded by this.
+  private final ArrayDeque<Delivery> queue = new ArrayDeque<Delivery>();
+  // The queued update of each address, when coalescing.
+  private final Map<String, Delivery> queuedByAddress = new HashMap<String, Delivery>();
+  // The queued first match of each address.
+  private final Map<String, Delivery> queuedFirstMatches = new HashMap<String, Delivery>();
+  // True while a drain task is scheduled or running.
+  private boolean draining;
+  private boolean closed;
+  private int maxDepth;
+  private long deliveredCount;
+  private long droppedCount;
+  private long coalescedCount;
+  private long totalLatencyNanos;
+  private long maxLatencyNanos;
+
+  private final Runnable drainTask = new Runnable() {
+    @Override
+    public void run() {
+      drain();
+    }
+  };
+
+  ScanDeliveryQueue(ScanCallback callback, ScanSettings settings, Executor executor, Clock clock) {
+    this.callback = callback;
+    this.capacity = settings.getDeliveryQueueCapacity();
+    this.hardCapacity = capacity * HARD_CAPACITY_FACTOR;
+    this.overflowPolicy = settings.getDeliveryOverflowPolicy();
+    this.executor = executor;
+    this.clock = clock;
+  }
+
+  /**
+   * Queue a result for the client, scheduling a drain if none is pending.
+   */
+  void enqueue(int callbackType, String address, ScanResult result) {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      boolean droppable = callbackType == ScanSettings.CALLBACK_TYPE_ALL_MATCHES;
+      if (overflowPolicy == ScanSettings.DELIVERY_OVERFLOW_COALESCE_BY_ADDRESS) {
+        Delivery queued = queuedByAddress.get(address);
+        if (queued != null && callbackType != ScanSettings.CALLBACK_TYPE_MATCH_LOST) {
+          // Keeps the queued type and place, so a first match stays a first match.
+          queued.result = result;
+          coalescedCount++;
+          return;
+        }
+      }
+      if (callbackType == ScanSettings.CALLBACK_TYPE_MATCH_LOST && collapseFirstMatch(address)) {
+        return;
+      }
+      if (droppable && queue.size() >= capacity) {
+        if (overflowPolicy == ScanSettings.DELIVERY_OVERFLOW_DROP_NEWEST || !dropOldest()) {
+          droppedCount++;
+          return;
+        }
+      } else if (!hasRoom()) {
+        return;
+      }
+      Delivery delivery =
+          new Delivery(callbackType, result, null, address, clock.elapsedRealtimeNanos());
+      if (callbackType == ScanSettings.CALLBACK_TYPE_FIRST_MATCH) {
+        queuedFirstMatches.put(address, delivery);
+      }
+      if (overflowPolicy == ScanSettings.DELIVERY_OVERFLOW_COALESCE_BY_ADDRESS) {
+        if (callbackType == ScanSettings.CALLBACK_TYPE_MATCH_LOST) {
+          // Later sightings must not be folded into an earlier place than the loss.
+          queuedByAddress.remove(address);
+        } else {
+          queuedByAddress.put(address, delivery);
+        }
+      }
+      if (!add(delivery)) {
+        return;
+      }
+    }
+    executor.execute(drainTask);
+  }
+
+  /**
+   * Queue a batch of results for {@link ScanCallback#onBatchScanResults}, scheduling a drain if
+   * none is pending.
+   */
+  void enqueueBatch(List<ScanResult> batch) {
+    synchronized (this) {
+      if (closed || !hasRoom()
+          || !add(new Delivery(0, null, batch, null, clock.elapsedRealtimeNanos()))) {
+        return;
+      }
+    }
+    executor.execute(drainTask);
+  }
+
+  // Adds delivery to the queue. Returns true if a drain must be scheduled.
+  private boolean add(Delivery delivery) {
+    queue.add(delivery);
+    maxDepth = Math.max(maxDepth, queue.size());
+    if (draining) {
+      return false;
+    }
+    draining = true;
+    return true;
+  }
+
+  // Makes room for a delivery that is not an update if the queue is at its hard capacity, by
+  // dropping the oldest update. Returns false, and counts the new delivery as dropped, if there
+  // is none.
+  private boolean hasRoom() {
+    if (queue.size() < hardCapacity || dropOldest()) {
+      return true;
+    }
+    droppedCount++;
+    return false;
+  }
+
+  // Removes the queued first match of address, and the updates that followed it, since the
+  // device is lost before the client learned it was found. Returns false if there is none.
+  private boolean collapseFirstMatch(String address) {
+    Delivery firstMatch = queuedFirstMatches.get(address);
+    if (firstMatch == null) {
+      return false;
+    }
+    boolean found = false;
+    for (Iterator<Delivery> it = queue.iterator(); it.hasNext(); ) {
+      Delivery delivery = it.next();
+      found = found || delivery == firstMatch;
+      if (found && address.equals(delivery.address)) {
+        it.remove();
+        forget(delivery);
+        coalescedCount++;
+      }
+    }
+    // The loss itself.
+    coalescedCount++;
+    return true;
+  }
+
+  // Removes the oldest droppable delivery. Returns false if there is none.
+  private boolean dropOldest() {
+    for (Iterator<Delivery> it = queue.iterator(); it.hasNext(); ) {
+      Delivery delivery = it.next();
+      if (delivery.isDroppable()) {
+        it.remove();
+        forget(delivery);
+        droppedCount++;
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void forget(Delivery delivery) {
+    if (delivery.address != null && queuedByAddress.get(delivery.address) == delivery) {
+      queuedByAddress.remove(delivery.address);
+    }
+    if (delivery.address != null && queuedFirstMatches.get(delivery.address) == delivery) {
+      queuedFirstMatches.remove(delivery.address);
+    }
+  }
+
+  private void drain() {
+    while (true) {
+      Delivery delivery;
+      synchronized (this) {
+        delivery = queue.poll();
+        if (delivery == null || closed) {
+          draining = false;
+          return;
+        }
+        forget(delivery);
+        long latencyNanos = clock.elapsedRealtimeNanos() - delivery.enqueuedNanos;
+        totalLatencyNanos += latencyNanos;
+        maxLatencyNanos = Math.max(maxLatencyNanos, latencyNanos);
+        deliveredCount++;
+      }
+      // Catch any exceptions and log them but continue delivering.
+      try {
+        if (delivery.batch != null) {
+          callback.onBatchScanResults(delivery.batch);
+        } else {
+          callback.onScanResult(delivery.callbackType, delivery.result);
+        }
+      } catch (Exception e) {
+        Logger.logError("Failure while handling scan result", e);
+      }
+    }
+  }
+
+  /**
+   * Discard the queued results and stop delivering, once the client has stopped its scan.
+   */
+  synchronized void close() {
+    closed = true;
+    queue.clear();
+    queuedByAddress.clear();
+    queuedFirstMatches.clear();
+  }
+
+  synchronized ScanDeliveryStats getStats() {
+    return new ScanDeliveryStats(queue.size(), maxDepth, deliveredCount, droppedCount,
+        coalescedCount, deliveredCount == 0 ? 0 : totalLatencyNanos / deliveredCount,
+        maxLatencyNanos);
+  }
+}
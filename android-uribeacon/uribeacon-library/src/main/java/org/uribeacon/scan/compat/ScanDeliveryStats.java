@@ -0,0 +1,103 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.uribeacon.scan.compat;
+
+/**
+ * Counters of the results delivered to one scan client, as returned by
+ * {@link BluetoothLeScannerCompat#getDeliveryStats}.
+ * <p>
+ * Latency is measured from the time a result is queued for the client to the time its callback
+ * is invoked. Instances are immutable snapshots.
+ */
+public final class ScanDeliveryStats {
+  private final int queueDepth;
+  private final int maxQueueDepth;
+  private final long deliveredCount;
+  private final long droppedCount;
+  private final long coalescedCount;
+  private final long meanLatencyNanos;
+  private final long maxLatencyNanos;
+
+  ScanDeliveryStats(int queueDepth, int maxQueueDepth, long deliveredCount, long droppedCount,
+      long coalescedCount, long meanLatencyNanos, long maxLatencyNanos) {
+    this.queueDepth = queueDepth;
+    this.maxQueueDepth = maxQueueDepth;
+    this.deliveredCount = deliveredCount;
+    this.droppedCount = droppedCount;
+    this.coalescedCount = coalescedCount;
+    this.meanLatencyNanos = meanLatencyNanos;
+    this.maxLatencyNanos = maxLatencyNanos;
+  }
+
+  /**
+   * Returns the number of results waiting for the client.
+   */
+  public int getQueueDepth() {
+    return queueDepth;
+  }
+
+  /**
+   * Returns the largest number of results that have waited for the client at once.
+   */
+  public int getMaxQueueDepth() {
+    return maxQueueDepth;
+  }
+
+  /**
+   * Returns the number of results handed to the client.
+   */
+  public long getDeliveredCount() {
+    return deliveredCount;
+  }
+
+  /**
+   * Returns the number of results dropped because the queue was full.
+   */
+  public long getDroppedCount() {
+    return droppedCount;
+  }
+
+  /**
+   * Returns the number of results that replaced a queued result from the same device.
+   */
+  public long getCoalescedCount() {
+    return coalescedCount;
+  }
+
+  /**
+   * Returns the mean time results waited in the queue, in nanoseconds.
+   */
+  public long getMeanLatencyNanos() {
+    return meanLatencyNanos;
+  }
+
+  /**
+   * Returns the longest time a result waited in the queue, in nanoseconds.
+   */
+  public long getMaxLatencyNanos() {
+    return maxLatencyNanos;
+  }
+
+  @Override
+  public String toString() {
+    return "ScanDeliveryStats [queueDepth=" + queueDepth + ", maxQueueDepth=" + maxQueueDepth
+        + ", delivered=" + deliveredCount + ", dropped=" + droppedCount
+        + ", coalesced=" + coalescedCount + ", meanLatencyNanos=" + meanLatencyNanos
+        + ", maxLatencyNanos=" + maxLatencyNanos + "]";
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.uribeacon.scan.compat;
+
+/**
+ * The scan cycle a scanner runs, and how its adaptive timing has changed it, as returned by
+ * {@link BluetoothLeScannerCompat#getDutyCycleStats}. Instances are immutable snapshots.
+ */
+public final class ScanDutyCycleStats {
+  private final int activeMillis;
+  private final int idleMillis;
+  private final long cycleCount;
+  private final long shortenedCount;
+  private final long lengthenedCount;
+
+  ScanDutyCycleStats(int activeMillis, int idleMillis, long cycleCount, long shortenedCount,
+      long lengthenedCount) {
+    this.activeMillis = activeMillis;
+    this.idleMillis = idleMillis;
+    this.cycleCount = cycleCount;
+    this.shortenedCount = shortenedCount;
+    this.lengthenedCount = lengthenedCount;
+  }
+
+  /**
+   * Returns the time the radio scans in each cycle, in milliseconds.
+   */
+  public int getActiveMillis() {
+    return activeMillis;
+  }
+
+  /**
+   * Returns the time the radio is idle in each cycle, in milliseconds.
+   */
+  public int getIdleMillis() {
+    return idleMillis;
+  }
+
+  /**
+   * Returns the fraction of the time the radio scans, between 0 and 1.
+   */
+  public double getDutyCycle() {
+    int periodMillis = activeMillis + idleMillis;
+    return periodMillis == 0 ? 0 : (double) activeMillis / periodMillis;
+  }
+
+  /**
+   * Returns the number of cycles run with adaptive timing.
+   */
+  public long getCycleCount() {
+    return cycleCount;
+  }
+
+  /**
+   * Returns the number of cycles after which adaptive timing shortened the idle time.
+   */
+  public long getShortenedCount() {
+    return shortenedCount;
+  }
+
+  /**
+   * Returns the number of cycles after which adaptive timing lengthened the idle time.
+   */
+  public long getLengthenedCount() {
+    return lengthenedCount;
+  }
+
+  @Override
+  public String toString() {
+    return "ScanDutyCycleStats [activeMillis=" + activeMillis + ", idleMillis=" + idleMillis
+        + ", cycles=" + cycleCount + ", shortened=" + shortenedCount
+        + ", lengthened=" + lengthenedCount + "]";
+  }
+}
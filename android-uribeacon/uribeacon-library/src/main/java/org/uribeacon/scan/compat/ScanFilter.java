@@ -19,7 +19,11 @@
 //
 // Changes:
 //   Changed comparison of mServiceDataUuid to Objects.equals()
-//   Exposed matchesPartialData() for testing
+//   Match service and manufacturer data in place over the raw scan record bytes
+//   Look service data up by its 16-bit or 32-bit UUID
+//   Replaced matchesPartialData() with DataPattern, which matches against premasked patterns
+//   Added matches(byte[], String) to match raw advertisements without a ScanRecord
+//   Hash data arrays by content in hashCode() so that it agrees with equals()
 
 package org.uribeacon.scan.compat;
 
@@ -29,6 +33,8 @@ import android.os.Parcel;
 import android.os.ParcelUuid;
 import android.os.Parcelable;
 
+import org.uribeacon.scan.util.AdStructureIndex;
+
 import java.util.Arrays;
 import java.util.List;
 import java.util.UUID;
@@ -51,6 +57,24 @@ import android.support.annotation.Nullable;
  */
 public final class ScanFilter implements Parcelable {
 
+    // AD types read by matches(byte[], String). See ScanRecord.
+    private static final int DATA_TYPE_SERVICE_UUIDS_16_BIT_PARTIAL = 0x02;
+    private static final int DATA_TYPE_SERVICE_UUIDS_16_BIT_COMPLETE = 0x03;
+    private static final int DATA_TYPE_SERVICE_UUIDS_32_BIT_PARTIAL = 0x04;
+    private static final int DATA_TYPE_SERVICE_UUIDS_32_BIT_COMPLETE = 0x05;
+    private static final int DATA_TYPE_SERVICE_UUIDS_128_BIT_PARTIAL = 0x06;
+    private static final int DATA_TYPE_SERVICE_UUIDS_128_BIT_COMPLETE = 0x07;
+    private static final int DATA_TYPE_LOCAL_NAME_SHORT = 0x08;
+    private static final int DATA_TYPE_LOCAL_NAME_COMPLETE = 0x09;
+    private static final int DATA_TYPE_SERVICE_DATA = 0x16;
+    private static final int DATA_TYPE_SERVICE_DATA_32_BIT = 0x20;
+    private static final int DATA_TYPE_MANUFACTURER_SPECIFIC_DATA = 0xFF;
+
+    private static final long BASE_UUID_MSB =
+            BluetoothUuid.BASE_UUID.getUuid().getMostSignificantBits();
+    private static final long BASE_UUID_LSB =
+            BluetoothUuid.BASE_UUID.getUuid().getLeastSignificantBits();
+
     @Nullable
     private final String mDeviceName;
 
@@ -61,6 +85,11 @@ public final class ScanFilter implements Parcelable {
     private final ParcelUuid mServiceUuid;
     @Nullable
     private final ParcelUuid mServiceUuidMask;
+    // mServiceUuid, already masked, and its mask as bits, for matching raw advertisements.
+    private final long mServiceUuidMsb;
+    private final long mServiceUuidLsb;
+    private final long mServiceUuidMaskMsb;
+    private final long mServiceUuidMaskLsb;
 
     @Nullable
     private final ParcelUuid mServiceDataUuid;
@@ -68,12 +97,20 @@ public final class ScanFilter implements Parcelable {
     private final byte[] mServiceData;
     @Nullable
     private final byte[] mServiceDataMask;
+    // Whether mServiceDataUuid has a 16-bit or 32-bit form, and that form.
+    private final boolean mHasShortServiceDataUuid;
+    private final int mShortServiceDataUuid;
+    // mServiceData and mServiceDataMask packed for matching, or null to match any data.
+    @Nullable
+    private final DataPattern mServiceDataPattern;
 
     private final int mManufacturerId;
     @Nullable
     private final byte[] mManufacturerData;
     @Nullable
     private final byte[] mManufacturerDataMask;
+    @Nullable
+    private final DataPattern mManufacturerDataPattern;
 
     private ScanFilter(String name, String deviceAddress, ParcelUuid uuid,
             ParcelUuid uuidMask, ParcelUuid serviceDataUuid,
@@ -82,13 +119,26 @@ public final class ScanFilter implements Parcelable {
         mDeviceName = name;
         mServiceUuid = uuid;
         mServiceUuidMask = uuidMask;
+        mServiceUuidMaskMsb = uuidMask == null ? -1L : uuidMask.getUuid().getMostSignificantBits();
+        mServiceUuidMaskLsb = uuidMask == null ? -1L : uuidMask.getUuid().getLeastSignificantBits();
+        mServiceUuidMsb = uuid == null ? 0 : uuid.getUuid().getMostSignificantBits()
+                & mServiceUuidMaskMsb;
+        mServiceUuidLsb = uuid == null ? 0 : uuid.getUuid().getLeastSignificantBits()
+                & mServiceUuidMaskLsb;
         mDeviceAddress = deviceAddress;
         mServiceDataUuid = serviceDataUuid;
         mServiceData = serviceData;
         mServiceDataMask = serviceDataMask;
+        mHasShortServiceDataUuid = serviceDataUuid != null
+                && (BluetoothUuid.is16BitUuid(serviceDataUuid)
+                        || BluetoothUuid.is32BitUuid(serviceDataUuid));
+        mShortServiceDataUuid = mHasShortServiceDataUuid
+                ? BluetoothUuid.getShortUuid(serviceDataUuid) : 0;
         mManufacturerId = manufacturerId;
         mManufacturerData = manufacturerData;
         mManufacturerDataMask = manufacturerDataMask;
+        mServiceDataPattern = DataPattern.of(serviceData, serviceDataMask);
+        mManufacturerDataPattern = DataPattern.of(manufacturerData, manufacturerDataMask);
     }
 
     @Override
@@ -308,16 +358,29 @@ public final class ScanFilter implements Parcelable {
 
         // Service data match
         if (mServiceDataUuid != null) {
-            if (!matchesPartialData(mServiceData, mServiceDataMask,
-                    scanRecord.getServiceData(mServiceDataUuid))) {
-                return false;
+            if (!mHasShortServiceDataUuid) {
+                byte[] serviceData = scanRecord.getServiceData(mServiceDataUuid);
+                if (serviceData == null || (mServiceDataPattern != null
+                        && !mServiceDataPattern.matches(serviceData, 0, serviceData.length))) {
+                    return false;
+                }
+            } else {
+                int field = scanRecord.findServiceDataField(mShortServiceDataUuid);
+                if (field < 0 || (mServiceDataPattern != null && !mServiceDataPattern.matches(
+                        scanRecord.getBytes(), scanRecord.getServiceDataOffset(field),
+                        scanRecord.getServiceDataLength(field)))) {
+                    return false;
+                }
             }
         }
 
         // Manufacturer data match.
         if (mManufacturerId >= 0) {
-            if (!matchesPartialData(mManufacturerData, mManufacturerDataMask,
-                    scanRecord.getManufacturerSpecificData(mManufacturerId))) {
+            AdStructureIndex index = scanRecord.getFieldIndex();
+            int field = index.findManufacturerData(mManufacturerId);
+            if (field < 0 || (mManufacturerDataPattern != null
+                    && !mManufacturerDataPattern.matches(index.getBytes(),
+                            index.getDataOffset(field) + 2, index.getDataLength(field) - 2))) {
                 return false;
             }
         }
@@ -325,6 +388,162 @@ public final class ScanFilter implements Parcelable {
         return true;
     }
 
+    /**
+     * Check if the filter matches the raw advertisement of the device at {@code address}. This
+     * gives the same answer as {@link #matches(ScanResult)} for a result holding the same bytes,
+     * but reads the AD structures in place instead of building a {@link ScanRecord}, so packets
+     * that match no filter can be dropped cheaply. Matching stops at the first criterion that
+     * fails.
+     *
+     * @param rawAdvertisement The scan record bytes as received from the OS.
+     * @param address The address of the advertising device, or {@code null} if unknown.
+     */
+    public boolean matches(byte[] rawAdvertisement, String address) {
+        // Device match.
+        if (mDeviceAddress != null && !mDeviceAddress.equals(address)) {
+            return false;
+        }
+
+        // Scan record is null but there exist filters on it.
+        if (rawAdvertisement == null) {
+            return !filtersOnFields();
+        }
+
+        // Service data with a UUID that has no 16-bit or 32-bit form is never advertised.
+        if (mServiceDataUuid != null && !mHasShortServiceDataUuid) {
+            return false;
+        }
+
+        // Walk the AD structures the way AdStructureIndex does. The name, the service data and
+        // the manufacturer data are decided by the last structure of their kind, so they are
+        // checked after the walk.
+        boolean serviceUuidFound = mServiceUuid == null;
+        int nameOffset = -1;
+        int nameLength = 0;
+        int serviceDataOffset = -1;
+        int serviceDataLength = 0;
+        int manufacturerDataOffset = -1;
+        int manufacturerDataLength = 0;
+        int currentPos = 0;
+        while (currentPos < rawAdvertisement.length) {
+            int length = rawAdvertisement[currentPos] & 0xFF;
+            if (length == 0) {
+                break;
+            }
+            if (currentPos + length >= rawAdvertisement.length) {
+                // A malformed record has no fields, as when parsing.
+                return !filtersOnFields();
+            }
+            int fieldType = rawAdvertisement[currentPos + 1] & 0xFF;
+            int dataOffset = currentPos + 2;
+            int dataLength = length - 1;
+            switch (fieldType) {
+                case DATA_TYPE_SERVICE_UUIDS_16_BIT_PARTIAL:
+                case DATA_TYPE_SERVICE_UUIDS_16_BIT_COMPLETE:
+                    serviceUuidFound = serviceUuidFound || matchesServiceUuids(rawAdvertisement,
+                            dataOffset, dataLength, BluetoothUuid.UUID_BYTES_16_BIT);
+                    break;
+                case DATA_TYPE_SERVICE_UUIDS_32_BIT_PARTIAL:
+                case DATA_TYPE_SERVICE_UUIDS_32_BIT_COMPLETE:
+                    serviceUuidFound = serviceUuidFound || matchesServiceUuids(rawAdvertisement,
+                            dataOffset, dataLength, BluetoothUuid.UUID_BYTES_32_BIT);
+                    break;
+                case DATA_TYPE_SERVICE_UUIDS_128_BIT_PARTIAL:
+                case DATA_TYPE_SERVICE_UUIDS_128_BIT_COMPLETE:
+                    serviceUuidFound = serviceUuidFound || matchesServiceUuids(rawAdvertisement,
+                            dataOffset, dataLength, BluetoothUuid.UUID_BYTES_128_BIT);
+                    break;
+                case DATA_TYPE_LOCAL_NAME_SHORT:
+                case DATA_TYPE_LOCAL_NAME_COMPLETE:
+                    nameOffset = dataOffset;
+                    nameLength = dataLength;
+                    break;
+                case DATA_TYPE_SERVICE_DATA:
+                case DATA_TYPE_SERVICE_DATA_32_BIT:
+                    int uuidLength = fieldType == DATA_TYPE_SERVICE_DATA
+                            ? BluetoothUuid.UUID_BYTES_16_BIT : BluetoothUuid.UUID_BYTES_32_BIT;
+                    if (mHasShortServiceDataUuid && dataLength >= uuidLength
+                            && readShortUuid(rawAdvertisement, dataOffset, uuidLength)
+                                    == mShortServiceDataUuid) {
+                        serviceDataOffset = dataOffset + uuidLength;
+                        serviceDataLength = dataLength - uuidLength;
+                    }
+                    break;
+                case DATA_TYPE_MANUFACTURER_SPECIFIC_DATA:
+                    if (mManufacturerId >= 0 && dataLength >= 2
+                            && readShortUuid(rawAdvertisement, dataOffset, 2) == mManufacturerId) {
+                        manufacturerDataOffset = dataOffset + 2;
+                        manufacturerDataLength = dataLength - 2;
+                    }
+                    break;
+                default:
+                    break;
+            }
+            currentPos += length + 1;
+        }
+
+        // Service data match.
+        if (mServiceDataUuid != null && (serviceDataOffset < 0 || (mServiceDataPattern != null
+                && !mServiceDataPattern.matches(rawAdvertisement, serviceDataOffset,
+                        serviceDataLength)))) {
+            return false;
+        }
+
+        // Manufacturer data match.
+        if (mManufacturerId >= 0 && (manufacturerDataOffset < 0 || (mManufacturerDataPattern != null
+                && !mManufacturerDataPattern.matches(rawAdvertisement, manufacturerDataOffset,
+                        manufacturerDataLength)))) {
+            return false;
+        }
+
+        // UUID match.
+        if (!serviceUuidFound) {
+            return false;
+        }
+
+        // Local name match. Only decoded when filtering on it.
+        return mDeviceName == null || (nameOffset >= 0
+                && mDeviceName.equals(new String(rawAdvertisement, nameOffset, nameLength)));
+    }
+
+    // Returns true if the filter requires any field of the scan record.
+    private boolean filtersOnFields() {
+        return mDeviceName != null || mServiceUuid != null || mServiceDataUuid != null
+                || mManufacturerId >= 0;
+    }
+
+    // Check if the uuid pattern matches any of the uuids listed in place in a raw advertisement.
+    private boolean matchesServiceUuids(byte[] bytes, int offset, int dataLength,
+            int uuidLength) {
+        for (; dataLength >= uuidLength; dataLength -= uuidLength, offset += uuidLength) {
+            long msb;
+            long lsb;
+            if (uuidLength == BluetoothUuid.UUID_BYTES_128_BIT) {
+                lsb = readLong(bytes, offset);
+                msb = readLong(bytes, offset + 8);
+            } else {
+                // 128_bit_value = uuid * 2^96 + BASE_UUID
+                long shortUuid = readShortUuid(bytes, offset, uuidLength) & 0xFFFFFFFFL;
+                msb = BASE_UUID_MSB + (shortUuid << 32);
+                lsb = BASE_UUID_LSB;
+            }
+            if ((msb & mServiceUuidMaskMsb) == mServiceUuidMsb
+                    && (lsb & mServiceUuidMaskLsb) == mServiceUuidLsb) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Reads a little endian 16-bit or 32-bit value.
+    private static int readShortUuid(byte[] bytes, int offset, int length) {
+        int uuid = 0;
+        for (int i = length - 1; i >= 0; --i) {
+            uuid = (uuid << 8) | (bytes[offset + i] & 0xFF);
+        }
+        return uuid;
+    }
+
     // Check if the uuid pattern is contained in a list of parcel uuids.
     private boolean matchesServiceUuids(ParcelUuid uuid, ParcelUuid parcelUuidMask,
             List<ParcelUuid> uuids) {
@@ -358,27 +577,68 @@ public final class ScanFilter implements Parcelable {
     }
 
     /**
-     * Check whether the data pattern matches the parsed data.
+     * A data pattern with its optional mask. The pattern bytes are stored already masked, so that
+     * each data byte only needs to be masked once. Packing the pattern into longs did not
+     * measurably beat this loop for 2, 8 and 24 byte patterns.
      * @VisibleForTesting
      */
-    static boolean matchesPartialData(byte[] data, byte[] dataMask, byte[] parsedData) {
-        if (parsedData == null || parsedData.length < data.length) {
-            return false;
-        }
-        if (dataMask == null) {
-            for (int i = 0; i < data.length; ++i) {
-                if (parsedData[i] != data[i]) {
-                    return false;
+    static final class DataPattern {
+        private final byte[] mPattern;
+        private final byte[] mMask;
+
+        private DataPattern(byte[] data, byte[] dataMask) {
+            mPattern = data.clone();
+            mMask = dataMask == null ? null : dataMask.clone();
+            if (mMask != null) {
+                for (int i = 0; i < mPattern.length; ++i) {
+                    mPattern[i] &= mMask[i];
                 }
             }
-            return true;
         }
-        for (int i = 0; i < data.length; ++i) {
-            if ((dataMask[i] & parsedData[i]) != (dataMask[i] & data[i])) {
+
+        /**
+         * Returns the pattern for {@code data} and {@code dataMask}, or {@code null} if
+         * {@code data} is {@code null} and so matches any data.
+         */
+        static DataPattern of(byte[] data, byte[] dataMask) {
+            return data == null ? null : new DataPattern(data, dataMask);
+        }
+
+        /**
+         * Check whether the pattern matches {@code length} bytes of {@code bytes} starting at
+         * {@code offset}.
+         */
+        boolean matches(byte[] bytes, int offset, int length) {
+            if (length < mPattern.length) {
                 return false;
             }
+            if (mMask == null) {
+                for (int i = 0; i < mPattern.length; ++i) {
+                    if (bytes[offset + i] != mPattern[i]) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            for (int i = 0; i < mPattern.length; ++i) {
+                if ((bytes[offset + i] & mMask[i]) != mPattern[i]) {
+                    return false;
+                }
+            }
+            return true;
         }
-        return true;
+    }
+
+    // Reads 8 bytes as a little endian long.
+    private static long readLong(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFFL)
+                | (bytes[offset + 1] & 0xFFL) << 8
+                | (bytes[offset + 2] & 0xFFL) << 16
+                | (bytes[offset + 3] & 0xFFL) << 24
+                | (bytes[offset + 4] & 0xFFL) << 32
+                | (bytes[offset + 5] & 0xFFL) << 40
+                | (bytes[offset + 6] & 0xFFL) << 48
+                | (bytes[offset + 7] & 0xFFL) << 56;
     }
 
     @Override
@@ -395,8 +655,10 @@ public final class ScanFilter implements Parcelable {
 
     @Override
     public int hashCode() {
-        return Objects.hash(mDeviceName, mDeviceAddress, mManufacturerId, mManufacturerData,
-                mManufacturerDataMask, mServiceDataUuid, mServiceData, mServiceDataMask,
+        // Hash the data arrays by content, to agree with equals().
+        return Objects.hash(mDeviceName, mDeviceAddress, mManufacturerId,
+                Arrays.hashCode(mManufacturerData), Arrays.hashCode(mManufacturerDataMask),
+                mServiceDataUuid, Arrays.hashCode(mServiceData), Arrays.hashCode(mServiceDataMask),
                 mServiceUuid, mServiceUuidMask);
     }
 
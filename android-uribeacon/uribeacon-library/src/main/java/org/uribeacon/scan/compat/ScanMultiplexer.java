@@ -0,0 +1,219 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.uribeacon.scan.compat;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Shares one hardware scan between scan clients: tracks the scan that covers all the clients,
+ * and routes each of its results to the clients it matches.
+ * <p>
+ * The shared scan uses the union of the clients' filters, or no filter if any client has none,
+ * and the most aggressive of their scan modes. It reports every match, so only clients that
+ * want every match and no report delay can join, see {@link #canMultiplex}. Joining or leaving
+ * reports whether the shared scan changed, so the hardware scan is only restarted when it must.
+ * <p>
+ * Equal filters of several clients are evaluated once per result.
+ * <p>
+ * Clients join and leave under the caller's lock; results and failures can be dispatched from
+ * any thread.
+ */
+final class ScanMultiplexer {
+
+  private final Map<ScanCallback, Client> clients = new LinkedHashMap<ScanCallback, Client>();
+  private Set<ScanFilter> scanFilters = Collections.emptySet();
+  private int scanMode = -1;
+  private volatile Routing routing = new Routing(CompiledScanFilterSet.compile(null),
+      new Route[0]);
+
+  /**
+   * Returns true if a client with {@code settings} can share the scan.
+   */
+  static boolean canMultiplex(ScanSettings settings) {
+    return settings.getCallbackType() == ScanSettings.CALLBACK_TYPE_ALL_MATCHES
+        && settings.getReportDelayMillis() == 0;
+  }
+
+  /**
+   * Add or replace the client of {@code callback}. Returns true if the shared scan changed.
+   *
+   * @throws IllegalArgumentException if the client cannot share the scan.
+   */
+  boolean add(List<ScanFilter> filters, ScanSettings settings, ScanCallback callback) {
+    if (!canMultiplex(settings)) {
+      throw new IllegalArgumentException("Cannot multiplex " + settings);
+    }
+    clients.put(callback, new Client(callback, filters, settings.getScanMode()));
+    return update();
+  }
+
+  /**
+   * Remove the client of {@code callback}. Returns true if the shared scan changed.
+   */
+  boolean remove(ScanCallback callback) {
+    return clients.remove(callback) != null && update();
+  }
+
+  boolean contains(ScanCallback callback) {
+    return clients.containsKey(callback);
+  }
+
+  boolean isEmpty() {
+    return clients.isEmpty();
+  }
+
+  /**
+   * Returns the filters of the shared scan, empty if it matches every result.
+   */
+  List<ScanFilter> getScanFilters() {
+    return new ArrayList<ScanFilter>(scanFilters);
+  }
+
+  /**
+   * Returns the settings of the shared scan.
+   */
+  ScanSettings getScanSettings() {
+    return new ScanSettings.Builder()
+        .setScanMode(Math.max(scanMode, ScanSettings.SCAN_MODE_LOW_POWER))
+        .setCallbackType(ScanSettings.CALLBACK_TYPE_ALL_MATCHES)
+        .build();
+  }
+
+  /**
+   * Deliver a result of the shared scan to every client it matches.
+   */
+  void dispatch(ScanResult result) {
+    Routing current = routing;
+    BitSet matched = new BitSet(current.filters.size());
+    current.filters.matchAll(result, matched);
+    for (Route route : current.routes) {
+      if (route.matches(matched)) {
+        route.callback.onScanResult(ScanSettings.CALLBACK_TYPE_ALL_MATCHES, result);
+      }
+    }
+  }
+
+  /**
+   * Report that the shared scan failed to every client.
+   */
+  void dispatchScanFailed(int errorCode) {
+    for (Route route : routing.routes) {
+      route.callback.onScanFailed(errorCode);
+    }
+  }
+
+  // Recomputes the shared scan and the routes. Returns true if the shared scan changed.
+  private boolean update() {
+    Set<ScanFilter> distinct = new LinkedHashSet<ScanFilter>();
+    boolean matchesAll = false;
+    int mode = -1;
+    for (Client client : clients.values()) {
+      if (client.filters.isEmpty()) {
+        matchesAll = true;
+      }
+      distinct.addAll(client.filters);
+      mode = Math.max(mode, client.scanMode);
+    }
+    CompiledScanFilterSet compiled =
+        CompiledScanFilterSet.compile(new ArrayList<ScanFilter>(distinct));
+    Route[] routes = new Route[clients.size()];
+    int i = 0;
+    for (Client client : clients.values()) {
+      routes[i++] = new Route(client.callback, client.filterIds(compiled));
+    }
+    routing = new Routing(compiled, routes);
+
+    Set<ScanFilter> newScanFilters =
+        matchesAll ? Collections.<ScanFilter>emptySet() : distinct;
+    boolean changed = mode != scanMode || !newScanFilters.equals(scanFilters);
+    scanFilters = newScanFilters;
+    scanMode = mode;
+    return changed;
+  }
+
+  private static final class Client {
+    final ScanCallback callback;
+    final List<ScanFilter> filters;
+    final int scanMode;
+
+    Client(ScanCallback callback, List<ScanFilter> filters, int scanMode) {
+      this.callback = callback;
+      this.filters = filters == null
+          ? Collections.<ScanFilter>emptyList() : new ArrayList<ScanFilter>(filters);
+      this.scanMode = scanMode;
+    }
+
+    // Returns the ids of the client's filters, or null if it has none and takes every result.
+    int[] filterIds(CompiledScanFilterSet compiled) {
+      if (filters.isEmpty()) {
+        return null;
+      }
+      Set<Integer> ids = new HashSet<Integer>();
+      for (ScanFilter filter : filters) {
+        ids.add(compiled.indexOf(filter));
+      }
+      int[] array = new int[ids.size()];
+      int i = 0;
+      for (int id : ids) {
+        array[i++] = id;
+      }
+      return array;
+    }
+  }
+
+  private static final class Route {
+    final ScanCallback callback;
+    final int[] filterIds;
+
+    Route(ScanCallback callback, int[] filterIds) {
+      this.callback = callback;
+      this.filterIds = filterIds;
+    }
+
+    boolean matches(BitSet matched) {
+      if (filterIds == null) {
+        return true;
+      }
+      for (int id : filterIds) {
+        if (matched.get(id)) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  // The routes and the filters they refer to, replaced together.
+  private static final class Routing {
+    final CompiledScanFilterSet filters;
+    final Route[] routes;
+
+    Routing(CompiledScanFilterSet filters, Route[] routes) {
+      this.filters = filters;
+      this.routes = routes;
+    }
+  }
+}
@@ -20,6 +20,14 @@
 // Changes:
 //   Use package Logger class.
 //   Replace ArrayMap (new in Android L) with HashMap
+//   Read fields through an AdStructureIndex and materialize them lazily (see wrap())
+//   Added read-only ByteBuffer views over service and manufacturer data
+//   Parse UUIDs in place rather than from copied bytes
+//   Parse 32-bit service data and look service data up by its short UUID (see
+//   getServiceData(int))
+//   Adopt fields already parsed from the same bytes by the platform (see wrap(byte[],
+//   ParsedFields))
+//   Return null rather than throw from the keyed data getters of a malformed record
 
 package org.uribeacon.scan.compat;
 
@@ -27,16 +35,21 @@ import android.os.ParcelUuid;
 import android.support.annotation.Nullable;
 import android.util.SparseArray;
 
-import org.uribeacon.scan.util.Logger;
+import org.uribeacon.scan.util.AdStructureIndex;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 /**
  * Represents a scan record from Bluetooth LE scan.
+ * <p>
+ * A record is backed by an {@link AdStructureIndex} over its raw bytes. Records created through
+ * {@link #wrap} only build that index; the collections returned by the getters are materialized
+ * the first time they are requested. The {@code *View} accessors never copy the advertised data.
  */
 public final class ScanRecord {
 
@@ -53,33 +66,75 @@ public final class ScanRecord {
     private static final int DATA_TYPE_LOCAL_NAME_COMPLETE = 0x09;
     private static final int DATA_TYPE_TX_POWER_LEVEL = 0x0A;
     private static final int DATA_TYPE_SERVICE_DATA = 0x16;
+    private static final int DATA_TYPE_SERVICE_DATA_32_BIT = 0x20;
     private static final int DATA_TYPE_MANUFACTURER_SPECIFIC_DATA = 0xFF;
 
-    // Flags of the advertising data.
-    private final int mAdvertiseFlags;
+    private static final AdStructureIndex NO_FIELDS = AdStructureIndex.build(new byte[0]);
 
+    // Raw bytes of scan record.
+    private final byte[] mBytes;
+
+    // Position of every AD structure in mBytes.
+    private final AdStructureIndex mAdStructureIndex;
+
+    // The structures the fields are read from. None if the record is malformed, which then has
+    // no fields, as when the platform parses it.
+    private final AdStructureIndex mIndex;
+
+    // Lazily materialized views of the advertised data. Each one is written before its
+    // volatile flag, so a reader that observes the flag also observes the value.
     @Nullable
-    private final List<ParcelUuid> mServiceUuids;
+    private List<ParcelUuid> mServiceUuids;
+    private volatile boolean mServiceUuidsParsed;
 
-    private final SparseArray<byte[]> mManufacturerSpecificData;
+    private SparseArray<byte[]> mManufacturerSpecificData;
+    private volatile boolean mManufacturerSpecificDataParsed;
 
-    private final Map<ParcelUuid, byte[]> mServiceData;
+    private Map<ParcelUuid, byte[]> mServiceData;
+    private volatile boolean mServiceDataParsed;
 
-    // Transmission power level(in dB).
-    private final int mTxPowerLevel;
+    // Open-addressed table from the 16-bit or 32-bit UUID of each service data structure to its
+    // position in mIndex, built on the first lookup. Slots are (uuid, structure) pairs and an
+    // empty slot has a structure of -1. Building it twice from two threads is harmless.
+    private volatile int[] mServiceDataTable;
 
     // Local name of the Bluetooth LE device.
-    private final String mDeviceName;
+    private String mDeviceName;
+    private volatile boolean mDeviceNameParsed;
 
-    // Raw bytes of scan record.
-    private final byte[] mBytes;
+    // Fields already parsed from mBytes, adopted instead of parsing them again. Null if none.
+    @Nullable
+    private final ParsedFields mParsedFields;
+
+    /**
+     * The fields of a scan record parsed by another parser, such as the platform's.
+     *
+     * @hide
+     */
+    /* package */ interface ParsedFields {
+        @Nullable
+        List<ParcelUuid> getServiceUuids();
+
+        @Nullable
+        SparseArray<byte[]> getManufacturerSpecificData();
+
+        @Nullable
+        Map<ParcelUuid, byte[]> getServiceData();
+
+        @Nullable
+        String getDeviceName();
+    }
 
     /**
      * Returns the advertising flags indicating the discoverable mode and capability of the device.
      * Returns -1 if the flag field is not set.
      */
     public int getAdvertiseFlags() {
-        return mAdvertiseFlags;
+        int field = mIndex.findLast(DATA_TYPE_FLAGS);
+        if (field < 0 || mIndex.getDataLength(field) < 1) {
+            return -1;
+        }
+        return mBytes[mIndex.getDataOffset(field)] & 0xFF;
     }
 
     /**
@@ -87,14 +142,21 @@ public final class ScanRecord {
      * bluetooth GATT services.
      */
     public List<ParcelUuid> getServiceUuids() {
+        if (!mServiceUuidsParsed) {
+            parseServiceUuids();
+        }
         return mServiceUuids;
     }
 
     /**
      * Returns a sparse array of manufacturer identifier and its corresponding manufacturer specific
-     * data.
+     * data, or {@code null} if the record is malformed.
      */
+    @Nullable
     public SparseArray<byte[]> getManufacturerSpecificData() {
+        if (!mManufacturerSpecificDataParsed) {
+            parseManufacturerSpecificData();
+        }
         return mManufacturerSpecificData;
     }
 
@@ -104,13 +166,33 @@ public final class ScanRecord {
      */
     @Nullable
     public byte[] getManufacturerSpecificData(int manufacturerId) {
-        return mManufacturerSpecificData.get(manufacturerId);
+        SparseArray<byte[]> manufacturerData = getManufacturerSpecificData();
+        return manufacturerData == null ? null : manufacturerData.get(manufacturerId);
     }
 
     /**
-     * Returns a map of service UUID and its corresponding service data.
+     * Returns a read-only, little endian view of the manufacturer specific data associated with
+     * the manufacturer id, backed by the raw bytes of this record. Returns {@code null} if the
+     * {@code manufacturerId} is not found.
      */
+    @Nullable
+    public ByteBuffer getManufacturerSpecificDataView(int manufacturerId) {
+        int field = mIndex.findManufacturerData(manufacturerId);
+        if (field < 0) {
+            return null;
+        }
+        return payloadView(field);
+    }
+
+    /**
+     * Returns a map of service UUID and its corresponding service data, or {@code null} if the
+     * record is malformed.
+     */
+    @Nullable
     public Map<ParcelUuid, byte[]> getServiceData() {
+        if (!mServiceDataParsed) {
+            parseServiceData();
+        }
         return mServiceData;
     }
 
@@ -120,10 +202,94 @@ public final class ScanRecord {
      */
     @Nullable
     public byte[] getServiceData(ParcelUuid serviceDataUuid) {
-        if (serviceDataUuid == null) {
+        Map<ParcelUuid, byte[]> serviceData = getServiceData();
+        if (serviceDataUuid == null || serviceData == null) {
+            return null;
+        }
+        return serviceData.get(serviceDataUuid);
+    }
+
+    /**
+     * Returns a read-only, little endian view of the service data associated with the
+     * {@code serviceDataUuid}, backed by the raw bytes of this record. Returns {@code null} if
+     * the {@code serviceDataUuid} is not found.
+     */
+    @Nullable
+    public ByteBuffer getServiceDataView(ParcelUuid serviceDataUuid) {
+        if (serviceDataUuid == null || !(BluetoothUuid.is16BitUuid(serviceDataUuid)
+                || BluetoothUuid.is32BitUuid(serviceDataUuid))) {
             return null;
         }
-        return mServiceData.get(serviceDataUuid);
+        return getServiceDataView(BluetoothUuid.getShortUuid(serviceDataUuid));
+    }
+
+    /**
+     * Returns a copy of the service data associated with the 16-bit or 32-bit service data UUID,
+     * such as 0xFED8. Returns {@code null} if the {@code serviceDataUuid} is not found. Unlike
+     * {@link #getServiceData(ParcelUuid)}, this neither builds the service data map nor boxes
+     * the UUID.
+     */
+    @Nullable
+    public byte[] getServiceData(int serviceDataUuid) {
+        int field = findServiceDataField(serviceDataUuid);
+        if (field < 0) {
+            return null;
+        }
+        return extractBytes(mBytes, getServiceDataOffset(field), getServiceDataLength(field));
+    }
+
+    /**
+     * Returns a read-only, little endian view of the service data associated with the 16-bit or
+     * 32-bit service data UUID, backed by the raw bytes of this record. Returns {@code null} if
+     * the {@code serviceDataUuid} is not found.
+     */
+    @Nullable
+    public ByteBuffer getServiceDataView(int serviceDataUuid) {
+        int field = findServiceDataField(serviceDataUuid);
+        if (field < 0) {
+            return null;
+        }
+        return ByteBuffer.wrap(mBytes, getServiceDataOffset(field), getServiceDataLength(field))
+                .slice().asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Returns the AD structure holding the service data of the 16-bit or 32-bit
+     * {@code serviceDataUuid}, or -1 if there is none. As in {@link #getServiceData()}, a later
+     * structure for the same UUID takes precedence.
+     */
+    /* package */ int findServiceDataField(int serviceDataUuid) {
+        int[] table = mServiceDataTable;
+        if (table == null) {
+            table = buildServiceDataTable();
+            mServiceDataTable = table;
+        }
+        int mask = table.length / 2 - 1;
+        for (int slot = hashShortUuid(serviceDataUuid) & mask; ; slot = (slot + 1) & mask) {
+            int field = table[2 * slot + 1];
+            if (field < 0) {
+                return -1;
+            }
+            if (table[2 * slot] == serviceDataUuid) {
+                return field;
+            }
+        }
+    }
+
+    /**
+     * Returns the offset in {@link #getBytes()} of the service data of an AD structure returned by
+     * {@link #findServiceDataField}, after its UUID.
+     */
+    /* package */ int getServiceDataOffset(int field) {
+        return mIndex.getDataOffset(field) + getServiceDataUuidLength(field);
+    }
+
+    /**
+     * Returns the length of the service data of an AD structure returned by
+     * {@link #findServiceDataField}, not counting its UUID.
+     */
+    /* package */ int getServiceDataLength(int field) {
+        return mIndex.getDataLength(field) - getServiceDataUuidLength(field);
     }
 
     /**
@@ -134,7 +300,11 @@ public final class ScanRecord {
      * <code>pathloss = txPowerLevel - rssi</code>
      */
     public int getTxPowerLevel() {
-        return mTxPowerLevel;
+        int field = mIndex.findLast(DATA_TYPE_TX_POWER_LEVEL);
+        if (field < 0 || mIndex.getDataLength(field) < 1) {
+            return Integer.MIN_VALUE;
+        }
+        return mBytes[mIndex.getDataOffset(field)];
     }
 
     /**
@@ -142,6 +312,9 @@ public final class ScanRecord {
      */
     @Nullable
     public String getDeviceName() {
+        if (!mDeviceNameParsed) {
+            parseDeviceName();
+        }
         return mDeviceName;
     }
 
@@ -152,18 +325,28 @@ public final class ScanRecord {
         return mBytes;
     }
 
-    private ScanRecord(List<ParcelUuid> serviceUuids,
-            SparseArray<byte[]> manufacturerData,
-            Map<ParcelUuid, byte[]> serviceData,
-            int advertiseFlags, int txPowerLevel,
-            String localName, byte[] bytes) {
-        mServiceUuids = serviceUuids;
-        mManufacturerSpecificData = manufacturerData;
-        mServiceData = serviceData;
-        mDeviceName = localName;
-        mAdvertiseFlags = advertiseFlags;
-        mTxPowerLevel = txPowerLevel;
-        mBytes = bytes;
+    /**
+     * Returns the index of the AD structures in the raw bytes of this scan record.
+     */
+    public AdStructureIndex getAdStructureIndex() {
+        return mAdStructureIndex;
+    }
+
+    /**
+     * Returns the index of the AD structures the fields of this record are read from: none if the
+     * record is malformed.
+     *
+     * @hide
+     */
+    /* package */ AdStructureIndex getFieldIndex() {
+        return mIndex;
+    }
+
+    private ScanRecord(AdStructureIndex index, ParsedFields parsedFields) {
+        mBytes = index.getBytes();
+        mAdStructureIndex = index;
+        mIndex = index.isTruncated() ? NO_FIELDS : index;
+        mParsedFields = parsedFields;
     }
 
     /**
@@ -178,113 +361,274 @@ public final class ScanRecord {
      * @hide
      */
     public static ScanRecord parseFromBytes(byte[] scanRecord) {
+        ScanRecord record = wrap(scanRecord);
+        if (record != null) {
+            record.getServiceUuids();
+            record.getManufacturerSpecificData();
+            record.getServiceData();
+            record.getDeviceName();
+        }
+        return record;
+    }
+
+    /**
+     * Wrap scan record bytes in a {@link ScanRecord} without parsing the advertised fields.
+     * <p>
+     * Only the position of each AD structure is recorded; no field is copied out of
+     * {@code scanRecord} until the corresponding getter is first called. The array must not be
+     * modified afterwards.
+     *
+     * @param scanRecord The scan record of Bluetooth LE advertisement and/or scan response.
+     * @hide
+     */
+    public static ScanRecord wrap(byte[] scanRecord) {
         if (scanRecord == null) {
             return null;
         }
+        return new ScanRecord(AdStructureIndex.build(scanRecord), null);
+    }
 
-        int currentPos = 0;
-        int advertiseFlag = -1;
+    /**
+     * Wrap scan record bytes in a {@link ScanRecord} that takes its fields from
+     * {@code parsedFields}, parsed from the same bytes, rather than parsing and copying them again.
+     * Only fields this class parses the same way are adopted: none from a malformed record, and no
+     * service data from a record with 32-bit service data.
+     *
+     * @see #wrap(byte[])
+     * @hide
+     */
+    /* package */ static ScanRecord wrap(byte[] scanRecord, ParsedFields parsedFields) {
+        if (scanRecord == null) {
+            return null;
+        }
+        AdStructureIndex index = AdStructureIndex.build(scanRecord);
+        return new ScanRecord(index, index.isTruncated() ? null : parsedFields);
+    }
+
+    /**
+     * Wrap an already built {@link AdStructureIndex} in a {@link ScanRecord}, sharing it.
+     *
+     * @see #wrap(byte[])
+     * @hide
+     */
+    public static ScanRecord fromIndex(AdStructureIndex index) {
+        if (index == null) {
+            return null;
+        }
+        return new ScanRecord(index, null);
+    }
+
+    @Override
+    public String toString() {
+        return "ScanRecord [mAdvertiseFlags=" + getAdvertiseFlags()
+                + ", mServiceUuids=" + getServiceUuids()
+                + ", mManufacturerSpecificData=" + Utils.toString(getManufacturerSpecificData())
+                + ", mServiceData=" + Utils.toString(getServiceData())
+                + ", mTxPowerLevel=" + getTxPowerLevel() + ", mDeviceName=" + getDeviceName()
+                + "]";
+    }
+
+    // Returns a view of the data of a service data or manufacturer specific data structure,
+    // after its 16-bit identifier.
+    private ByteBuffer payloadView(int field) {
+        return ByteBuffer.wrap(mBytes, mIndex.getDataOffset(field) + 2,
+                mIndex.getDataLength(field) - 2).slice().asReadOnlyBuffer()
+                .order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    // A malformed record has no fields at all, as when the platform fails to parse it.
+    private boolean isMalformed() {
+        return mAdStructureIndex.isTruncated();
+    }
+
+    private synchronized void parseServiceUuids() {
+        if (mServiceUuidsParsed) {
+            return;
+        }
+        if (mParsedFields != null) {
+            mServiceUuids = mParsedFields.getServiceUuids();
+            mServiceUuidsParsed = true;
+            return;
+        }
         List<ParcelUuid> serviceUuids = new ArrayList<ParcelUuid>();
-        String localName = null;
-        int txPowerLevel = Integer.MIN_VALUE;
+        for (int i = 0; i < mIndex.size(); i++) {
+            int offset = mIndex.getDataOffset(i);
+            int length = mIndex.getDataLength(i);
+            switch (mIndex.getType(i)) {
+                case DATA_TYPE_SERVICE_UUIDS_16_BIT_PARTIAL:
+                case DATA_TYPE_SERVICE_UUIDS_16_BIT_COMPLETE:
+                    parseServiceUuid(mBytes, offset, length, BluetoothUuid.UUID_BYTES_16_BIT,
+                            serviceUuids);
+                    break;
+                case DATA_TYPE_SERVICE_UUIDS_32_BIT_PARTIAL:
+                case DATA_TYPE_SERVICE_UUIDS_32_BIT_COMPLETE:
+                    parseServiceUuid(mBytes, offset, length, BluetoothUuid.UUID_BYTES_32_BIT,
+                            serviceUuids);
+                    break;
+                case DATA_TYPE_SERVICE_UUIDS_128_BIT_PARTIAL:
+                case DATA_TYPE_SERVICE_UUIDS_128_BIT_COMPLETE:
+                    parseServiceUuid(mBytes, offset, length, BluetoothUuid.UUID_BYTES_128_BIT,
+                            serviceUuids);
+                    break;
+                default:
+                    break;
+            }
+        }
+        mServiceUuids = serviceUuids.isEmpty() ? null : serviceUuids;
+        mServiceUuidsParsed = true;
+    }
 
+    private synchronized void parseManufacturerSpecificData() {
+        if (mManufacturerSpecificDataParsed) {
+            return;
+        }
+        if (mParsedFields != null && mParsedFields.getManufacturerSpecificData() != null) {
+            mManufacturerSpecificData = mParsedFields.getManufacturerSpecificData();
+            mManufacturerSpecificDataParsed = true;
+            return;
+        }
         SparseArray<byte[]> manufacturerData = new SparseArray<byte[]>();
+        for (int i = 0; i < mIndex.size(); i++) {
+            // The first two bytes of the manufacturer specific data are
+            // manufacturer ids in little endian.
+            if (mIndex.getType(i) == DATA_TYPE_MANUFACTURER_SPECIFIC_DATA
+                    && mIndex.getDataLength(i) >= 2) {
+                int currentPos = mIndex.getDataOffset(i);
+                int manufacturerId = ((mBytes[currentPos + 1] & 0xFF) << 8)
+                        + (mBytes[currentPos] & 0xFF);
+                manufacturerData.put(manufacturerId, extractBytes(mBytes, currentPos + 2,
+                        mIndex.getDataLength(i) - 2));
+            }
+        }
+        mManufacturerSpecificData = isMalformed() ? null : manufacturerData;
+        mManufacturerSpecificDataParsed = true;
+    }
+
+    private synchronized void parseServiceData() {
+        if (mServiceDataParsed) {
+            return;
+        }
+        if (mParsedFields != null && mParsedFields.getServiceData() != null
+                && mIndex.find(DATA_TYPE_SERVICE_DATA_32_BIT) < 0) {
+            mServiceData = mParsedFields.getServiceData();
+            mServiceDataParsed = true;
+            return;
+        }
         Map<ParcelUuid, byte[]> serviceData = new HashMap<ParcelUuid, byte[]>();
+        for (int i = 0; i < mIndex.size(); i++) {
+            // The first two or four bytes of the service data are service data UUID in little
+            // endian. The rest bytes are service data.
+            int serviceUuidLength = getServiceDataUuidLength(i);
+            if (serviceUuidLength > 0) {
+                int currentPos = mIndex.getDataOffset(i);
+                ParcelUuid serviceDataUuid = BluetoothUuid.parseUuidFrom(mBytes, currentPos,
+                        serviceUuidLength);
+                serviceData.put(serviceDataUuid, extractBytes(mBytes, currentPos + serviceUuidLength,
+                        mIndex.getDataLength(i) - serviceUuidLength));
+            }
+        }
+        mServiceData = isMalformed() ? null : serviceData;
+        mServiceDataParsed = true;
+    }
 
-        try {
-            while (currentPos < scanRecord.length) {
-                // length is unsigned int.
-                int length = scanRecord[currentPos++] & 0xFF;
-                if (length == 0) {
-                    break;
-                }
-                // Note the length includes the length of the field type itself.
-                int dataLength = length - 1;
-                // fieldType is unsigned int.
-                int fieldType = scanRecord[currentPos++] & 0xFF;
-                switch (fieldType) {
-                    case DATA_TYPE_FLAGS:
-                        advertiseFlag = scanRecord[currentPos] & 0xFF;
-                        break;
-                    case DATA_TYPE_SERVICE_UUIDS_16_BIT_PARTIAL:
-                    case DATA_TYPE_SERVICE_UUIDS_16_BIT_COMPLETE:
-                        parseServiceUuid(scanRecord, currentPos,
-                                dataLength, BluetoothUuid.UUID_BYTES_16_BIT, serviceUuids);
-                        break;
-                    case DATA_TYPE_SERVICE_UUIDS_32_BIT_PARTIAL:
-                    case DATA_TYPE_SERVICE_UUIDS_32_BIT_COMPLETE:
-                        parseServiceUuid(scanRecord, currentPos, dataLength,
-                                BluetoothUuid.UUID_BYTES_32_BIT, serviceUuids);
-                        break;
-                    case DATA_TYPE_SERVICE_UUIDS_128_BIT_PARTIAL:
-                    case DATA_TYPE_SERVICE_UUIDS_128_BIT_COMPLETE:
-                        parseServiceUuid(scanRecord, currentPos, dataLength,
-                                BluetoothUuid.UUID_BYTES_128_BIT, serviceUuids);
-                        break;
-                    case DATA_TYPE_LOCAL_NAME_SHORT:
-                    case DATA_TYPE_LOCAL_NAME_COMPLETE:
-                        localName = new String(
-                                extractBytes(scanRecord, currentPos, dataLength));
-                        break;
-                    case DATA_TYPE_TX_POWER_LEVEL:
-                        txPowerLevel = scanRecord[currentPos];
-                        break;
-                    case DATA_TYPE_SERVICE_DATA:
-                        // The first two bytes of the service data are service data UUID in little
-                        // endian. The rest bytes are service data.
-                        int serviceUuidLength = BluetoothUuid.UUID_BYTES_16_BIT;
-                        byte[] serviceDataUuidBytes = extractBytes(scanRecord, currentPos,
-                                serviceUuidLength);
-                        ParcelUuid serviceDataUuid = BluetoothUuid.parseUuidFrom(
-                                serviceDataUuidBytes);
-                        byte[] serviceDataArray = extractBytes(scanRecord,
-                                currentPos + serviceUuidLength, dataLength - serviceUuidLength);
-                        serviceData.put(serviceDataUuid, serviceDataArray);
-                        break;
-                    case DATA_TYPE_MANUFACTURER_SPECIFIC_DATA:
-                        // The first two bytes of the manufacturer specific data are
-                        // manufacturer ids in little endian.
-                        int manufacturerId = ((scanRecord[currentPos + 1] & 0xFF) << 8)
-                                + (scanRecord[currentPos] & 0xFF);
-                        byte[] manufacturerDataBytes = extractBytes(scanRecord, currentPos + 2,
-                                dataLength - 2);
-                        manufacturerData.put(manufacturerId, manufacturerDataBytes);
-                        break;
-                    default:
-                        // Just ignore, we don't handle such data type.
-                        break;
-                }
-                currentPos += dataLength;
+    private synchronized void parseDeviceName() {
+        if (mDeviceNameParsed) {
+            return;
+        }
+        if (mParsedFields != null) {
+            mDeviceName = mParsedFields.getDeviceName();
+            mDeviceNameParsed = true;
+            return;
+        }
+        String localName = null;
+        for (int i = 0; i < mIndex.size(); i++) {
+            int type = mIndex.getType(i);
+            if (type == DATA_TYPE_LOCAL_NAME_SHORT || type == DATA_TYPE_LOCAL_NAME_COMPLETE) {
+                localName = new String(mBytes, mIndex.getDataOffset(i), mIndex.getDataLength(i));
             }
+        }
+        mDeviceName = localName;
+        mDeviceNameParsed = true;
+    }
+
+    /**
+     * Returns the length of the UUID leading a service data structure, or 0 if the structure is
+     * not service data or is too short to hold the UUID.
+     */
+    /* package */ int getServiceDataUuidLength(int field) {
+        int uuidLength;
+        switch (mIndex.getType(field)) {
+            case DATA_TYPE_SERVICE_DATA:
+                uuidLength = BluetoothUuid.UUID_BYTES_16_BIT;
+                break;
+            case DATA_TYPE_SERVICE_DATA_32_BIT:
+                uuidLength = BluetoothUuid.UUID_BYTES_32_BIT;
+                break;
+            default:
+                return 0;
+        }
+        return mIndex.getDataLength(field) >= uuidLength ? uuidLength : 0;
+    }
 
-            if (serviceUuids.isEmpty()) {
-                serviceUuids = null;
+    private int[] buildServiceDataTable() {
+        int count = 0;
+        for (int i = 0; i < mIndex.size(); i++) {
+            if (getServiceDataUuidLength(i) > 0) {
+                count++;
+            }
+        }
+        // Keep the table at most half full so that probing stays short and always ends.
+        int capacity = 2;
+        while (capacity < count * 2) {
+            capacity <<= 1;
+        }
+        int[] table = new int[capacity * 2];
+        for (int slot = 0; slot < capacity; slot++) {
+            table[2 * slot + 1] = -1;
+        }
+        int mask = capacity - 1;
+        for (int i = 0; i < mIndex.size(); i++) {
+            int uuidLength = getServiceDataUuidLength(i);
+            if (uuidLength == 0) {
+                continue;
             }
-            return new ScanRecord(serviceUuids, manufacturerData, serviceData,
-                    advertiseFlag, txPowerLevel, localName, scanRecord);
-        } catch (Exception e) {
-            Logger.logError("unable to parse scan record: " + Arrays.toString(scanRecord), e);
-            // As the record is invalid, ignore all the parsed results for this packet
-            // and return an empty record with raw scanRecord bytes in results
-            return new ScanRecord(null, null, null, -1, Integer.MIN_VALUE, null, scanRecord);
+            int uuid = readShortUuid(mIndex.getDataOffset(i), uuidLength);
+            int slot = hashShortUuid(uuid) & mask;
+            while (table[2 * slot + 1] >= 0 && table[2 * slot] != uuid) {
+                slot = (slot + 1) & mask;
+            }
+            table[2 * slot] = uuid;
+            table[2 * slot + 1] = i;
         }
+        return table;
     }
 
-    @Override
-    public String toString() {
-        return "ScanRecord [mAdvertiseFlags=" + mAdvertiseFlags + ", mServiceUuids=" + mServiceUuids
-                + ", mManufacturerSpecificData=" + Utils.toString(mManufacturerSpecificData)
-                + ", mServiceData=" + Utils.toString(mServiceData)
-                + ", mTxPowerLevel=" + mTxPowerLevel + ", mDeviceName=" + mDeviceName + "]";
+    /**
+     * Returns the 16-bit or 32-bit UUID of a structure for which
+     * {@link #getServiceDataUuidLength} is not 0.
+     */
+    /* package */ int getServiceDataUuid(int field) {
+        return readShortUuid(mIndex.getDataOffset(field), getServiceDataUuidLength(field));
+    }
+
+    // Reads a little endian 16-bit or 32-bit UUID.
+    private int readShortUuid(int offset, int length) {
+        int uuid = 0;
+        for (int i = length - 1; i >= 0; i--) {
+            uuid = (uuid << 8) | (mBytes[offset + i] & 0xFF);
+        }
+        return uuid;
+    }
+
+    private static int hashShortUuid(int uuid) {
+        return uuid ^ (uuid >>> 16);
     }
 
     // Parse service UUIDs.
     private static int parseServiceUuid(byte[] scanRecord, int currentPos, int dataLength,
             int uuidLength, List<ParcelUuid> serviceUuids) {
-        while (dataLength > 0) {
-            byte[] uuidBytes = extractBytes(scanRecord, currentPos,
-                    uuidLength);
-            serviceUuids.add(BluetoothUuid.parseUuidFrom(uuidBytes));
+        while (dataLength >= uuidLength) {
+            serviceUuids.add(BluetoothUuid.parseUuidFrom(scanRecord, currentPos, uuidLength));
             dataLength -= uuidLength;
             currentPos += uuidLength;
         }
@@ -297,4 +641,4 @@ public final class ScanRecord {
         System.arraycopy(scanRecord, start, bytes, 0, length);
         return bytes;
     }
-}
\ No newline at end of file
+}
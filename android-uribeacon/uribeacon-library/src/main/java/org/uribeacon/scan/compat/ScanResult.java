@@ -17,7 +17,10 @@
 // THIS IS MODIFIED COPY OF THE "L" PLATFORM CLASS. BE CAREFUL ABOUT EDITS.
 // THIS CODE SHOULD FOLLOW ANDROID STYLE.
 //
-// Changes: Removed the reference to 'java.util.Objects'.
+// Changes:
+//   Removed the reference to 'java.util.Objects'.
+//   Added getAdStructureIndex() so decoders can share the scan record's index
+//   Added RSSI statistics for results coalesced from several sightings
 
 package org.uribeacon.scan.compat;
 
@@ -25,6 +28,8 @@ import android.bluetooth.BluetoothDevice;
 import android.os.Parcel;
 import android.os.Parcelable;
 
+import org.uribeacon.scan.util.AdStructureIndex;
+
 import android.support.annotation.Nullable;
 
 /**
@@ -44,6 +49,12 @@ public final class ScanResult implements Parcelable {
     // Device timestamp when the result was last seen.
     private long mTimestampNanos;
 
+    // Number of sightings this result stands for, and their signal strengths.
+    private int mSightingCount;
+    private int mMinRssi;
+    private int mMaxRssi;
+    private long mRssiSum;
+
     /**
      * Constructor of scan result.
      *
@@ -54,10 +65,23 @@ public final class ScanResult implements Parcelable {
      */
     public ScanResult(BluetoothDevice device, ScanRecord scanRecord, int rssi,
             long timestampNanos) {
+        this(device, scanRecord, rssi, timestampNanos, 1, rssi, rssi, rssi);
+    }
+
+    /**
+     * Constructor of a scan result standing for {@code sightingCount} sightings of the same
+     * advertisement, the last of which is {@code rssi} and {@code timestampNanos}.
+     */
+    /* package */ ScanResult(BluetoothDevice device, ScanRecord scanRecord, int rssi,
+            long timestampNanos, int sightingCount, int minRssi, int maxRssi, long rssiSum) {
         mDevice = device;
         mScanRecord = scanRecord;
         mRssi = rssi;
         mTimestampNanos = timestampNanos;
+        mSightingCount = sightingCount;
+        mMinRssi = minRssi;
+        mMaxRssi = maxRssi;
+        mRssiSum = rssiSum;
     }
 
     private ScanResult(Parcel in) {
@@ -80,6 +104,10 @@ public final class ScanResult implements Parcelable {
         }
         dest.writeInt(mRssi);
         dest.writeLong(mTimestampNanos);
+        dest.writeInt(mSightingCount);
+        dest.writeInt(mMinRssi);
+        dest.writeInt(mMaxRssi);
+        dest.writeLong(mRssiSum);
     }
 
     private void readFromParcel(Parcel in) {
@@ -91,6 +119,10 @@ public final class ScanResult implements Parcelable {
         }
         mRssi = in.readInt();
         mTimestampNanos = in.readLong();
+        mSightingCount = in.readInt();
+        mMinRssi = in.readInt();
+        mMaxRssi = in.readInt();
+        mRssiSum = in.readLong();
     }
 
     @Override
@@ -113,6 +145,17 @@ public final class ScanResult implements Parcelable {
         return mScanRecord;
     }
 
+    /**
+     * Returns the index of the AD structures in the scan record, shared with the scan record and
+     * any decoder reading this result.
+     *
+     * @hide
+     */
+    @Nullable
+    public AdStructureIndex getAdStructureIndex() {
+        return mScanRecord == null ? null : mScanRecord.getAdStructureIndex();
+    }
+
     /**
      * Returns the received signal strength in dBm. The valid range is [-127, 127].
      */
@@ -127,9 +170,41 @@ public final class ScanResult implements Parcelable {
         return mTimestampNanos;
     }
 
+    /**
+     * Returns the number of sightings this result stands for, more than 1 if sightings of the
+     * same advertisement were coalesced.
+     *
+     * @see ScanSettings#getCoalescingWindowMillis
+     */
+    public int getSightingCount() {
+        return mSightingCount;
+    }
+
+    /**
+     * Returns the weakest received signal strength of the sightings, in dBm.
+     */
+    public int getMinRssi() {
+        return mMinRssi;
+    }
+
+    /**
+     * Returns the strongest received signal strength of the sightings, in dBm.
+     */
+    public int getMaxRssi() {
+        return mMaxRssi;
+    }
+
+    /**
+     * Returns the mean received signal strength of the sightings, in dBm.
+     */
+    public double getMeanRssi() {
+        return (double) mRssiSum / mSightingCount;
+    }
+
     @Override
     public int hashCode() {
-        return Objects.hash(mDevice, mRssi, mScanRecord, mTimestampNanos);
+        return Objects.hash(mDevice, mRssi, mScanRecord, mTimestampNanos, mSightingCount,
+                mMinRssi, mMaxRssi, mRssiSum);
     }
 
     @Override
@@ -143,14 +218,16 @@ public final class ScanResult implements Parcelable {
         ScanResult other = (ScanResult) obj;
         return Objects.equals(mDevice, other.mDevice) && (mRssi == other.mRssi)
                 && Objects.equals(mScanRecord, other.mScanRecord)
-                && (mTimestampNanos == other.mTimestampNanos);
+                && (mTimestampNanos == other.mTimestampNanos)
+                && (mSightingCount == other.mSightingCount) && (mMinRssi == other.mMinRssi)
+                && (mMaxRssi == other.mMaxRssi) && (mRssiSum == other.mRssiSum);
     }
 
     @Override
     public String toString() {
         return "ScanResult{" + "mDevice=" + mDevice + ", mScanRecord="
                 + Objects.toString(mScanRecord) + ", mRssi=" + mRssi + ", mTimestampNanos="
-                + mTimestampNanos + '}';
+                + mTimestampNanos + ", mSightingCount=" + mSightingCount + '}';
     }
 
     /**
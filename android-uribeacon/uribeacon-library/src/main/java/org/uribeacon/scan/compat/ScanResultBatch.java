@@ -0,0 +1,90 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.uribeacon.scan.compat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The results collected for one batching scan client, see
+ * {@link ScanSettings#getReportDelayMillis}.
+ * <p>
+ * Results are held in an array preallocated to {@link ScanSettings#getMaxBatchSize}. A batch is
+ * due once the report delay has passed since its first result, or as soon as the array is full.
+ * With {@link ScanSettings#getBatchLatestPerAddress}, a new result from a device replaces the one
+ * already in the batch.
+ * <p>
+ * Results are added by the dispatcher thread and batches taken by the scan cycle thread, so all
+ * methods are synchronized.
+ */
+final class ScanResultBatch {
+  private final long reportDelayMillis;
+  private final ScanResult[] results;
+  // The slot of each device in results, if only its latest result is kept.
+  private final Map<String, Integer> slotByAddress;
+  private int size;
+  private long firstResultMillis;
+
+  ScanResultBatch(ScanSettings settings) {
+    reportDelayMillis = settings.getReportDelayMillis();
+    results = new ScanResult[settings.getMaxBatchSize()];
+    slotByAddress = settings.getBatchLatestPerAddress()
+        ? new HashMap<String, Integer>(results.length * 2) : null;
+  }
+
+  /**
+   * Add the result from the device at {@code address}, received at {@code nowMillis}. The batch
+   * must not be full, so take it once it is due.
+   */
+  synchronized void add(String address, ScanResult result, long nowMillis) {
+    if (slotByAddress != null) {
+      Integer slot = slotByAddress.get(address);
+      if (slot != null) {
+        results[slot] = result;
+        return;
+      }
+      slotByAddress.put(address, size);
+    }
+    if (size == 0) {
+      firstResultMillis = nowMillis;
+    }
+    results[size++] = result;
+  }
+
+  /**
+   * Returns the results of the batch, oldest first, and empty it, if it is full or older than
+   * the report delay at {@code nowMillis}. Otherwise returns null. The list belongs to the caller.
+   */
+  synchronized List<ScanResult> takeIfDue(long nowMillis) {
+    if (size == 0
+        || (size < results.length && nowMillis - firstResultMillis < reportDelayMillis)) {
+      return null;
+    }
+    List<ScanResult> batch = new ArrayList<ScanResult>(size);
+    batch.addAll(Arrays.asList(results).subList(0, size));
+    Arrays.fill(results, 0, size, null);
+    size = 0;
+    if (slotByAddress != null) {
+      slotByAddress.clear();
+    }
+    return batch;
+  }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.scan.compat;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded, lock-free queue of raw sightings from one producer thread to one consumer thread.
+ * <p>
+ * The producer is the Bluetooth callback, which must never block: when the buffer is full the
+ * new sighting is dropped and counted. Sightings are kept in preallocated parallel arrays, so
+ * offering one does not allocate.
+ * <p>
+ * At most one thread may call {@link #offer} at a time, and at most one thread may call
+ * {@link #drainTo} and {@link #awaitSighting}.
+ */
+final class ScanRingBuffer {
+
+  /**
+   * Receives the sightings drained from the buffer.
+   */
+  interface Sink {
+    void onSighting(BluetoothDevice device, String address, int rssi, byte[] scanRecord,
+        long timestampNanos);
+  }
+
+  private final int capacity;
+  private final int mask;
+  private final BluetoothDevice[] devices;
+  private final String[] addresses;
+  private final int[] rssis;
+  private final byte[][] scanRecords;
+  private final long[] timestampsNanos;
+  // Sequence of the next slot to write. Only advanced by the producer.
+  private final AtomicLong tail = new AtomicLong();
+  // Sequence of the next slot to read. Only advanced by the consumer.
+  private final AtomicLong head = new AtomicLong();
+  private final AtomicLong dropCount = new AtomicLong();
+  // The consumer, while it is parked waiting for a sighting.
+  private final AtomicReference<Thread> parkedConsumer = new AtomicReference<Thread>();
+
+  /**
+   * @param capacity The number of sightings held, a power of two.
+   */
+  ScanRingBuffer(int capacity) {
+    if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+      throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+    }
+    this.capacity = capacity;
+    this.mask = capacity - 1;
+    this.devices = new BluetoothDevice[capacity];
+    this.addresses = new String[capacity];
+    this.rssis = new int[capacity];
+    this.scanRecords = new byte[capacity][];
+    this.timestampsNanos = new long[capacity];
+  }
+
+  /**
+   * Add a sighting, waking the consumer if it is waiting. Returns false, and counts the sighting
+   * as dropped, if the buffer is full.
+   */
+  boolean offer(BluetoothDevice device, String address, int rssi, byte[] scanRecord,
+      long timestampNanos) {
+    long sequence = tail.get();
+    if (sequence - head.get() >= capacity) {
+      dropCount.incrementAndGet();
+      return false;
+    }
+    int slot = (int) (sequence & mask);
+    devices[slot] = device;
+    addresses[slot] = address;
+    rssis[slot] = rssi;
+    scanRecords[slot] = scanRecord;
+    timestampsNanos[slot] = timestampNanos;
+    // Publishes the slot to the consumer.
+    tail.set(sequence + 1);
+    Thread consumer = parkedConsumer.get();
+    if (consumer != null) {
+      LockSupport.unpark(consumer);
+    }
+    return true;
+  }
+
+  /**
+   * Hand every available sighting to {@code sink}, oldest first. Returns the number drained.
+   */
+  int drainTo(Sink sink) {
+    long sequence = head.get();
+    long end = tail.get();
+    int count = 0;
+    for (; sequence < end; sequence++, count++) {
+      int slot = (int) (sequence & mask);
+      BluetoothDevice device = devices[slot];
+      String address = addresses[slot];
+      int rssi = rssis[slot];
+      byte[] scanRecord = scanRecords[slot];
+      long timestampNanos = timestampsNanos[slot];
+      devices[slot] = null;
+      addresses[slot] = null;
+      scanRecords[slot] = null;
+      // Free the slot before calling out, so the producer is not held up by a slow sink.
+      head.set(sequence + 1);
+      sink.onSighting(device, address, rssi, scanRecord, timestampNanos);
+    }
+    return count;
+  }
+
+  /**
+   * Block the consumer until a sighting is available or the thread is interrupted.
+   */
+  void awaitSighting() {
+    Thread consumer = Thread.currentThread();
+    parkedConsumer.set(consumer);
+    try {
+      // The producer publishes before checking for a parked consumer, and the consumer parks
+      // before checking for a sighting, so a sighting cannot be missed.
+      while (isEmpty() && !consumer.isInterrupted()) {
+        LockSupport.park(this);
+      }
+    } finally {
+      parkedConsumer.set(null);
+    }
+  }
+
+  boolean isEmpty() {
+    return head.get() == tail.get();
+  }
+
+  /**
+   * Returns the number of sightings waiting to be drained.
+   */
+  int size() {
+    return (int) (tail.get() - head.get());
+  }
+
+  /**
+   * Returns the number of sightings dropped because the buffer was full.
+   */
+  long getDropCount() {
+    return dropCount.get();
+  }
+}
@@ -16,7 +16,13 @@
 
 // THIS IS MODIFIED COPY OF THE "L" PLATFORM CLASS. BE CAREFUL ABOUT EDITS.
 // THIS CODE SHOULD FOLLOW ANDROID STYLE.
-
+//
+// Changes:
+//   Added per-client delivery queue capacity and overflow policy (see setDeliveryQueue())
+//   Added batch size and latest-per-address batching (see setReportBatching())
+//   Added a window for coalescing repeated sightings (see setCoalescingWindowMillis())
+//   Added a per-client lost timeout (see setLostTimeoutMillis())
+//   Added equals() and hashCode(), so converted settings can be cached
 
 package org.uribeacon.scan.compat;
 
@@ -80,6 +86,34 @@ public final class ScanSettings implements Parcelable {
      */
     public static final int SCAN_RESULT_TYPE_ABBREVIATED = 1;
 
+    /**
+     * When the delivery queue of a client is full, drop its oldest queued update to make room for
+     * the new one.
+     */
+    public static final int DELIVERY_OVERFLOW_DROP_OLDEST = 0;
+
+    /**
+     * When the delivery queue of a client is full, drop the new update.
+     */
+    public static final int DELIVERY_OVERFLOW_DROP_NEWEST = 1;
+
+    /**
+     * Replace an update from the same device that is still queued with the new one, so that a
+     * client falling behind gets the latest sighting of each device. When the queue is full of
+     * other devices, drop the oldest update.
+     */
+    public static final int DELIVERY_OVERFLOW_COALESCE_BY_ADDRESS = 2;
+
+    /**
+     * Default number of results queued for a client that has not yet handled them.
+     */
+    public static final int DEFAULT_DELIVERY_QUEUE_CAPACITY = 64;
+
+    /**
+     * Default number of results in a batch before it is reported, when the report delay is > 0.
+     */
+    public static final int DEFAULT_MAX_BATCH_SIZE = 256;
+
     // Bluetooth LE scan mode.
     private int mScanMode;
 
@@ -92,6 +126,24 @@ public final class ScanSettings implements Parcelable {
     // Time of delay for reporting the scan result
     private long mReportDelayMillis;
 
+    // Results queued for the client before the overflow policy applies
+    private int mDeliveryQueueCapacity;
+
+    // What to drop when the delivery queue is full
+    private int mDeliveryOverflowPolicy;
+
+    // Results in a batch before it is reported early
+    private int mMaxBatchSize;
+
+    // Whether a batch only keeps the latest result of each device
+    private boolean mBatchLatestPerAddress;
+
+    // Time over which repeated sightings of an advertisement are merged into one result
+    private long mCoalescingWindowMillis;
+
+    // Time without sightings after which a device is lost, or 0 for the scanner's
+    private long mLostTimeoutMillis;
+
     public int getScanMode() {
         return mScanMode;
     }
@@ -111,12 +163,67 @@ public final class ScanSettings implements Parcelable {
         return mReportDelayMillis;
     }
 
+    /**
+     * Returns the number of results that can wait for the client before the overflow policy
+     * applies.
+     */
+    public int getDeliveryQueueCapacity() {
+        return mDeliveryQueueCapacity;
+    }
+
+    /**
+     * Returns what is dropped when the delivery queue is full, one of
+     * {@link #DELIVERY_OVERFLOW_DROP_OLDEST}, {@link #DELIVERY_OVERFLOW_DROP_NEWEST} or
+     * {@link #DELIVERY_OVERFLOW_COALESCE_BY_ADDRESS}.
+     */
+    public int getDeliveryOverflowPolicy() {
+        return mDeliveryOverflowPolicy;
+    }
+
+    /**
+     * Returns the number of results after which a batch is reported before its report delay.
+     */
+    public int getMaxBatchSize() {
+        return mMaxBatchSize;
+    }
+
+    /**
+     * Returns true if a batch only keeps the latest result of each device.
+     */
+    public boolean getBatchLatestPerAddress() {
+        return mBatchLatestPerAddress;
+    }
+
+    /**
+     * Returns the time over which repeated sightings of the same advertisement are merged into
+     * one result, or 0 if every sighting is reported.
+     */
+    public long getCoalescingWindowMillis() {
+        return mCoalescingWindowMillis;
+    }
+
+    /**
+     * Returns the time without sightings after which a device is reported lost to this client,
+     * or 0 if the scanner decides.
+     */
+    public long getLostTimeoutMillis() {
+        return mLostTimeoutMillis;
+    }
+
     private ScanSettings(int scanMode, int callbackType, int scanResultType,
-            long reportDelayMillis) {
+            long reportDelayMillis, int deliveryQueueCapacity, int deliveryOverflowPolicy,
+            int maxBatchSize, boolean batchLatestPerAddress, long coalescingWindowMillis,
+            long lostTimeoutMillis) {
         mScanMode = scanMode;
         mCallbackType = callbackType;
         mScanResultType = scanResultType;
         mReportDelayMillis = reportDelayMillis;
+        mDeliveryQueueCapacity = deliveryQueueCapacity;
+        mDeliveryOverflowPolicy = deliveryOverflowPolicy;
+        mMaxBatchSize = maxBatchSize;
+        mBatchLatestPerAddress = batchLatestPerAddress;
+        mCoalescingWindowMillis = coalescingWindowMillis;
+        mLostTimeoutMillis = lostTimeoutMillis;
     }
 
     private ScanSettings(Parcel in) {
@@ -124,6 +231,12 @@ public final class ScanSettings implements Parcelable {
         mCallbackType = in.readInt();
         mScanResultType = in.readInt();
         mReportDelayMillis = in.readLong();
+        mDeliveryQueueCapacity = in.readInt();
+        mDeliveryOverflowPolicy = in.readInt();
+        mMaxBatchSize = in.readInt();
+        mBatchLatestPerAddress = in.readInt() != 0;
+        mCoalescingWindowMillis = in.readLong();
+        mLostTimeoutMillis = in.readLong();
     }
 
     @Override
@@ -132,6 +245,12 @@ public final class ScanSettings implements Parcelable {
         dest.writeInt(mCallbackType);
         dest.writeInt(mScanResultType);
         dest.writeLong(mReportDelayMillis);
+        dest.writeInt(mDeliveryQueueCapacity);
+        dest.writeInt(mDeliveryOverflowPolicy);
+        dest.writeInt(mMaxBatchSize);
+        dest.writeInt(mBatchLatestPerAddress ? 1 : 0);
+        dest.writeLong(mCoalescingWindowMillis);
+        dest.writeLong(mLostTimeoutMillis);
     }
 
     @Override
@@ -139,6 +258,34 @@ public final class ScanSettings implements Parcelable {
         return 0;
     }
 
+    @Override
+    public int hashCode() {
+        return Objects.hash(mScanMode, mCallbackType, mScanResultType, mReportDelayMillis,
+                mDeliveryQueueCapacity, mDeliveryOverflowPolicy, mMaxBatchSize,
+                mBatchLatestPerAddress, mCoalescingWindowMillis, mLostTimeoutMillis);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+        ScanSettings other = (ScanSettings) obj;
+        return mScanMode == other.mScanMode
+                && mCallbackType == other.mCallbackType
+                && mScanResultType == other.mScanResultType
+                && mReportDelayMillis == other.mReportDelayMillis
+                && mDeliveryQueueCapacity == other.mDeliveryQueueCapacity
+                && mDeliveryOverflowPolicy == other.mDeliveryOverflowPolicy
+                && mMaxBatchSize == other.mMaxBatchSize
+                && mBatchLatestPerAddress == other.mBatchLatestPerAddress
+                && mCoalescingWindowMillis == other.mCoalescingWindowMillis
+                && mLostTimeoutMillis == other.mLostTimeoutMillis;
+    }
+
     /**
      * @hide
      */
@@ -163,6 +310,12 @@ public final class ScanSettings implements Parcelable {
         private int mCallbackType = CALLBACK_TYPE_ALL_MATCHES;
         private int mScanResultType = SCAN_RESULT_TYPE_FULL;
         private long mReportDelayMillis = 0;
+        private int mDeliveryQueueCapacity = DEFAULT_DELIVERY_QUEUE_CAPACITY;
+        private int mDeliveryOverflowPolicy = DELIVERY_OVERFLOW_DROP_OLDEST;
+        private int mMaxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+        private boolean mBatchLatestPerAddress = false;
+        private long mCoalescingWindowMillis = 0;
+        private long mLostTimeoutMillis = 0;
 
         /**
          * Set scan mode for Bluetooth LE scan.
@@ -240,12 +393,104 @@ public final class ScanSettings implements Parcelable {
             return this;
         }
 
+        /**
+         * Set how results wait for a client that is slow to handle them. Each client has its own
+         * queue, so a slow client does not hold up the others. First match and match lost
+         * results may go over {@code capacity}, and are only dropped if the queue reaches four
+         * times its capacity with no {@link ScanSettings#CALLBACK_TYPE_ALL_MATCHES} update left
+         * to drop. A device lost before its first match is delivered is not reported at all.
+         * <p>
+         * This is an extension of the "L" Platform API, ignored by the "L" scanner.
+         *
+         * @param capacity The number of results queued before {@code overflowPolicy} applies.
+         * @param overflowPolicy One of {@link ScanSettings#DELIVERY_OVERFLOW_DROP_OLDEST},
+         *            {@link ScanSettings#DELIVERY_OVERFLOW_DROP_NEWEST} or
+         *            {@link ScanSettings#DELIVERY_OVERFLOW_COALESCE_BY_ADDRESS}.
+         * @throws IllegalArgumentException If {@code capacity} &lt;= 0 or
+         *            {@code overflowPolicy} is invalid.
+         */
+        public Builder setDeliveryQueue(int capacity, int overflowPolicy) {
+            if (capacity <= 0) {
+                throw new IllegalArgumentException("capacity must be > 0");
+            }
+            if (overflowPolicy < DELIVERY_OVERFLOW_DROP_OLDEST
+                    || overflowPolicy > DELIVERY_OVERFLOW_COALESCE_BY_ADDRESS) {
+                throw new IllegalArgumentException("invalid overflow policy - " + overflowPolicy);
+            }
+            mDeliveryQueueCapacity = capacity;
+            mDeliveryOverflowPolicy = overflowPolicy;
+            return this;
+        }
+
+        /**
+         * Set how results are batched when the report delay is &gt; 0. A batch is reported
+         * through {@link ScanCallback#onBatchScanResults} once the report delay has passed since
+         * its first result, or as soon as it holds {@code maxBatchSize} results.
+         * <p>
+         * This is an extension of the "L" Platform API, ignored by the "L" scanner.
+         *
+         * @param maxBatchSize The number of results after which a batch is reported early.
+         * @param latestPerAddress If true, a batch only keeps the latest result of each device,
+         *            so it holds at most one result per device.
+         * @throws IllegalArgumentException If {@code maxBatchSize} &lt;= 0.
+         */
+        public Builder setReportBatching(int maxBatchSize, boolean latestPerAddress) {
+            if (maxBatchSize <= 0) {
+                throw new IllegalArgumentException("maxBatchSize must be > 0");
+            }
+            mMaxBatchSize = maxBatchSize;
+            mBatchLatestPerAddress = latestPerAddress;
+            return this;
+        }
+
+        /**
+         * Set the window over which repeated sightings of the same device and advertisement are
+         * merged. Instead of a {@link ScanSettings#CALLBACK_TYPE_ALL_MATCHES} result per
+         * packet, the client gets one result per window carrying the latest sighting and the
+         * minimum, maximum and mean signal strength of all of them, see
+         * {@link ScanResult#getSightingCount}. First match and match lost results are not
+         * delayed.
+         * <p>
+         * This is an extension of the "L" Platform API, ignored by the "L" scanner.
+         *
+         * @param coalescingWindowMillis Set to 0 to report every sighting.
+         * @throws IllegalArgumentException If {@code coalescingWindowMillis} &lt; 0.
+         */
+        public Builder setCoalescingWindowMillis(long coalescingWindowMillis) {
+            if (coalescingWindowMillis < 0) {
+                throw new IllegalArgumentException("coalescingWindowMillis must be >= 0");
+            }
+            mCoalescingWindowMillis = coalescingWindowMillis;
+            return this;
+        }
+
+        /**
+         * Set the time without sightings after which a device is reported lost to this client
+         * with {@link ScanSettings#CALLBACK_TYPE_MATCH_LOST}. It supersedes the scanner-wide
+         * {@link BluetoothLeScannerCompat#setScanLostOverride} for this client.
+         * <p>
+         * This is an extension of the "L" Platform API. The "L" scanner only applies it to the
+         * scans asking for first or lost matches.
+         *
+         * @param lostTimeoutMillis Set to 0 to let the scanner decide.
+         * @throws IllegalArgumentException If {@code lostTimeoutMillis} &lt; 0.
+         */
+        public Builder setLostTimeoutMillis(long lostTimeoutMillis) {
+            if (lostTimeoutMillis < 0) {
+                throw new IllegalArgumentException("lostTimeoutMillis must be >= 0");
+            }
+            mLostTimeoutMillis = lostTimeoutMillis;
+            return this;
+        }
+
         /**
          * Build {@link ScanSettings}.
          */
         public ScanSettings build() {
             return new ScanSettings(mScanMode, mCallbackType, mScanResultType,
-                    mReportDelayMillis);
+                    mReportDelayMillis, mDeliveryQueueCapacity, mDeliveryOverflowPolicy,
+                    mMaxBatchSize, mBatchLatestPerAddress, mCoalescingWindowMillis,
+                    mLostTimeoutMillis);
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.scan.compat;
+
+/**
+ * The devices a scanner remembers for replay to new scans, as returned by
+ * {@link BluetoothLeScannerCompat#getSightingStats}. Instances are immutable snapshots.
+ */
+public final class ScanSightingStats {
+  private final int size;
+  private final int capacity;
+  private final int peakSize;
+  private final long evictionCount;
+
+  ScanSightingStats(int size, int capacity, int peakSize, long evictionCount) {
+    this.size = size;
+    this.capacity = capacity;
+    this.peakSize = peakSize;
+    this.evictionCount = evictionCount;
+  }
+
+  /**
+   * Returns the number of devices remembered.
+   */
+  public int getSize() {
+    return size;
+  }
+
+  /**
+   * Returns the largest number of devices remembered at once, beyond which the device seen least
+   * recently is evicted.
+   */
+  public int getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * Returns the largest number of devices remembered at once so far.
+   */
+  public int getPeakSize() {
+    return peakSize;
+  }
+
+  /**
+   * Returns the number of devices evicted so far to respect the capacity. Evicted devices are
+   * reported lost early.
+   */
+  public long getEvictionCount() {
+    return evictionCount;
+  }
+
+  @Override
+  public String toString() {
+    return "ScanSightingStats [size=" + size + ", capacity=" + capacity + ", peakSize="
+        + peakSize + ", evictions=" + evictionCount + "]";
+  }
+}
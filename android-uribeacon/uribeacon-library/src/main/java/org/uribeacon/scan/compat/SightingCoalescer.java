@@ -0,0 +1,123 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.uribeacon.scan.compat;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merges the repeated sightings of each device for one scan client, see
+ * {@link ScanSettings#getCoalescingWindowMillis}.
+ * <p>
+ * The sightings of a device are folded into one pending result while they carry the same
+ * advertisement and fall within the window of the first of them. A sighting outside the window,
+ * or with a different advertisement, releases the pending result and starts a new one. So the
+ * client gets about one result per device and window, whatever the advertising rate.
+ * <p>
+ * Sightings are added by the dispatcher thread and pending results released at the end of each
+ * scan cycle, so all methods are synchronized.
+ */
+final class SightingCoalescer {
+
+  private static final class Pending {
+    final long windowStartNanos;
+    final byte[] advertisement;
+    ScanResult latest;
+    int count;
+    int minRssi;
+    int maxRssi;
+    long rssiSum;
+
+    Pending(ScanResult result) {
+      windowStartNanos = result.getTimestampNanos();
+      advertisement = bytesOf(result);
+      latest = result;
+      count = 1;
+      minRssi = result.getRssi();
+      maxRssi = result.getRssi();
+      rssiSum = result.getRssi();
+    }
+
+    void add(ScanResult result) {
+      latest = result;
+      count++;
+      minRssi = Math.min(minRssi, result.getRssi());
+      maxRssi = Math.max(maxRssi, result.getRssi());
+      rssiSum += result.getRssi();
+    }
+
+    ScanResult toResult() {
+      if (count == 1) {
+        return latest;
+      }
+      return new ScanResult(latest.getDevice(), latest.getScanRecord(), latest.getRssi(),
+          latest.getTimestampNanos(), count, minRssi, maxRssi, rssiSum);
+    }
+  }
+
+  private final long windowNanos;
+  private final Map<String, Pending> pendingByAddress = new HashMap<String, Pending>();
+
+  SightingCoalescer(ScanSettings settings) {
+    windowNanos = TimeUnit.MILLISECONDS.toNanos(settings.getCoalescingWindowMillis());
+  }
+
+  /**
+   * Add a sighting of the device at {@code address}. Returns the result it released, or null if
+   * it was merged into the pending result.
+   */
+  synchronized ScanResult add(String address, ScanResult result) {
+    Pending pending = pendingByAddress.get(address);
+    if (pending != null
+        && result.getTimestampNanos() - pending.windowStartNanos < windowNanos
+        && Arrays.equals(pending.advertisement, bytesOf(result))) {
+      pending.add(result);
+      return null;
+    }
+    pendingByAddress.put(address, new Pending(result));
+    return pending == null ? null : pending.toResult();
+  }
+
+  /**
+   * Returns the pending result of every device by address, and forget them.
+   */
+  synchronized Map<String, ScanResult> takeAll() {
+    Map<String, ScanResult> results = new LinkedHashMap<String, ScanResult>();
+    for (Entry<String, Pending> entry : pendingByAddress.entrySet()) {
+      results.put(entry.getKey(), entry.getValue().toResult());
+    }
+    pendingByAddress.clear();
+    return results;
+  }
+
+  /**
+   * Forget the pending result of the device at {@code address}, once it is lost.
+   */
+  synchronized void remove(String address) {
+    pendingByAddress.remove(address);
+  }
+
+  private static byte[] bytesOf(ScanResult result) {
+    ScanRecord scanRecord = result.getScanRecord();
+    return scanRecord == null ? null : scanRecord.getBytes();
+  }
+}
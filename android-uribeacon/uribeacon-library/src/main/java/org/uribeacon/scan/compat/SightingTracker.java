@@ -0,0 +1,155 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.scan.compat;
+
+import org.uribeacon.scan.util.Clock;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tracks the devices each scan client has found, and reports those not seen for the client's
+ * lost timeout as lost. This is what the {@link ScanSettings#CALLBACK_TYPE_FIRST_MATCH} and
+ * {@link ScanSettings#CALLBACK_TYPE_MATCH_LOST} callbacks report, for the scanners that track
+ * them in software.
+ * <p>
+ * Each client has a {@link LostTimingWheel} of the devices it found, under its own lost timeout
+ * or the tracker's default one. A single {@link #sweep} expires the devices of every client, so a
+ * scanner runs one periodic sweep however many clients and devices it tracks.
+ * <p>
+ * Sightings, registrations and sweeps may come from different threads. Lost devices are reported
+ * without holding any lock.
+ *
+ * @param <C> The client, handed back with its lost devices.
+ * @param <V> The sighting kept with each device, handed back when it is lost.
+ */
+final class SightingTracker<C, V> {
+
+  /**
+   * Receives the devices lost by each client.
+   */
+  interface Listener<C, V> {
+    void onLost(C client, String address, V sighting);
+  }
+
+  // 250 millisecond ticks, 1024 slots for a rotation of about 4 minutes.
+  private static final long TICK_MILLIS = 250;
+  private static final int SLOT_COUNT = 1024;
+
+  private static final class Client<V> {
+    final LostTimingWheel<V> wheel;
+    // True if the client follows the tracker's default timeout.
+    final boolean usesDefaultTimeout;
+
+    Client(LostTimingWheel<V> wheel, boolean usesDefaultTimeout) {
+      this.wheel = wheel;
+      this.usesDefaultTimeout = usesDefaultTimeout;
+    }
+  }
+
+  private final Clock clock;
+  private final Map<C, Client<V>> clients = new ConcurrentHashMap<C, Client<V>>();
+  private long defaultTimeoutMillis;
+
+  /**
+   * @param clock The clock the sightings are timed with.
+   * @param defaultTimeoutMillis The lost timeout of the clients without their own.
+   */
+  SightingTracker(Clock clock, long defaultTimeoutMillis) {
+    this.clock = clock;
+    this.defaultTimeoutMillis = defaultTimeoutMillis;
+  }
+
+  /**
+   * Start tracking the devices found by {@code client}, replacing any previous tracking.
+   *
+   * @param lostTimeoutMillis The client's lost timeout, or 0 for the default one.
+   */
+  synchronized void addClient(C client, long lostTimeoutMillis) {
+    boolean usesDefaultTimeout = lostTimeoutMillis <= 0;
+    clients.put(client, new Client<V>(new LostTimingWheel<V>(TICK_MILLIS, SLOT_COUNT,
+        usesDefaultTimeout ? defaultTimeoutMillis : lostTimeoutMillis,
+        clock.currentTimeMillis()), usesDefaultTimeout));
+  }
+
+  /**
+   * Stop tracking the devices found by {@code client}, without reporting them lost.
+   */
+  void removeClient(C client) {
+    clients.remove(client);
+  }
+
+  /**
+   * Change the lost timeout of the clients without their own.
+   */
+  synchronized void setDefaultTimeoutMillis(long timeoutMillis) {
+    defaultTimeoutMillis = timeoutMillis;
+    for (Client<V> client : clients.values()) {
+      if (client.usesDefaultTimeout) {
+        client.wheel.setTimeoutMillis(timeoutMillis);
+      }
+    }
+  }
+
+  synchronized long getDefaultTimeoutMillis() {
+    return defaultTimeoutMillis;
+  }
+
+  /**
+   * Record that {@code client} saw the device at {@code address} at {@code seenMillis}. Returns
+   * true if this is the first sighting since the client started or last lost the device, so the
+   * client should be told it found the device. Returns false for clients not tracked.
+   */
+  boolean onSighting(C client, String address, long seenMillis, V sighting) {
+    Client<V> tracked = clients.get(client);
+    return tracked != null && tracked.wheel.touch(address, seenMillis, sighting);
+  }
+
+  /**
+   * Report the device at {@code address} lost, now, to every client that found it.
+   */
+  void forget(String address, V sighting, Listener<C, V> listener) {
+    for (Map.Entry<C, Client<V>> entry : clients.entrySet()) {
+      if (entry.getValue().wheel.remove(address)) {
+        listener.onLost(entry.getKey(), address, sighting);
+      }
+    }
+  }
+
+  /**
+   * Report the devices that each client has not seen for its lost timeout as lost.
+   */
+  void sweep(final Listener<C, V> listener) {
+    long nowMillis = clock.currentTimeMillis();
+    for (Map.Entry<C, Client<V>> entry : clients.entrySet()) {
+      final C client = entry.getKey();
+      entry.getValue().wheel.advance(nowMillis, new LostTimingWheel.Listener<V>() {
+        @Override
+        public void onExpired(String address, V sighting) {
+          listener.onLost(client, address, sighting);
+        }
+      });
+    }
+  }
+
+  /**
+   * Returns the number of clients tracked.
+   */
+  int getClientCount() {
+    return clients.size();
+  }
+}
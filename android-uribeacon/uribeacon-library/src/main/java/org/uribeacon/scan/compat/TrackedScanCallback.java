@@ -0,0 +1,113 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.uribeacon.scan.compat;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reports the {@link ScanSettings#CALLBACK_TYPE_FIRST_MATCH} and
+ * {@link ScanSettings#CALLBACK_TYPE_MATCH_LOST} callbacks of a scan whose hardware scan reports
+ * every match. Each match is recorded with a {@link SightingTracker}: the first one of a device
+ * is reported as a first match, the others only if the client wants every match. The devices the
+ * tracker reports lost are reported as lost matches.
+ * <p>
+ * Results and lost devices must be reported on the same thread, so that the client is called
+ * from one thread at a time. Once {@link #stop stopped}, the client is no longer called.
+ */
+final class TrackedScanCallback extends ScanCallback {
+
+  /**
+   * Hands the devices lost by each tracked scan back to it.
+   */
+  static final SightingTracker.Listener<TrackedScanCallback, ScanResult> LOST_LISTENER =
+      new SightingTracker.Listener<TrackedScanCallback, ScanResult>() {
+    @Override
+    public void onLost(TrackedScanCallback client, String address, ScanResult sighting) {
+      client.onLost(sighting);
+    }
+  };
+
+  private final ScanCallback callback;
+  private final int callbackType;
+  private final SightingTracker<TrackedScanCallback, ScanResult> tracker;
+  private volatile boolean stopped;
+
+  /**
+   * @param callback The client's callback.
+   * @param callbackType The callback types the client asked for.
+   * @param tracker The tracker the matches are recorded with. The caller adds this client to it.
+   */
+  TrackedScanCallback(ScanCallback callback, int callbackType,
+      SightingTracker<TrackedScanCallback, ScanResult> tracker) {
+    this.callback = callback;
+    this.callbackType = callbackType;
+    this.tracker = tracker;
+  }
+
+  /**
+   * Returns true if the callbacks of a scan with {@code settings} must be tracked in software.
+   * Scans with a report delay only get batches, so they are never tracked.
+   */
+  static boolean isTracked(ScanSettings settings) {
+    int trackedBits =
+        ScanSettings.CALLBACK_TYPE_FIRST_MATCH | ScanSettings.CALLBACK_TYPE_MATCH_LOST;
+    return (settings.getCallbackType() & trackedBits) != 0 && settings.getReportDelayMillis() == 0;
+  }
+
+  /**
+   * Stop calling the client, whose scan has stopped.
+   */
+  void stop() {
+    stopped = true;
+  }
+
+  @Override
+  public void onScanResult(int osCallbackType, ScanResult result) {
+    if (stopped) {
+      return;
+    }
+    BluetoothDevice device = result.getDevice();
+    boolean firstMatch = device != null && tracker.onSighting(this, device.getAddress(),
+        TimeUnit.NANOSECONDS.toMillis(result.getTimestampNanos()), result);
+    int firstMatchBit = callbackType & ScanSettings.CALLBACK_TYPE_FIRST_MATCH;
+    int allMatchesBit = callbackType & ScanSettings.CALLBACK_TYPE_ALL_MATCHES;
+    if (firstMatch && (firstMatchBit | allMatchesBit) != 0) {
+      callback.onScanResult(ScanSettings.CALLBACK_TYPE_FIRST_MATCH, result);
+    } else if (!firstMatch && allMatchesBit != 0) {
+      callback.onScanResult(ScanSettings.CALLBACK_TYPE_ALL_MATCHES, result);
+    }
+  }
+
+  @Override
+  public void onScanFailed(int errorCode) {
+    callback.onScanFailed(errorCode);
+  }
+
+  /**
+   * Tell the client that the device last seen in {@code sighting} is lost.
+   */
+  void onLost(ScanResult sighting) {
+    int wantAny = callbackType & ScanSettings.CALLBACK_TYPE_ALL_MATCHES;
+    int wantLost = callbackType & ScanSettings.CALLBACK_TYPE_MATCH_LOST;
+    if (!stopped && (wantAny | wantLost) != 0) {
+      callback.onScanResult(ScanSettings.CALLBACK_TYPE_MATCH_LOST, sighting);
+    }
+  }
+}
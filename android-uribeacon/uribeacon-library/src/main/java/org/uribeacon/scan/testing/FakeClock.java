@@ -18,11 +18,12 @@ package org.uribeacon.scan.testing;
 import org.uribeacon.scan.util.Clock;
 
 /**
- * A fake clock implementation, for testing.
+ * A fake clock implementation, for testing. It may be advanced from another thread, such as the
+ * one replaying a {@link ReplayAdvertisementSource}.
  */
 public class FakeClock implements Clock {
 
-  private long nowMillis = 1000000000L;
+  private volatile long nowMillis = 1000000000L;
 
   @Override public long currentTimeMillis() {
     return nowMillis;
@@ -0,0 +1,394 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.uribeacon.scan.testing;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.support.annotation.Nullable;
+
+import org.uribeacon.scan.compat.AdvertisementSource;
+import org.uribeacon.scan.util.Logger;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * An {@link AdvertisementSource} that replays advertisements from a capture, to load-test the
+ * scanner without beacons.
+ * <p>
+ * A capture is a sequence of {@link Record}s, in timestamp order, read by a {@link RecordReader}
+ * from either of two formats:
+ * <ul>
+ * <li> CSV, one record per line: {@code timestampMillis,address,rssi,hexBytes}. Blank lines and
+ * lines starting with {@code #} are skipped, and whitespace in the hex bytes is ignored.
+ * <li> Binary, as written by {@link #writeBinary}: the magic {@code UBRP} and a version byte,
+ * then for each record the timestamp as a long, the six address bytes, the rssi as a signed
+ * byte, the length of the advertisement as an unsigned byte, and the advertisement bytes.
+ * </ul>
+ * At {@link #SPEED_REAL_TIME} the records are delivered as far apart as their timestamps; at
+ * {@link #SPEED_MAX} they are delivered as fast as the listener takes them. Given a
+ * {@link FakeClock}, the clock is advanced by the time between records before each is delivered,
+ * so a scanner using that clock sees the captured timing, and times out lost devices the same
+ * way, at either speed.
+ * <p>
+ * {@link #start} replays on a background thread, resuming where the last {@link #stop} left off,
+ * so a duty-cycling scanner sees the capture through its scan windows. {@link #replay} replays
+ * the rest of the capture on the calling thread.
+ */
+public class ReplayAdvertisementSource implements AdvertisementSource, Closeable {
+
+  /**
+   * Deliver the records as far apart as their timestamps.
+   */
+  public static final int SPEED_REAL_TIME = 0;
+
+  /**
+   * Deliver the records without waiting between them.
+   */
+  public static final int SPEED_MAX = 1;
+
+  private static final int BINARY_MAGIC = 0x55425250; // "UBRP"
+  private static final int BINARY_VERSION = 1;
+  private static final int ADDRESS_LENGTH = 6;
+  // Timestamp, address, rssi and advertisement length.
+  private static final int BINARY_HEADER_LENGTH = 8 + ADDRESS_LENGTH + 1 + 1;
+
+  /**
+   * One captured advertisement.
+   */
+  public static final class Record {
+    private final long timestampMillis;
+    private final String address;
+    private final int rssi;
+    private final byte[] scanRecord;
+
+    public Record(long timestampMillis, String address, int rssi, byte[] scanRecord) {
+      this.timestampMillis = timestampMillis;
+      this.address = address;
+      this.rssi = rssi;
+      this.scanRecord = scanRecord;
+    }
+
+    public long getTimestampMillis() {
+      return timestampMillis;
+    }
+
+    public String getAddress() {
+      return address;
+    }
+
+    public int getRssi() {
+      return rssi;
+    }
+
+    public byte[] getScanRecord() {
+      return scanRecord;
+    }
+  }
+
+  /**
+   * Reads the records of a capture in order.
+   */
+  public interface RecordReader extends Closeable {
+    /**
+     * Returns the next record, or null at the end of the capture.
+     */
+    @Nullable
+    Record read() throws IOException;
+  }
+
+  private final RecordReader reader;
+  private final int speed;
+  @Nullable private final FakeClock clock;
+  private final Map<String, BluetoothDevice> devices = new HashMap<String, BluetoothDevice>();
+  // Read but not delivered when the last replay was stopped.
+  private Record pending;
+  // Timestamp of the last record delivered, or -1 before the first.
+  private long lastTimestampMillis = -1;
+  private Thread replayThread;
+  private volatile boolean stopped;
+
+  /**
+   * @param reader The capture to replay. Closed by {@link #close}.
+   * @param speed {@link #SPEED_REAL_TIME} or {@link #SPEED_MAX}.
+   * @param clock The clock to advance with the capture, or null to leave time alone.
+   */
+  public ReplayAdvertisementSource(RecordReader reader, int speed, @Nullable FakeClock clock) {
+    if (speed != SPEED_REAL_TIME && speed != SPEED_MAX) {
+      throw new IllegalArgumentException("invalid speed " + speed);
+    }
+    this.reader = reader;
+    this.speed = speed;
+    this.clock = clock;
+  }
+
+  @Override
+  public synchronized boolean start(final Listener listener) {
+    if (replayThread != null) {
+      return false;
+    }
+    stopped = false;
+    replayThread = new Thread("UriBeaconReplay") {
+      @Override
+      public void run() {
+        try {
+          replay(listener);
+        } catch (IOException e) {
+          Logger.logError("Replay failed", e);
+        } catch (InterruptedException e) {
+          // Stopped while waiting for the next record.
+        }
+      }
+    };
+    replayThread.setDaemon(true);
+    replayThread.start();
+    return true;
+  }
+
+  /**
+   * Stop the replay, waiting until the listener will not be called again.
+   */
+  @Override
+  public void stop(Listener listener) {
+    Thread thread;
+    synchronized (this) {
+      thread = replayThread;
+      replayThread = null;
+    }
+    if (thread == null) {
+      return;
+    }
+    stopped = true;
+    thread.interrupt();
+    boolean interrupted = false;
+    while (thread.isAlive()) {
+      try {
+        thread.join();
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    stopped = false;
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Replay the rest of the capture to {@code listener} on the calling thread. Returns the number
+   * of records delivered.
+   */
+  public int replay(Listener listener) throws IOException, InterruptedException {
+    int count = 0;
+    while (!stopped) {
+      Record record = pending != null ? pending : reader.read();
+      pending = null;
+      if (record == null) {
+        break;
+      }
+      long delayMillis = lastTimestampMillis < 0
+          ? 0 : Math.max(0, record.timestampMillis - lastTimestampMillis);
+      if (speed == SPEED_REAL_TIME && delayMillis > 0) {
+        try {
+          Thread.sleep(delayMillis);
+        } catch (InterruptedException e) {
+          pending = record;
+          throw e;
+        }
+      }
+      if (stopped) {
+        pending = record;
+        break;
+      }
+      if (clock != null) {
+        clock.advance(delayMillis);
+      }
+      lastTimestampMillis = record.timestampMillis;
+      listener.onAdvertisement(getDevice(record.address), record.address, record.rssi,
+          record.scanRecord);
+      count++;
+    }
+    return count;
+  }
+
+  @Override
+  public void close() throws IOException {
+    stop(null);
+    reader.close();
+  }
+
+  // Resolves the device for an address, if there is a Bluetooth adapter to get it from, so that
+  // the scanner's address filters match replayed results.
+  private BluetoothDevice getDevice(String address) {
+    BluetoothDevice device = devices.get(address);
+    if (device == null && !devices.containsKey(address)) {
+      BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+      device = adapter == null ? null : adapter.getRemoteDevice(address);
+      devices.put(address, device);
+    }
+    return device;
+  }
+
+  /**
+   * Returns a reader of a CSV capture.
+   */
+  public static RecordReader csvReader(Reader in) {
+    final BufferedReader lines = new BufferedReader(in);
+    return new RecordReader() {
+      private int lineNumber;
+
+      @Override
+      public Record read() throws IOException {
+        String line;
+        while ((line = lines.readLine()) != null) {
+          lineNumber++;
+          line = line.trim();
+          if (!line.isEmpty() && !line.startsWith("#")) {
+            return parseCsv(line, lineNumber);
+          }
+        }
+        return null;
+      }
+
+      @Override
+      public void close() throws IOException {
+        lines.close();
+      }
+    };
+  }
+
+  private static Record parseCsv(String line, int lineNumber) throws IOException {
+    String[] fields = line.split(",", -1);
+    if (fields.length != 4) {
+      throw new IOException("Line " + lineNumber + ": expected 4 fields, got " + fields.length);
+    }
+    String address = fields[1].trim().toUpperCase(Locale.US);
+    if (!BluetoothAdapter.checkBluetoothAddress(address)) {
+      throw new IOException("Line " + lineNumber + ": invalid address " + address);
+    }
+    try {
+      return new Record(Long.parseLong(fields[0].trim()), address,
+          Integer.parseInt(fields[2].trim()), parseHex(fields[3]));
+    } catch (IllegalArgumentException e) {
+      throw new IOException("Line " + lineNumber + ": " + e.getMessage());
+    }
+  }
+
+  private static byte[] parseHex(String hex) {
+    String digits = hex.replaceAll("\\s", "");
+    if (digits.length() % 2 != 0) {
+      throw new IllegalArgumentException("odd number of hex digits");
+    }
+    byte[] bytes = new byte[digits.length() / 2];
+    for (int i = 0; i < bytes.length; i++) {
+      int high = Character.digit(digits.charAt(2 * i), 16);
+      int low = Character.digit(digits.charAt(2 * i + 1), 16);
+      if (high < 0 || low < 0) {
+        throw new IllegalArgumentException(
+            "invalid hex digits " + digits.substring(2 * i, 2 * i + 2));
+      }
+      bytes[i] = (byte) ((high << 4) | low);
+    }
+    return bytes;
+  }
+
+  /**
+   * Returns a reader of a binary capture, as written by {@link #writeBinary}.
+   *
+   * @throws IOException if {@code in} does not start with a binary capture header.
+   */
+  public static RecordReader binaryReader(InputStream in) throws IOException {
+    final DataInputStream data = new DataInputStream(in);
+    if (data.readInt() != BINARY_MAGIC) {
+      throw new IOException("Not a binary capture");
+    }
+    int version = data.readUnsignedByte();
+    if (version != BINARY_VERSION) {
+      throw new IOException("Unsupported capture version " + version);
+    }
+    return new RecordReader() {
+      private final byte[] header = new byte[BINARY_HEADER_LENGTH];
+
+      @Override
+      public Record read() throws IOException {
+        int first = data.read();
+        if (first < 0) {
+          return null;
+        }
+        header[0] = (byte) first;
+        data.readFully(header, 1, header.length - 1);
+        ByteBuffer buffer = ByteBuffer.wrap(header);
+        long timestampMillis = buffer.getLong();
+        StringBuilder address = new StringBuilder(3 * ADDRESS_LENGTH);
+        for (int i = 0; i < ADDRESS_LENGTH; i++) {
+          if (i > 0) {
+            address.append(':');
+          }
+          address.append(String.format(Locale.US, "%02X", buffer.get() & 0xFF));
+        }
+        int rssi = buffer.get();
+        byte[] scanRecord = new byte[buffer.get() & 0xFF];
+        data.readFully(scanRecord);
+        return new Record(timestampMillis, address.toString(), rssi, scanRecord);
+      }
+
+      @Override
+      public void close() throws IOException {
+        data.close();
+      }
+    };
+  }
+
+  /**
+   * Write {@code records} to {@code out} as a binary capture. Does not close {@code out}.
+   *
+   * @throws IllegalArgumentException if a record does not fit the format: its rssi is not a
+   *     signed byte or its advertisement is longer than 255 bytes.
+   */
+  public static void writeBinary(Iterable<Record> records, OutputStream out) throws IOException {
+    DataOutputStream data = new DataOutputStream(out);
+    data.writeInt(BINARY_MAGIC);
+    data.writeByte(BINARY_VERSION);
+    for (Record record : records) {
+      if (record.rssi < Byte.MIN_VALUE || record.rssi > Byte.MAX_VALUE
+          || record.scanRecord.length > 0xFF
+          || !BluetoothAdapter.checkBluetoothAddress(record.address)) {
+        throw new IllegalArgumentException("Record does not fit a binary capture: "
+            + record.address);
+      }
+      data.writeLong(record.timestampMillis);
+      for (String part : record.address.split(":")) {
+        data.writeByte(Integer.parseInt(part, 16));
+      }
+      data.writeByte(record.rssi);
+      data.writeByte(record.scanRecord.length);
+      data.write(record.scanRecord);
+    }
+    data.flush();
+  }
+}
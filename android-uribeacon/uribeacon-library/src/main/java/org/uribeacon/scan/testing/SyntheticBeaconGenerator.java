@@ -0,0 +1,381 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.uribeacon.scan.testing;
+
+import android.support.annotation.Nullable;
+
+import org.uribeacon.beacon.UriBeacon;
+import org.uribeacon.scan.compat.AdvertisementSource;
+
+import java.net.URISyntaxException;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * Generates the advertisements of a simulated field of beacons, to measure the scanner under
+ * load without radios.
+ * <p>
+ * Each beacon advertises at its own interval, plus the random delay of up to
+ * {@value #MAX_ADVERTISING_DELAY_MILLIS}ms the Bluetooth specification adds to each advertising
+ * event. A configurable share of the beacons are UriBeacons, whose advertisements are built with
+ * {@link UriBeacon#toByteArray}; the others send manufacturer specific data. Beacons may use
+ * random addresses that they rotate periodically, their signal strength follows a bounded random
+ * walk, and they may churn: each lives for an exponentially distributed time, then is replaced by
+ * a new beacon.
+ * <p>
+ * Time is simulated: {@link #generate} delivers the advertisements of the next stretch of time as
+ * fast as the listener takes them, advancing the {@link FakeClock}, if any, to the time of each.
+ * Devices are not created, so the listener is called with a null device. Runs with the same
+ * settings and seed produce the same advertisements.
+ * <p>
+ * Instances are not thread safe.
+ */
+public class SyntheticBeaconGenerator {
+
+  /**
+   * The longest random delay added to each advertising event, in milliseconds.
+   */
+  public static final int MAX_ADVERTISING_DELAY_MILLIS = 10;
+
+  // Manufacturer id reserved by the Bluetooth SIG for testing.
+  private static final int TEST_MANUFACTURER_ID = 0xFFFF;
+  private static final int MANUFACTURER_DATA_LENGTH = 20;
+  private static final byte[] FLAGS_FIELD = {0x02, 0x01, 0x06};
+  private static final String URI_PREFIX = "http://goo.gl/";
+
+  private final int beaconCount;
+  private final double uriBeaconFraction;
+  private final int minAdvertisingIntervalMillis;
+  private final int maxAdvertisingIntervalMillis;
+  private final double randomAddressFraction;
+  private final long addressRotationMillis;
+  private final int minRssi;
+  private final int maxRssi;
+  private final double rssiStepDb;
+  private final long meanLifetimeMillis;
+  @Nullable private final FakeClock clock;
+  private final Random random;
+  // The beacons, earliest next advertisement first.
+  private final PriorityQueue<Beacon> beacons;
+  private long nowMillis;
+  private int nextBeaconId;
+  private long advertisementCount;
+  private long uriBeaconAdvertisementCount;
+  private long addressRotationCount;
+  private long churnCount;
+
+  private SyntheticBeaconGenerator(Builder builder) {
+    beaconCount = builder.beaconCount;
+    uriBeaconFraction = builder.uriBeaconFraction;
+    minAdvertisingIntervalMillis = builder.minAdvertisingIntervalMillis;
+    maxAdvertisingIntervalMillis = builder.maxAdvertisingIntervalMillis;
+    randomAddressFraction = builder.randomAddressFraction;
+    addressRotationMillis = builder.addressRotationMillis;
+    minRssi = builder.minRssi;
+    maxRssi = builder.maxRssi;
+    rssiStepDb = builder.rssiStepDb;
+    meanLifetimeMillis = builder.meanLifetimeMillis;
+    clock = builder.clock;
+    random = new Random(builder.seed);
+    nowMillis = clock == null ? 0 : clock.currentTimeMillis();
+    beacons = new PriorityQueue<Beacon>(Math.max(1, beaconCount), new Comparator<Beacon>() {
+      @Override
+      public int compare(Beacon lhs, Beacon rhs) {
+        return lhs.nextAdvertisementMillis < rhs.nextAdvertisementMillis ? -1
+            : (lhs.nextAdvertisementMillis == rhs.nextAdvertisementMillis ? 0 : 1);
+      }
+    });
+    for (int i = 0; i < beaconCount; i++) {
+      beacons.add(newBeacon());
+    }
+  }
+
+  /**
+   * Deliver to {@code listener}, in time order, the advertisements of the next
+   * {@code durationMillis} of simulated time. Returns the number delivered.
+   * <p>
+   * The listener must not modify the advertisement bytes, which are shared by the advertisements
+   * of a beacon.
+   */
+  public int generate(long durationMillis, AdvertisementSource.Listener listener) {
+    long endMillis = nowMillis + durationMillis;
+    int count = 0;
+    while (!beacons.isEmpty() && beacons.peek().nextAdvertisementMillis < endMillis) {
+      Beacon beacon = beacons.poll();
+      advanceTo(beacon.nextAdvertisementMillis);
+      if (nowMillis >= beacon.endOfLifeMillis) {
+        churnCount++;
+        beacons.add(newBeacon());
+        continue;
+      }
+      if (nowMillis >= beacon.nextRotationMillis) {
+        beacon.address = randomAddress(true);
+        beacon.nextRotationMillis += addressRotationMillis;
+        addressRotationCount++;
+      }
+      beacon.rssi = Math.min(maxRssi,
+          Math.max(minRssi, beacon.rssi + random.nextGaussian() * rssiStepDb));
+      listener.onAdvertisement(
+          null, beacon.address, (int) Math.round(beacon.rssi), beacon.scanRecord);
+      count++;
+      if (beacon.uriBeacon) {
+        uriBeaconAdvertisementCount++;
+      }
+      beacon.nextAdvertisementMillis = nowMillis + beacon.advertisingIntervalMillis
+          + random.nextInt(MAX_ADVERTISING_DELAY_MILLIS + 1);
+      beacons.add(beacon);
+    }
+    advanceTo(endMillis);
+    advertisementCount += count;
+    return count;
+  }
+
+  /**
+   * Returns the total number of advertisements delivered.
+   */
+  public long getAdvertisementCount() {
+    return advertisementCount;
+  }
+
+  /**
+   * Returns the number of advertisements delivered from UriBeacons.
+   */
+  public long getUriBeaconAdvertisementCount() {
+    return uriBeaconAdvertisementCount;
+  }
+
+  /**
+   * Returns the number of times a beacon rotated its random address.
+   */
+  public long getAddressRotationCount() {
+    return addressRotationCount;
+  }
+
+  /**
+   * Returns the number of beacons that left the field and were replaced.
+   */
+  public long getChurnCount() {
+    return churnCount;
+  }
+
+  private void advanceTo(long millis) {
+    if (clock != null) {
+      clock.advance(millis - nowMillis);
+    }
+    nowMillis = millis;
+  }
+
+  private Beacon newBeacon() {
+    int id = nextBeaconId++;
+    boolean uriBeacon = random.nextDouble() < uriBeaconFraction;
+    boolean randomAddress = random.nextDouble() < randomAddressFraction;
+    Beacon beacon = new Beacon();
+    beacon.uriBeacon = uriBeacon;
+    beacon.scanRecord = uriBeacon ? uriBeaconAdvertisement(id) : manufacturerAdvertisement();
+    beacon.address = randomAddress(randomAddress);
+    beacon.nextRotationMillis = randomAddress && addressRotationMillis > 0
+        // Rotations are spread out, as the beacons' clocks are not synchronized.
+        ? nowMillis + 1 + (long) (random.nextDouble() * addressRotationMillis) : Long.MAX_VALUE;
+    beacon.rssi = minRssi + random.nextDouble() * (maxRssi - minRssi);
+    beacon.advertisingIntervalMillis = minAdvertisingIntervalMillis
+        + random.nextInt(maxAdvertisingIntervalMillis - minAdvertisingIntervalMillis + 1);
+    // The first advertisement is at a random phase of the interval.
+    beacon.nextAdvertisementMillis = nowMillis + random.nextInt(beacon.advertisingIntervalMillis);
+    beacon.endOfLifeMillis = meanLifetimeMillis > 0
+        ? nowMillis + 1 + (long) (-Math.log(1 - random.nextDouble()) * meanLifetimeMillis)
+        : Long.MAX_VALUE;
+    return beacon;
+  }
+
+  private static byte[] uriBeaconAdvertisement(int id) {
+    byte[] serviceData;
+    try {
+      serviceData = new UriBeacon.Builder()
+          .uriString(URI_PREFIX + Integer.toString(id, Character.MAX_RADIX))
+          .txPowerLevel((byte) -20)
+          .build()
+          .toByteArray();
+    } catch (URISyntaxException e) {
+      throw new IllegalStateException(e);
+    }
+    return concat(FLAGS_FIELD, serviceData);
+  }
+
+  private byte[] manufacturerAdvertisement() {
+    byte[] field = new byte[MANUFACTURER_DATA_LENGTH + 4];
+    field[0] = (byte) (MANUFACTURER_DATA_LENGTH + 3);
+    field[1] = (byte) 0xFF; // Manufacturer specific data.
+    field[2] = (byte) TEST_MANUFACTURER_ID;
+    field[3] = (byte) (TEST_MANUFACTURER_ID >> 8);
+    byte[] data = new byte[MANUFACTURER_DATA_LENGTH];
+    random.nextBytes(data);
+    System.arraycopy(data, 0, field, 4, data.length);
+    return concat(FLAGS_FIELD, field);
+  }
+
+  // A random static address has its two most significant bits set; a public one is drawn from
+  // the rest of the space.
+  private String randomAddress(boolean randomStatic) {
+    byte[] bytes = new byte[6];
+    random.nextBytes(bytes);
+    bytes[0] = (byte) (randomStatic ? bytes[0] | 0xC0 : bytes[0] & 0x3F);
+    return String.format(Locale.US, "%02X:%02X:%02X:%02X:%02X:%02X",
+        bytes[0], bytes[1], bytes[2], bytes[3], bytes[4], bytes[5]);
+  }
+
+  private static byte[] concat(byte[] first, byte[] second) {
+    byte[] bytes = new byte[first.length + second.length];
+    System.arraycopy(first, 0, bytes, 0, first.length);
+    System.arraycopy(second, 0, bytes, first.length, second.length);
+    return bytes;
+  }
+
+  private static final class Beacon {
+    boolean uriBeacon;
+    byte[] scanRecord;
+    String address;
+    long nextRotationMillis;
+    double rssi;
+    int advertisingIntervalMillis;
+    long nextAdvertisementMillis;
+    long endOfLifeMillis;
+  }
+
+  /**
+   * Builder for {@link SyntheticBeaconGenerator}.
+   */
+  public static final class Builder {
+    private int beaconCount = 1000;
+    private double uriBeaconFraction = 1;
+    private int minAdvertisingIntervalMillis = 100;
+    private int maxAdvertisingIntervalMillis = 100;
+    private double randomAddressFraction;
+    private long addressRotationMillis;
+    private int minRssi = -100;
+    private int maxRssi = -40;
+    private double rssiStepDb = 1;
+    private long meanLifetimeMillis;
+    private FakeClock clock;
+    private long seed;
+
+    /**
+     * Set the number of beacons in the field at any time. The default is 1000.
+     */
+    public Builder setBeaconCount(int beaconCount) {
+      if (beaconCount < 0) {
+        throw new IllegalArgumentException("invalid beacon count " + beaconCount);
+      }
+      this.beaconCount = beaconCount;
+      return this;
+    }
+
+    /**
+     * Set the share of beacons that are UriBeacons, between 0 and 1. The others advertise
+     * manufacturer specific data. The default is 1.
+     */
+    public Builder setUriBeaconFraction(double uriBeaconFraction) {
+      if (!(uriBeaconFraction >= 0 && uriBeaconFraction <= 1)) {
+        throw new IllegalArgumentException("invalid fraction " + uriBeaconFraction);
+      }
+      this.uriBeaconFraction = uriBeaconFraction;
+      return this;
+    }
+
+    /**
+     * Set the range the advertising interval of each beacon is drawn from, in milliseconds. The
+     * default is 100ms for every beacon.
+     */
+    public Builder setAdvertisingIntervalMillis(int minMillis, int maxMillis) {
+      if (minMillis <= 0 || maxMillis < minMillis) {
+        throw new IllegalArgumentException(
+            "invalid advertising interval " + minMillis + "-" + maxMillis);
+      }
+      this.minAdvertisingIntervalMillis = minMillis;
+      this.maxAdvertisingIntervalMillis = maxMillis;
+      return this;
+    }
+
+    /**
+     * Set the share of beacons, between 0 and 1, that use a random address, and how often they
+     * change it. A rotation of 0 keeps each random address for the beacon's lifetime. By default
+     * every beacon has a fixed public address.
+     */
+    public Builder setAddressRandomization(double randomAddressFraction,
+        long addressRotationMillis) {
+      if (!(randomAddressFraction >= 0 && randomAddressFraction <= 1)
+          || addressRotationMillis < 0) {
+        throw new IllegalArgumentException("invalid address randomization "
+            + randomAddressFraction + ", " + addressRotationMillis);
+      }
+      this.randomAddressFraction = randomAddressFraction;
+      this.addressRotationMillis = addressRotationMillis;
+      return this;
+    }
+
+    /**
+     * Set the random walk of the signal strengths. Each beacon starts at a strength drawn from
+     * {@code minRssi} to {@code maxRssi}, then moves by a normally distributed step with the given
+     * standard deviation on each advertisement, staying within the range. The default walks from
+     * -100 to -40 dBm in steps of 1 dB.
+     */
+    public Builder setRssiWalk(int minRssi, int maxRssi, double stepDb) {
+      if (maxRssi < minRssi || stepDb < 0) {
+        throw new IllegalArgumentException(
+            "invalid rssi walk " + minRssi + "-" + maxRssi + ", " + stepDb);
+      }
+      this.minRssi = minRssi;
+      this.maxRssi = maxRssi;
+      this.rssiStepDb = stepDb;
+      return this;
+    }
+
+    /**
+     * Set the mean time a beacon stays in the field before it is replaced by a new one, with a
+     * new address. 0, the default, keeps every beacon for the whole run.
+     */
+    public Builder setMeanLifetimeMillis(long meanLifetimeMillis) {
+      if (meanLifetimeMillis < 0) {
+        throw new IllegalArgumentException("invalid lifetime " + meanLifetimeMillis);
+      }
+      this.meanLifetimeMillis = meanLifetimeMillis;
+      return this;
+    }
+
+    /**
+     * Set the clock to advance to the time of each advertisement.
+     */
+    public Builder setClock(FakeClock clock) {
+      this.clock = clock;
+      return this;
+    }
+
+    /**
+     * Set the seed of the random choices. The default is 0.
+     */
+    public Builder setSeed(long seed) {
+      this.seed = seed;
+      return this;
+    }
+
+    public SyntheticBeaconGenerator build() {
+      return new SyntheticBeaconGenerator(this);
+    }
+  }
+}
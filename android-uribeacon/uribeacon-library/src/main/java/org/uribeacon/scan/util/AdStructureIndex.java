@@ -0,0 +1,192 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.scan.util;
+
+import java.util.Arrays;
+
+/**
+ * The position of every AD structure in a Bluetooth LE advertisement, as described in the
+ * <a href="https://www.bluetooth.org/DocMan/handlers/DownloadDoc.ashx?doc_id=282159">
+ * Specification of the Bluetooth System 4.1 Volume 3, Part C, Section 11.</a>
+ * <p>
+ * The advertisement is walked once when the index is built. Decoders then look structures up by
+ * type and read their data in place from {@link #getBytes}, so the same packet never has to be
+ * walked again. Structures are numbered from 0 in the order they were advertised.
+ * <p>
+ * Indexing stops at a zero length structure, which marks the padding at the end of a scan
+ * record, or at the first structure that overruns the buffer. The structures before it are kept.
+ */
+public final class AdStructureIndex {
+
+  // Each structure takes three slots: type, data offset and data length.
+  private static final int TYPE = 0;
+  private static final int OFFSET = 1;
+  private static final int LENGTH = 2;
+  private static final int SLOTS = 3;
+
+  private final byte[] bytes;
+  private final int[] structures;
+  private final boolean truncated;
+
+  private AdStructureIndex(byte[] bytes, int[] structures, boolean truncated) {
+    this.bytes = bytes;
+    this.structures = structures;
+    this.truncated = truncated;
+  }
+
+  /**
+   * Index the AD structures in {@code bytes}. The array must not be modified afterwards.
+   */
+  public static AdStructureIndex build(byte[] bytes) {
+    int count = 0;
+    int pos = 0;
+    boolean truncated = false;
+    while (pos < bytes.length) {
+      // Length is unsigned and includes the type byte.
+      int length = bytes[pos] & 0xff;
+      if (length == 0) {
+        break;
+      }
+      if (pos + length >= bytes.length) {
+        Logger.logDebug("AD structure overruns the scan record: " + Arrays.toString(bytes));
+        truncated = true;
+        break;
+      }
+      count++;
+      pos += length + 1;
+    }
+
+    int[] structures = new int[count * SLOTS];
+    pos = 0;
+    for (int i = 0; i < structures.length; i += SLOTS) {
+      int length = bytes[pos] & 0xff;
+      structures[i + TYPE] = bytes[pos + 1] & 0xff;
+      structures[i + OFFSET] = pos + 2;
+      structures[i + LENGTH] = length - 1;
+      pos += length + 1;
+    }
+    return new AdStructureIndex(bytes, structures, truncated);
+  }
+
+  /**
+   * Returns the indexed advertisement.
+   */
+  public byte[] getBytes() {
+    return bytes;
+  }
+
+  /**
+   * Returns the number of AD structures found.
+   */
+  public int size() {
+    return structures.length / SLOTS;
+  }
+
+  /**
+   * Returns true if indexing stopped at a structure that overran the advertisement.
+   */
+  public boolean isTruncated() {
+    return truncated;
+  }
+
+  /**
+   * Returns the AD type of the structure, an unsigned value from {@link AssignedNumbers}.
+   */
+  public int getType(int structure) {
+    return structures[structure * SLOTS + TYPE];
+  }
+
+  /**
+   * Returns the offset in {@link #getBytes} of the data of the structure, after its type.
+   */
+  public int getDataOffset(int structure) {
+    return structures[structure * SLOTS + OFFSET];
+  }
+
+  /**
+   * Returns the number of data bytes in the structure, not counting its type.
+   */
+  public int getDataLength(int structure) {
+    return structures[structure * SLOTS + LENGTH];
+  }
+
+  /**
+   * Returns the first structure of the given unsigned AD type, or -1 if there is none.
+   */
+  public int find(int type) {
+    return find(type, 0);
+  }
+
+  /**
+   * Returns the first structure of the given unsigned AD type at or after {@code from}, or -1 if
+   * there is none.
+   */
+  public int find(int type, int from) {
+    for (int i = from * SLOTS; i < structures.length; i += SLOTS) {
+      if (structures[i + TYPE] == type) {
+        return i / SLOTS;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the last structure of the given unsigned AD type, or -1 if there is none.
+   */
+  public int findLast(int type) {
+    for (int i = structures.length - SLOTS; i >= 0; i -= SLOTS) {
+      if (structures[i + TYPE] == type) {
+        return i / SLOTS;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the Service Data structure for the 16-bit service UUID, or -1 if there is none.
+   * The service data itself follows the two UUID bytes.
+   */
+  public int findServiceData(int serviceUuid16) {
+    return findByLeadingShort(AssignedNumbers.SERVICE & 0xff, serviceUuid16, false);
+  }
+
+  /**
+   * Returns the last Manufacturer Specific Data structure for the company identifier, or -1 if
+   * there is none. The manufacturer data itself follows the two identifier bytes.
+   * <p>
+   * The last structure is the one a parsed record keeps when an identifier is repeated.
+   */
+  public int findManufacturerData(int manufacturerId) {
+    return findByLeadingShort(AssignedNumbers.MANUFACTURER & 0xff, manufacturerId, true);
+  }
+
+  // Finds the first, or the last, structure of the given type whose data starts with the 16-bit
+  // little endian value.
+  private int findByLeadingShort(int type, int value, boolean last) {
+    int step = last ? -SLOTS : SLOTS;
+    for (int i = last ? structures.length - SLOTS : 0; i >= 0 && i < structures.length;
+        i += step) {
+      if (structures[i + TYPE] == type && structures[i + LENGTH] >= 2) {
+        int offset = structures[i + OFFSET];
+        if ((((bytes[offset + 1] & 0xff) << 8) | (bytes[offset] & 0xff)) == value) {
+          return i / SLOTS;
+        }
+      }
+    }
+    return -1;
+  }
+}
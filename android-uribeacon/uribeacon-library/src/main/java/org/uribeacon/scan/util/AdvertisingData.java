@@ -38,9 +38,16 @@ public class AdvertisingData {
    * Return the complete or shortened local name, or null if not available.
    */
   public static String getName(byte[] scanRecord) {
-    String name = getCompleteName(scanRecord);
+    return getName(AdStructureIndex.build(scanRecord));
+  }
+
+  /**
+   * Same as {@link #getName(byte[])}, reading from an already built index.
+   */
+  public static String getName(AdStructureIndex index) {
+    String name = getCompleteName(index);
     if (name == null) {
-      name = getShortName(scanRecord);
+      name = getShortName(index);
     }
     return name;
   }
@@ -49,24 +56,28 @@ public class AdvertisingData {
    * Get the short name contained in the buffer, or null if not available.
    */
   public static String getShortName(byte[] scanRecord) {
-    int pos = findCodeInBuffer(scanRecord, AssignedNumbers.SHORT_NAME);
-    if (pos > 0) {
-      int len = getSizeOfBlock(scanRecord, pos);
-      return new String(scanRecord, pos, len);
-    }
-    return null;
+    return getShortName(AdStructureIndex.build(scanRecord));
+  }
+
+  /**
+   * Same as {@link #getShortName(byte[])}, reading from an already built index.
+   */
+  public static String getShortName(AdStructureIndex index) {
+    return getString(index, AssignedNumbers.SHORT_NAME);
   }
 
   /**
    * Get the complete name contained in the buffer, or null if not available.
    */
   public static String getCompleteName(byte[] scanRecord) {
-    int pos = findCodeInBuffer(scanRecord, AssignedNumbers.COMPLETE_NAME);
-    if (pos > 0) {
-      int len = getSizeOfBlock(scanRecord, pos);
-      return new String(scanRecord, pos, len);
-    }
-    return null;
+    return getCompleteName(AdStructureIndex.build(scanRecord));
+  }
+
+  /**
+   * Same as {@link #getCompleteName(byte[])}, reading from an already built index.
+   */
+  public static String getCompleteName(AdStructureIndex index) {
+    return getString(index, AssignedNumbers.COMPLETE_NAME);
   }
 
   /**
@@ -88,21 +99,41 @@ public class AdvertisingData {
    * known UUID pattern to form a 128-bit Service UUID.
    */
   public static List<UUID> getServiceUuids(byte[] scanRecord) {
+    return getServiceUuids(AdStructureIndex.build(scanRecord));
+  }
+
+  /**
+   * Same as {@link #getServiceUuids(byte[])}, reading from an already built index.
+   */
+  public static List<UUID> getServiceUuids(AdStructureIndex index) {
     List<UUID> uuids = new ArrayList<UUID>();
+    byte[] bytes = index.getBytes();
 
     // Incomplete list of 16-bit Service Class UUIDs.
-    add16BitUUIDsToList(scanRecord, AssignedNumbers.UUID16_PART, uuids);
+    int pos = index.find(AssignedNumbers.UUID16_PART & 0xff);
+    if (pos >= 0) {
+      add16BitUUIDsToList(bytes, index.getDataOffset(pos), index.getDataLength(pos), uuids);
+    }
 
     // Complete List of 16-bit Service Class UUIDs.
-    add16BitUUIDsToList(scanRecord, AssignedNumbers.UUID16, uuids);
+    pos = index.find(AssignedNumbers.UUID16 & 0xff);
+    if (pos >= 0) {
+      add16BitUUIDsToList(bytes, index.getDataOffset(pos), index.getDataLength(pos), uuids);
+    }
 
     // TODO:: add matching on 32-bit UUIDs
 
     // Incomplete List of 128-bit Service Class UUIDs.
-    add128BitUUIDsToList(scanRecord, AssignedNumbers.UUID128_PART, uuids);
+    pos = index.find(AssignedNumbers.UUID128_PART & 0xff);
+    if (pos >= 0) {
+      add128BitUUIDsToList(bytes, index.getDataOffset(pos), index.getDataLength(pos), uuids);
+    }
 
     // Complete List of 128-bit Service Class UUIDs.
-    add128BitUUIDsToList(scanRecord, AssignedNumbers.UUID128, uuids);
+    pos = index.find(AssignedNumbers.UUID128 & 0xff);
+    if (pos >= 0) {
+      add128BitUUIDsToList(bytes, index.getDataOffset(pos), index.getDataLength(pos), uuids);
+    }
     return uuids;
   }
 
@@ -110,28 +141,28 @@ public class AdvertisingData {
    * Return the Service Data contained in a Google BLE Tag, or null if not available.
    */
   public static byte[] getServiceData(byte[] scanRecord) {
-    int pos = findCodeInBuffer(scanRecord, AssignedNumbers.SERVICE);
-    if (pos >= 2) {
-      int len = getSizeOfBlock(scanRecord, pos);
-      short id = getShort(scanRecord, pos);
-      pos += 2;
-      Logger.logVerbose("Service ID 0x" + Integer.toHexString(id) + " len=" + len);
-      // shorts are 2 bytes long, so subtracting 2 from length
-      return Arrays.copyOfRange(scanRecord, pos, pos + len - 2);
-    }
-    return null;
+    return getServiceData(AdStructureIndex.build(scanRecord));
+  }
+
+  /**
+   * Same as {@link #getServiceData(byte[])}, reading from an already built index.
+   */
+  public static byte[] getServiceData(AdStructureIndex index) {
+    return getDataAfterId(index, AssignedNumbers.SERVICE);
   }
 
   /**
    * Return the ID contained in a Google BLE Tag (Service Data), or null if not available.
    */
   public static Integer getServiceDataId(byte[] scanRecord) {
-    int pos = findCodeInBuffer(scanRecord, AssignedNumbers.SERVICE);
-    if (pos != -1) {
-      short id = getShort(scanRecord, pos);
-      return Integer.valueOf(id);
-    }
-    return null;
+    return getServiceDataId(AdStructureIndex.build(scanRecord));
+  }
+
+  /**
+   * Same as {@link #getServiceDataId(byte[])}, reading from an already built index.
+   */
+  public static Integer getServiceDataId(AdStructureIndex index) {
+    return getId(index, AssignedNumbers.SERVICE);
   }
 
   /**
@@ -139,11 +170,7 @@ public class AdvertisingData {
    * Used for manufacturer specific data decoding.
    */
   public static Integer getServiceDataOffset(byte[] scanRecord) {
-    int pos = findCodeInBuffer(scanRecord, AssignedNumbers.SERVICE);
-    if (pos != -1) {
-      return pos + 2; // Move past the Service ID
-    }
-    return null;
+    return getOffsetAfterId(AdStructureIndex.build(scanRecord), AssignedNumbers.SERVICE);
   }
 
   /**
@@ -151,10 +178,16 @@ public class AdvertisingData {
    * The TX Power indicates the transmitted power rssi of the packet containing the data type
    */
   public static Integer getTxPowerLevel(byte[] scanRecord) {
-    // Check for BLE 4.0 TX power
-    int pos = findCodeInBuffer(scanRecord, AssignedNumbers.TXPOWER);
-    if (pos > 0) {
-      return Integer.valueOf(scanRecord[pos]);
+    return getTxPowerLevel(AdStructureIndex.build(scanRecord));
+  }
+
+  /**
+   * Same as {@link #getTxPowerLevel(byte[])}, reading from an already built index.
+   */
+  public static Integer getTxPowerLevel(AdStructureIndex index) {
+    int pos = index.find(AssignedNumbers.TXPOWER & 0xff);
+    if (pos >= 0 && index.getDataLength(pos) >= 1) {
+      return Integer.valueOf(index.getBytes()[index.getDataOffset(pos)]);
     }
     return null;
   }
@@ -168,39 +201,35 @@ public class AdvertisingData {
    * manufacturer specified by the company identifier.
    */
   public static byte[] getManufacturerData(byte[] scanRecord) {
-    int pos = findCodeInBuffer(scanRecord, AssignedNumbers.MANUFACTURER);
-    if (pos >= 2) {
-      int len = getSizeOfBlock(scanRecord, pos);
-      short id = getShort(scanRecord, pos);
-      pos += 2;
-      Logger.logVerbose("Manufacturer ID 0x" + Integer.toHexString(id) + " len=" + len);
-      // shorts are 2 bytes long, so subtracting 2 from length
-      return Arrays.copyOfRange(scanRecord, pos, pos + len - 2);
-    }
-    return null;
+    return getManufacturerData(AdStructureIndex.build(scanRecord));
+  }
+
+  /**
+   * Same as {@link #getManufacturerData(byte[])}, reading from an already built index.
+   */
+  public static byte[] getManufacturerData(AdStructureIndex index) {
+    return getDataAfterId(index, AssignedNumbers.MANUFACTURER);
   }
 
   /**
    * Return the ID contained in a Google BLE Tag (Manufacturer Data)
    */
   public static Integer getManufacturerCode(byte[] scanRecord) {
-    int pos = findCodeInBuffer(scanRecord, AssignedNumbers.MANUFACTURER);
-    if (pos != -1) {
-      short id = getShort(scanRecord, pos);
-      return Integer.valueOf(id);
-    }
-    return null;
+    return getManufacturerCode(AdStructureIndex.build(scanRecord));
+  }
+
+  /**
+   * Same as {@link #getManufacturerCode(byte[])}, reading from an already built index.
+   */
+  public static Integer getManufacturerCode(AdStructureIndex index) {
+    return getId(index, AssignedNumbers.MANUFACTURER);
   }
 
   /**
    * Return the buffer offset of the Manufacturer Data. Used for manufacturer specific data decoding
    */
   public static Integer getManufacturerDataOffset(byte[] scanRecord) {
-    int pos = findCodeInBuffer(scanRecord, AssignedNumbers.MANUFACTURER);
-    if (pos != -1) {
-      return pos + 2; // Move past the Manufacturer ID
-    }
-    return null;
+    return getOffsetAfterId(AdStructureIndex.build(scanRecord), AssignedNumbers.MANUFACTURER);
   }
 
   /**
@@ -250,78 +279,76 @@ public class AdvertisingData {
   }
 
   /**
-   * Helper function to extract 16-bit UUIDS from the scan record and add them to the given list.
+   * Helper function to extract 16-bit UUIDS from a structure and add them to the given list.
    */
-  private static void add16BitUUIDsToList(byte[] scanRecord, byte code, List<UUID> uuids) {
-    int pos = findCodeInBuffer(scanRecord, code);
-    if (pos > 0) {
-      int len = getSizeOfBlock(scanRecord, pos);
-      while (len >= 2) {
-        short uuid16 = getShort(scanRecord, pos);
-        uuids.add(UUID.fromString(String.format(UUID_16_FORMAT, uuid16 & 0xFFFF)));
-        len -= 2;
-        pos += 2;
-      }
+  private static void add16BitUUIDsToList(byte[] scanRecord, int pos, int len, List<UUID> uuids) {
+    while (len >= 2) {
+      short uuid16 = getShort(scanRecord, pos);
+      uuids.add(UUID.fromString(String.format(UUID_16_FORMAT, uuid16 & 0xFFFF)));
+      len -= 2;
+      pos += 2;
     }
   }
 
   /**
-   * Helper function to extract 128-bit UUIDS from the scan record and add them to the given list.
+   * Helper function to extract 128-bit UUIDS from a structure and add them to the given list.
    */
-  private static void add128BitUUIDsToList(byte[] scanRecord, byte code, List<UUID> uuids) {
-    int pos = findCodeInBuffer(scanRecord, code);
-    if (pos > 0) {
-      int len = getSizeOfBlock(scanRecord, pos);
-      while (len >= 16) {
-        long lsb = getLong(scanRecord, pos);
-        long msb = getLong(scanRecord, pos + 8);
-        uuids.add(new UUID(msb, lsb));
-        len -= 16;
-        pos += 16;
-      }
+  private static void add128BitUUIDsToList(byte[] scanRecord, int pos, int len,
+      List<UUID> uuids) {
+    while (len >= 16) {
+      long lsb = getLong(scanRecord, pos);
+      long msb = getLong(scanRecord, pos + 8);
+      uuids.add(new UUID(msb, lsb));
+      len -= 16;
+      pos += 16;
     }
   }
 
   /**
-   * Get the position of the data block for the code in the buffer (after the length and code
-   * values), or -1 if not found.
+   * Helper function to read the first structure of the given type in the index as a string.
    */
-  private static int findCodeInBuffer(byte[] buffer, byte code) {
-    final int length = buffer.length;
-    int i = 0;
-    while (i < length - 2) {
-      int len = buffer[i];
-      if (len < 0) {
-        return -1;
-      }
-
-      if (i + len >= length) {
-        return -1;
-      }
-
-      byte tcode = buffer[i + 1];
-      if (tcode == code) {
-        return i + 2;
-      }
+  private static String getString(AdStructureIndex index, byte code) {
+    int pos = index.find(code & 0xff);
+    if (pos >= 0) {
+      return new String(index.getBytes(), index.getDataOffset(pos), index.getDataLength(pos));
+    }
+    return null;
+  }
 
-      i += len + 1;
+  /**
+   * Helper function to read the 16-bit identifier leading the first structure of the given type.
+   */
+  private static Integer getId(AdStructureIndex index, byte code) {
+    int pos = index.find(code & 0xff);
+    if (pos >= 0 && index.getDataLength(pos) >= 2) {
+      return Integer.valueOf(getShort(index.getBytes(), index.getDataOffset(pos)));
     }
+    return null;
+  }
 
-    return -1;
+  /**
+   * Helper function to find the data following the 16-bit identifier of the first structure of
+   * the given type, in the scan record bytes.
+   */
+  private static Integer getOffsetAfterId(AdStructureIndex index, byte code) {
+    int pos = index.find(code & 0xff);
+    if (pos >= 0) {
+      return index.getDataOffset(pos) + 2; // Move past the ID
+    }
+    return null;
   }
 
   /**
-   * Get the size in bytes of the data block in the buffer starting at the given position.
+   * Helper function to copy the data following the 16-bit identifier of the first structure of
+   * the given type.
    */
-  private static int getSizeOfBlock(byte[] buffer, int pos) {
-    /*
-     * Each data block is prefixed by 2 bytes that represent:
-     * byte#1 - total length of the data block (excluding this first byte);
-     * byte#2 - type of the data block.
-     * This method returns the value of #1 decremented by 1, since value #2 (type of the data block)
-     * will not be included. See also the position() method.
-     */
-    return buffer[pos - 2] - 1;
+  private static byte[] getDataAfterId(AdStructureIndex index, byte code) {
+    int pos = index.find(code & 0xff);
+    if (pos >= 0 && index.getDataLength(pos) >= 2) {
+      int start = index.getDataOffset(pos) + 2;
+      return Arrays.copyOfRange(index.getBytes(), start, start + index.getDataLength(pos) - 2);
+    }
+    return null;
   }
 
   /**
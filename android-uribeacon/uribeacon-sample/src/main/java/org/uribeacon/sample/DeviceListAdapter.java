@@ -22,6 +22,7 @@ import android.view.ViewGroup;
 import android.widget.TextView;
 
 import org.uribeacon.beacon.UriBeacon;
+import org.uribeacon.beacon.UriBeaconCache;
 import org.uribeacon.scan.compat.ScanResult;
 import org.uribeacon.scan.util.RangingUtils;
 import org.uribeacon.widget.ScanResultAdapter;
@@ -37,6 +38,8 @@ import java.util.concurrent.TimeUnit;
 class DeviceListAdapter extends ScanResultAdapter {
   private static final SimpleDateFormat TIMESTAMP_FORMAT =
       new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSSS", Locale.US);
+  // Rows are redrawn for every sighting of the same beacons.
+  private final UriBeaconCache mUriBeaconCache = new UriBeaconCache();
 
   // Adapter for holding devices found through scanning.
   public DeviceListAdapter(LayoutInflater layoutInflater) {
@@ -68,7 +71,7 @@ class DeviceListAdapter extends ScanResultAdapter {
     ScanResult scanResult = deviceSighting.scanResult;
     UriBeacon beacon;
     byte txPowerLevel;
-    beacon = UriBeacon.parseFromBytes(scanResult.getScanRecord().getBytes());
+    beacon = mUriBeaconCache.parseFromIndex(scanResult.getAdStructureIndex());
 
     String displayName = null;
     if (beacon != null) {
@@ -259,9 +259,7 @@ public class UriBeaconScanActivity extends ListActivity implements SwipeRefreshL
   }
 
   private int getTxPowerLevel(ScanResult scanResult) {
-    byte[] scanRecord = scanResult.getScanRecord().getBytes();
-    UriBeacon uriBeacon =
-        UriBeacon.parseFromBytes(scanRecord);
+    UriBeacon uriBeacon = UriBeacon.parseFromIndex(scanResult.getAdStructureIndex());
 
     if (uriBeacon != null) {
       return uriBeacon.getTxPowerLevel();
@@ -283,7 +281,7 @@ public class UriBeaconScanActivity extends ListActivity implements SwipeRefreshL
   private class LeScanCallback implements BluetoothAdapter.LeScanCallback {
     @Override
     public void onLeScan(final BluetoothDevice device, final int rssi, final byte[] scanBytes) {
-      ScanRecord scanRecord = ScanRecord.parseFromBytes(scanBytes);
+      ScanRecord scanRecord = ScanRecord.wrap(scanBytes);
       if (leScanMatches(scanRecord)) {
         final ScanResult scanResult = new ScanResult(device, scanRecord, rssi, SystemClock.elapsedRealtimeNanos());
         final int txPower = getTxPowerLevel(scanResult);